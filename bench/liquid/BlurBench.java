@@ -0,0 +1,103 @@
+package liquid;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The two blur passes over a rasterized frame, one at a time. The
+ * CONVOLVE_OP implementation is the original pair of ConvolveOps,
+ * kept as a reference point.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BlurBench {
+
+    /** Which blur implementation to measure. */
+    public enum Implementation {
+        /** Blur in Gaussian mode. */
+        GAUSSIAN,
+        /** Blur in box mode. */
+        BOX,
+        /** Blur in luma mode. */
+        LUMA,
+        /** java.awt.image.ConvolveOp with the same kernel. */
+        CONVOLVE_OP
+    }
+
+    /** The blur implementation. */
+    @Param
+    private Implementation implementation;
+
+    private int width;
+    private int height;
+    private int[] src;
+    private int[] dst;
+    private Blur blur;
+    private BufferedImage image;
+    private BufferedImage output;
+    private ConvolveOp vertical;
+    private ConvolveOp horizontal;
+
+    /**
+     * Rasterize a settled bottle as the input.
+     */
+    @Setup
+    public final void setup() {
+        Frame frame = Fixtures.raster(Fixtures.settled(Fixtures.BALLS));
+        width = frame.getWidth();
+        height = frame.getHeight();
+        image = frame.getImage();
+        src = frame.getPixels();
+        dst = new int[src.length];
+        output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        if (implementation == Implementation.BOX) {
+            blur = new Blur(Renderer.KERNEL_SIZE, Blur.Mode.BOX);
+        } else if (implementation == Implementation.LUMA) {
+            blur = new Blur(Renderer.KERNEL_SIZE, Blur.Mode.LUMA);
+        } else {
+            blur = new Blur(Renderer.KERNEL_SIZE, Blur.Mode.GAUSSIAN);
+        }
+        float[] kernel = Blur.kernel(Renderer.KERNEL_SIZE);
+        vertical = new ConvolveOp(new Kernel(1, kernel.length, kernel),
+                                  ConvolveOp.EDGE_ZERO_FILL, null);
+        horizontal = new ConvolveOp(new Kernel(kernel.length, 1, kernel),
+                                    ConvolveOp.EDGE_ZERO_FILL, null);
+    }
+
+    /**
+     * Run the vertical pass.
+     * @return the output, so the pass is not eliminated
+     */
+    @Benchmark
+    public final Object vertical() {
+        if (implementation == Implementation.CONVOLVE_OP) {
+            return vertical.filter(image, output);
+        }
+        blur.vertical(src, dst, width, height);
+        return dst;
+    }
+
+    /**
+     * Run the horizontal pass, without a fused threshold.
+     * @return the output, so the pass is not eliminated
+     */
+    @Benchmark
+    public final Object horizontal() {
+        if (implementation == Implementation.CONVOLVE_OP) {
+            return horizontal.filter(image, output);
+        }
+        blur.horizontal(src, dst, width, height, null);
+        return dst;
+    }
+}
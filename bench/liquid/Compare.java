@@ -0,0 +1,203 @@
+package liquid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares a JMH JSON result file against a stored baseline, printing
+ * the change in throughput and in bytes allocated per operation for
+ * every benchmark found in both.
+ */
+public final class Compare {
+
+    private static final String ALLOC = "gc.alloc.rate.norm";
+    private static final double PERCENT = 100.0;
+
+    private final String text;
+    private int pos = 0;
+
+    /**
+     * Create a parser over some JSON text.
+     * @param text  the JSON text
+     */
+    private Compare(final String text) {
+        this.text = text;
+    }
+
+    /**
+     * Entry point.
+     * @param args  the baseline file and the result file
+     * @throws IOException if a file cannot be read
+     */
+    public static void main(final String[] args) throws IOException {
+        File baseline = new File(args[0]);
+        if (!baseline.exists()) {
+            System.out.println("no baseline at " + baseline
+                               + ", run the bench-baseline target to store "
+                               + "the current results");
+            return;
+        }
+        Map<String, double[]> before = scores(baseline);
+        Map<String, double[]> after = scores(new File(args[1]));
+        System.out.println(String.format("%-52s %12s %12s %8s %10s %10s",
+                                         "benchmark", "baseline", "ops/s",
+                                         "change", "B/op was", "B/op"));
+        for (Map.Entry<String, double[]> e : after.entrySet()) {
+            double[] old = before.get(e.getKey());
+            if (old == null) {
+                continue;
+            }
+            double[] now = e.getValue();
+            System.out.println(String.format(
+                "%-52s %12.1f %12.1f %+7.1f%% %10.0f %10.0f",
+                e.getKey(), old[0], now[0],
+                (now[0] / old[0] - 1) * PERCENT, old[1], now[1]));
+        }
+    }
+
+    /**
+     * Load the throughput and normalized allocation of each benchmark.
+     * @param file  a JMH JSON result file
+     * @return {score, bytes per op} keyed by benchmark and parameters
+     * @throws IOException if the file cannot be read
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, double[]> scores(final File file)
+        throws IOException {
+        Map<String, double[]> scores = new LinkedHashMap<String, double[]>();
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) in.length()];
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        String json = new String(bytes, Charset.forName("UTF-8"));
+        for (Object o : (List<Object>) new Compare(json).value()) {
+            Map<String, Object> run = (Map<String, Object>) o;
+            String name = (String) run.get("benchmark");
+            name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.')
+                                                   - 1) + 1);
+            Object params = run.get("params");
+            if (params != null) {
+                name += " " + params.toString();
+            }
+            Map<String, Object> primary =
+                (Map<String, Object>) run.get("primaryMetric");
+            Map<String, Object> secondary =
+                (Map<String, Object>) run.get("secondaryMetrics");
+            double alloc = Double.NaN;
+            if (secondary != null && secondary.get(ALLOC) != null) {
+                Map<String, Object> norm =
+                    (Map<String, Object>) secondary.get(ALLOC);
+                alloc = number(norm.get("score"));
+            }
+            scores.put(name, new double[] {number(primary.get("score")),
+                                           alloc});
+        }
+        return scores;
+    }
+
+    /**
+     * Read a score, which JMH writes as a string when it is NaN.
+     * @param value  a parsed JSON value
+     * @return the number, or NaN
+     */
+    private static double number(final Object value) {
+        if (value instanceof Double) {
+            return (Double) value;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Parse the next JSON value.
+     * @return a map, list, string, double, boolean or null
+     */
+    private Object value() {
+        skip();
+        char c = text.charAt(pos);
+        if (c == '{') {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            pos++;
+            skip();
+            while (text.charAt(pos) != '}') {
+                String key = string();
+                skip();
+                pos++; // ':'
+                map.put(key, value());
+                skip();
+                if (text.charAt(pos) == ',') {
+                    pos++;
+                    skip();
+                }
+            }
+            pos++;
+            return map;
+        } else if (c == '[') {
+            List<Object> list = new ArrayList<Object>();
+            pos++;
+            skip();
+            while (text.charAt(pos) != ']') {
+                list.add(value());
+                skip();
+                if (text.charAt(pos) == ',') {
+                    pos++;
+                    skip();
+                }
+            }
+            pos++;
+            return list;
+        } else if (c == '"') {
+            return string();
+        } else if (text.startsWith("true", pos)) {
+            pos += "true".length();
+            return Boolean.TRUE;
+        } else if (text.startsWith("false", pos)) {
+            pos += "false".length();
+            return Boolean.FALSE;
+        } else if (text.startsWith("null", pos)) {
+            pos += "null".length();
+            return null;
+        }
+        int start = pos;
+        while (pos < text.length() && "+-.eE0123456789".indexOf(
+                   text.charAt(pos)) >= 0) {
+            pos++;
+        }
+        return Double.valueOf(text.substring(start, pos));
+    }
+
+    /**
+     * Parse a string, keeping escaped characters as they are.
+     * @return the string contents
+     */
+    private String string() {
+        StringBuilder sb = new StringBuilder();
+        pos++;
+        while (text.charAt(pos) != '"') {
+            if (text.charAt(pos) == '\\') {
+                pos++;
+            }
+            sb.append(text.charAt(pos++));
+        }
+        pos++;
+        return sb.toString();
+    }
+
+    /**
+     * Skip whitespace.
+     */
+    private void skip() {
+        while (pos < text.length() && Character.isWhitespace(
+                   text.charAt(pos))) {
+            pos++;
+        }
+    }
+}
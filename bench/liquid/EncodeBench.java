@@ -0,0 +1,49 @@
+package liquid;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * PNG encoding of a finished frame, as done by {@link PngSink} for
+ * the recorder, minus the file system.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncodeBench {
+
+    private BufferedImage image;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    /**
+     * Render a settled bottle as the input.
+     */
+    @Setup
+    public final void setup() {
+        ImageIO.setUseCache(false);
+        image = Fixtures.render(Fixtures.settled(Fixtures.BALLS),
+                                new Renderer.Options()).getImage();
+    }
+
+    /**
+     * Encode the frame.
+     * @return the encoded size
+     * @throws IOException if encoding fails
+     */
+    @Benchmark
+    public final int png() throws IOException {
+        out.reset();
+        ImageIO.write(image, "PNG", out);
+        return out.size();
+    }
+}
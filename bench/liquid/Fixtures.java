@@ -0,0 +1,74 @@
+package liquid;
+
+import java.awt.Dimension;
+
+/**
+ * Shared inputs for the benchmarks: a bottle that has had time to
+ * settle, and frames rendered from it at the viewer's natural size.
+ */
+final class Fixtures {
+
+    /** Balls in the default bottle. */
+    static final int BALLS = 400;
+
+    /* Steps taken before measuring, so the balls are piled up. */
+    private static final int SETTLE = 90;
+
+    /**
+     * Utility class.
+     */
+    private Fixtures() {
+    }
+
+    /**
+     * Create a bottle and step it until the balls have settled.
+     * @param balls  the number of balls
+     * @return the settled bottle, not running
+     */
+    static Bottle settled(final int balls) {
+        Bottle bottle = new Bottle(balls);
+        for (int i = 0; i < SETTLE; i++) {
+            bottle.advance();
+        }
+        return bottle;
+    }
+
+    /**
+     * Create a frame at the natural size of a simulation's view.
+     * @param simulation  the simulation to be rendered
+     * @return a new frame
+     */
+    static Frame frame(final Simulation simulation) {
+        Dimension size = Renderer.size(simulation.getView());
+        return new Frame(size.width, size.height);
+    }
+
+    /**
+     * Render the latest state of a simulation with the given options.
+     * @param simulation  the simulation to render
+     * @param options     rendering options
+     * @return the rendered frame
+     */
+    static Frame render(final Simulation simulation,
+                        final Renderer.Options options) {
+        Frame frame = frame(simulation);
+        Snapshot snapshot = simulation.acquireSnapshot();
+        try {
+            new Renderer(options).render(frame, snapshot);
+        } finally {
+            snapshot.release();
+        }
+        return frame;
+    }
+
+    /**
+     * Rasterize the latest state of a simulation without blurring.
+     * @param simulation  the simulation to render
+     * @return the rasterized frame
+     */
+    static Frame raster(final Simulation simulation) {
+        Renderer.Options options = new Renderer.Options();
+        options.setBlur(false);
+        return render(simulation, options);
+    }
+}
@@ -0,0 +1,84 @@
+package liquid;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Rendering a whole frame from a snapshot. RASTER only rasterizes the
+ * bodies; the other stages add the blur and threshold of each mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RenderBench {
+
+    /** Which rendering path to measure. */
+    public enum Stage {
+        /** Rasterization only, no blur. */
+        RASTER,
+        /** Rasterize, separable Gaussian blur, threshold. */
+        GAUSSIAN,
+        /** The same on one channel, vectorized when available. */
+        LUMA,
+        /** Rasterize, box blur approximation, threshold. */
+        BOX,
+        /** Splat blurred footprints, threshold. */
+        SPLAT
+    }
+
+    /** The rendering path. */
+    @Param
+    private Stage stage;
+
+    private Renderer renderer;
+    private Frame frame;
+    private Snapshot snapshot;
+
+    /**
+     * Settle a bottle and prepare a warm renderer.
+     */
+    @Setup
+    public final void setup() {
+        Bottle bottle = Fixtures.settled(Fixtures.BALLS);
+        Renderer.Options options = new Renderer.Options();
+        if (stage == Stage.RASTER) {
+            options.setBlur(false);
+        } else if (stage == Stage.GAUSSIAN) {
+            options.setBlurMode(Blur.Mode.GAUSSIAN);
+        } else if (stage == Stage.BOX) {
+            options.setBlurMode(Blur.Mode.BOX);
+        } else if (stage == Stage.SPLAT) {
+            options.setSplat(true);
+        }
+        renderer = new Renderer(options);
+        frame = Fixtures.frame(bottle);
+        snapshot = bottle.acquireSnapshot();
+    }
+
+    /**
+     * Release the snapshot.
+     */
+    @TearDown
+    public final void tearDown() {
+        snapshot.release();
+        frame.dispose();
+    }
+
+    /**
+     * Render one frame.
+     * @return the frame, so rendering is not eliminated
+     */
+    @Benchmark
+    public final Frame render() {
+        renderer.render(frame, snapshot);
+        return frame;
+    }
+}
@@ -0,0 +1,46 @@
+package liquid;
+
+import java.util.concurrent.TimeUnit;
+import org.jbox2d.dynamics.World;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Physics: one World.step with the bottle's solver settings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StepBench {
+
+    /** Number of balls in the bottle. */
+    @Param({"100", "400", "1600"})
+    private int balls;
+
+    private World world;
+
+    /**
+     * Build and settle the bottle.
+     */
+    @Setup
+    public final void setup() {
+        world = Fixtures.settled(balls).getWorld();
+    }
+
+    /**
+     * Advance the world by one step.
+     * @return the world, so the step is not eliminated
+     */
+    @Benchmark
+    public final World step() {
+        world.step(1f / Bottle.FPS, Bottle.V_ITERATIONS,
+                   Bottle.P_ITERATIONS);
+        return world;
+    }
+}
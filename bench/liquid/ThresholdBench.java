@@ -0,0 +1,49 @@
+package liquid;
+
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The standalone threshold pass over a blurred frame. The pass works
+ * in place, so after the first invocation it sees its own output;
+ * the work per pixel is the same either way.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ThresholdBench {
+
+    private int[] pixels;
+    private Threshold threshold;
+
+    /**
+     * Blur a rasterized bottle as the input.
+     */
+    @Setup
+    public final void setup() {
+        Frame frame = Fixtures.raster(Fixtures.settled(Fixtures.BALLS));
+        int[] src = frame.getPixels();
+        pixels = new int[src.length];
+        new Blur(Renderer.KERNEL_SIZE, Blur.Mode.GAUSSIAN)
+            .filter(src, pixels, frame.getWidth(), frame.getHeight(), null);
+        threshold = new Threshold(Renderer.THRESHOLD, Color.WHITE,
+                                  Color.BLACK);
+    }
+
+    /**
+     * Threshold every pixel.
+     * @return the pixels, so the pass is not eliminated
+     */
+    @Benchmark
+    public final int[] threshold() {
+        threshold.apply(pixels, 0, pixels.length);
+        return pixels;
+    }
+}
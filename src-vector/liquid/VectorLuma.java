@@ -0,0 +1,140 @@
+package liquid;
+
+import java.util.Arrays;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The {@link Luma} passes with the incubating Vector API, a run of
+ * adjacent pixels of a row at a time. Each lane accumulates its pixel
+ * in the same order as the scalar loop and no multiply is fused with
+ * an add, so the results are identical. Pixels left over at the end
+ * of a row go through the scalar loop.
+ *
+ * This is compiled and run only with --add-modules jdk.incubator.vector.
+ */
+final class VectorLuma extends Luma {
+
+    private static final VectorSpecies<Float> FLOATS =
+        FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS =
+        IntVector.SPECIES_PREFERRED;
+
+    private static final int MASK = 0xff;
+    private static final int GRAY = 0x010101;
+    private static final int CHANNELS = 3;
+
+    /**
+     * Create the vector implementation. Fails with a LinkageError when
+     * the Vector API module is not present.
+     */
+    VectorLuma() {
+        if (FLOATS.length() != INTS.length()) {
+            throw new IllegalStateException("mismatched lane counts");
+        }
+    }
+
+    @Override
+    String name() {
+        return "vector, " + FLOATS.length() + " lanes";
+    }
+
+    @Override
+    void vertical(final int[] src, final int[] dst, final int width,
+                  final int height, final float[] k, final int x0,
+                  final int x1, final int y0, final int y1) {
+        int half = k.length / 2;
+        int bound = x0 + INTS.loopBound(x1 - x0);
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            if (y < half || y >= height - half) {
+                Arrays.fill(dst, row + x0, row + x1, 0);
+                continue;
+            }
+            int top = row - half * width;
+            for (int x = x0; x < bound; x += INTS.length()) {
+                FloatVector sum = FloatVector.zero(FLOATS);
+                int i = top + x;
+                for (int j = 0; j < k.length; j++, i += width) {
+                    sum = sum.add(luma(src, i).mul(k[j]));
+                }
+                gray(sum).intoArray(dst, row + x);
+            }
+            verticalRun(src, dst, width, k, y, bound, x1);
+        }
+    }
+
+    @Override
+    void horizontal(final int[] src, final int[] dst, final int width,
+                    final float[] k, final Threshold t, final int x0,
+                    final int x1, final int y0, final int y1) {
+        int half = k.length / 2;
+        int empty = 0;
+        IntVector on = null;
+        IntVector off = null;
+        int limit = 0;
+        if (t != null) {
+            empty = t.apply(0);
+            on = IntVector.broadcast(INTS, t.getOn());
+            off = IntVector.broadcast(INTS, t.getOff());
+            limit = t.getLimit();
+        }
+        int lo = innerFrom(k, x0, x1);
+        int hi = innerTo(k, width, x0, x1);
+        int bound = lo + INTS.loopBound(hi - lo);
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            Arrays.fill(dst, row + x0, row + lo, empty);
+            Arrays.fill(dst, row + hi, row + x1, empty);
+            for (int x = lo; x < bound; x += INTS.length()) {
+                FloatVector sum = FloatVector.zero(FLOATS);
+                int i = row + x - half;
+                for (int j = 0; j < k.length; j++, i++) {
+                    sum = sum.add(luma(src, i).mul(k[j]));
+                }
+                IntVector v = clamp(sum);
+                if (t == null) {
+                    v.mul(GRAY).intoArray(dst, row + x);
+                } else {
+                    VectorMask<Integer> lit = v.mul(CHANNELS)
+                        .compare(VectorOperators.GT, limit);
+                    off.blend(on, lit).intoArray(dst, row + x);
+                }
+            }
+            horizontalRun(src, dst, width, k, t, y, bound, hi);
+        }
+    }
+
+    /**
+     * Load a run of packed gray pixels as one luminance value per lane.
+     * @param src  packed pixels
+     * @param i    index of the first pixel
+     * @return the luminance values, 0 to 255
+     */
+    private static FloatVector luma(final int[] src, final int i) {
+        return (FloatVector) IntVector.fromArray(INTS, src, i)
+            .and(MASK).convert(VectorOperators.I2F, 0);
+    }
+
+    /**
+     * Truncate and clamp accumulated values like ConvolveOp does.
+     * @param sum  the accumulated values
+     * @return values between 0 and 255
+     */
+    private static IntVector clamp(final FloatVector sum) {
+        return ((IntVector) sum.convert(VectorOperators.F2I, 0))
+            .max(0).min(MASK);
+    }
+
+    /**
+     * Pack accumulated values as gray pixels.
+     * @param sum  the accumulated values
+     * @return packed gray pixels
+     */
+    private static IntVector gray(final FloatVector sum) {
+        return clamp(sum).mul(GRAY);
+    }
+}
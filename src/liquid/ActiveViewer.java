@@ -0,0 +1,282 @@
+package liquid;
+
+import java.awt.Canvas;
+import java.awt.Graphics;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import lombok.Getter;
+
+/**
+ * Displays a view of a JBox2D world by active rendering: a thread of
+ * its own renders each frame and presents it through a page-flipped
+ * {@link BufferStrategy}, rather than asking Swing to repaint and
+ * waiting for the event dispatch thread to get around to it.
+ *
+ * While the simulation runs, frames are paced to a target frame rate,
+ * each one sampling the simulation as late as possible. Frame times
+ * that pass while a frame is still being produced are dropped rather
+ * than made up, and nothing is ever queued, so what is shown is never
+ * older than one frame. The time from sampling the simulation until
+ * the frame has been shown is recorded as the present latency.
+ */
+public final class ActiveViewer extends Canvas
+    implements Display, StepBus.Listener {
+
+    private static final long serialVersionUID = 1L;
+    private static final long NANOS = 1000000000L;
+    /* Nanoseconds before a frame is due to stop sleeping and spin. */
+    private static final long SPIN = 500000L;
+    private static final int BUFFERS = 2;
+
+    @Getter private final transient Simulation simulation;
+    @Getter private final Renderer.Options options = new Renderer.Options();
+    private final transient Renderer renderer;
+    private final transient FrameStats stats;
+    private final transient StepBus.Subscription subscription;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private transient volatile Thread thread;
+    private transient BufferStrategy strategy;
+    private transient Frame frame; // render thread only
+    private volatile boolean running = false;
+    private volatile long period;
+    private volatile boolean overlay = false;
+    /* Solver quality level of the latest step, -1 if not governed. */
+    private volatile int quality = -1;
+
+    /**
+     * Create an active display of a simulation.
+     * @param simulation  the simulation to be displayed
+     */
+    public ActiveViewer(final Simulation simulation) {
+        this.simulation = simulation;
+        setPreferredSize(Renderer.size(simulation.getView()));
+        stats = simulation.getStats();
+        stats.register();
+        renderer = new Renderer(options);
+        renderer.setStats(stats);
+        setFrameRate(Viewer.FRAME_RATE);
+        subscription = simulation.subscribe(this, 1, StepBus.Overflow.LATEST);
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        createBufferStrategy(BUFFERS);
+        strategy = getBufferStrategy();
+        running = true;
+        thread = new Thread(new Runnable() {
+                public void run() {
+                    loop();
+                }
+            }, "liquid-present");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        strategy.dispose();
+        super.removeNotify();
+    }
+
+    @Override
+    public void paint(final Graphics g) {
+        request();
+    }
+
+    @Override
+    public void update(final Graphics g) {
+        request();
+    }
+
+    @Override
+    public void step(final Snapshot snapshot) {
+        quality = snapshot.getQuality();
+        request();
+    }
+
+    @Override
+    public void close() {
+        subscription.close();
+    }
+
+    @Override
+    public void setBlur(final boolean set) {
+        options.setBlur(set);
+        request();
+    }
+
+    @Override
+    public void setBlurMode(final Blur.Mode mode) {
+        options.setBlurMode(mode);
+        request();
+    }
+
+    @Override
+    public void setSplat(final boolean set) {
+        options.setSplat(set);
+        request();
+    }
+
+    @Override
+    public void setThreshold(final boolean set) {
+        options.setThreshold(set);
+        request();
+    }
+
+    @Override
+    public void setContour(final boolean set) {
+        options.setContour(set);
+        request();
+    }
+
+    @Override
+    public void setIncremental(final boolean set) {
+        options.setIncremental(set);
+        request();
+    }
+
+    @Override
+    public void setLod(final Renderer.Lod lod, final boolean auto) {
+        options.setLod(lod);
+        if (auto) {
+            options.setBudget(Viewer.FRAME_BUDGET);
+        } else {
+            options.setBudget(0);
+        }
+        request();
+    }
+
+    @Override
+    public void setFrameRate(final int fps) {
+        if (fps > 0) {
+            period = NANOS / fps;
+        } else {
+            period = 0;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void setOverlay(final boolean set) {
+        overlay = set;
+        request();
+    }
+
+    /**
+     * Ask for a frame to be presented outside the frame rate, such as
+     * after a step when not paced or after a change of options.
+     * Requests made while a frame is being produced are coalesced.
+     */
+    private void request() {
+        pending.set(true);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Main loop of the present thread.
+     */
+    private void loop() {
+        long next = System.nanoTime();
+        while (running) {
+            long rate = period;
+            boolean paced = rate > 0 && simulation.isRunning();
+            if (!pending.getAndSet(false) && !paced) {
+                LockSupport.park(this);
+                next = System.nanoTime();
+                continue;
+            }
+            if (paced) {
+                next = pace(next, rate);
+            }
+            if (running) {
+                present(paced);
+            }
+        }
+    }
+
+    /**
+     * Wait for the next frame time, sleeping until shortly before it
+     * and spinning the rest of the way. Requests do not cut the wait
+     * short. Frame times already missed are counted as dropped and the
+     * schedule restarts now, instead of rendering them late.
+     * @param next  when the next frame is due
+     * @param rate  nanoseconds between frames
+     * @return when the frame after it is due
+     */
+    long pace(final long next, final long rate) {
+        long now = System.nanoTime();
+        long due = next;
+        if (now - due > rate) {
+            for (long i = (now - due) / rate; i > 0; i--) {
+                stats.dropped();
+            }
+            due = now;
+        }
+        while (running && due - now > SPIN) {
+            LockSupport.parkNanos(this, due - now - SPIN);
+            now = System.nanoTime();
+        }
+        while (running && now < due) {
+            Thread.yield();
+            now = System.nanoTime();
+        }
+        return due + rate;
+    }
+
+    /**
+     * Render the latest snapshot and show it.
+     * @param paced  whether to place bodies between steps
+     */
+    private void present(final boolean paced) {
+        int w = getWidth();
+        int h = getHeight();
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        if (frame == null || !frame.fits(w, h)) {
+            if (frame != null) {
+                frame.dispose();
+            }
+            frame = new Frame(w, h);
+        }
+        long start = System.nanoTime();
+        Snapshot snapshot = simulation.acquireSnapshot();
+        try {
+            float alpha = 1f;
+            if (paced) {
+                alpha = snapshot.alpha(start, simulation.getFps());
+            }
+            renderer.render(frame, snapshot, alpha);
+        } finally {
+            snapshot.release();
+        }
+        do {
+            do {
+                Graphics g = strategy.getDrawGraphics();
+                try {
+                    long blit = System.nanoTime();
+                    g.drawImage(frame.getImage(), 0, 0, null);
+                    stats.since(FrameStats.Stage.BLIT, blit);
+                    if (overlay) {
+                        Viewer.paintOverlay(g, stats, quality, w);
+                    }
+                } finally {
+                    g.dispose();
+                }
+            } while (strategy.contentsRestored());
+            strategy.show();
+        } while (strategy.contentsLost());
+        Toolkit.getDefaultToolkit().sync();
+        stats.since(FrameStats.Stage.PRESENT, start);
+    }
+}
@@ -0,0 +1,153 @@
+package liquid;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+/**
+ * Renders a simulation offline, without a window and as fast as the
+ * machine allows. The simulation is stepped on the calling thread
+ * while frames are rendered by a pool of workers, each with its own
+ * {@link Renderer} and therefore its own blur buffers and kernels.
+ * Every frame is rendered at the viewer's natural size with the same
+ * code the viewer uses.
+ *
+ * Frames are numbered in step order. A sink that accepts frames in any
+ * order is written by the workers directly; a sequential sink is
+ * written by the calling thread as frames complete in order. A fixed
+ * set of output frames bounds how far stepping can run ahead.
+ */
+@Log
+public final class Batch {
+
+    private static final double NANOS = 1e9;
+
+    private final Simulation simulation;
+    private final Sink sink;
+    private final Dimension size;
+    private final ExecutorService workers;
+    private final BlockingQueue<Frame> free;
+    private final ThreadLocal<Renderer> renderers;
+    private final int window;
+
+    /** Frames written so far. */
+    @Getter private long frames = 0;
+
+    /**
+     * Prepare a batch render. The simulation must not be running.
+     * @param simulation  the simulation to step and render
+     * @param options     rendering options shared by every worker
+     * @param sink        where frames are written
+     * @param threads     number of rendering threads
+     */
+    public Batch(final Simulation simulation, final Renderer.Options options,
+                 final Sink sink, final int threads) {
+        this.simulation = simulation;
+        this.sink = sink;
+        size = Renderer.size(simulation.getView());
+        window = threads * 2;
+        free = new ArrayBlockingQueue<Frame>(window);
+        for (int i = 0; i < window; i++) {
+            free.add(new Frame(size.width, size.height));
+        }
+        renderers = new ThreadLocal<Renderer>() {
+            @Override
+            protected Renderer initialValue() {
+                return new Renderer(options);
+            }
+        };
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "liquid-batch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    /**
+     * Step the simulation and render one frame per step, then close
+     * the sink. Stops early if the simulation runs out of steps, as a
+     * replay does at the end of its trace.
+     * @param steps  the number of frames to render
+     * @throws IOException if a frame cannot be written
+     */
+    public void run(final long steps) throws IOException {
+        long start = System.nanoTime();
+        Deque<Future<Frame>> pending = new ArrayDeque<Future<Frame>>();
+        try {
+            for (long i = 0; i < steps; i++) {
+                final Snapshot snapshot = simulation.advance();
+                if (snapshot == null) {
+                    break;
+                }
+                /* Published and not yet replaced, so this succeeds. */
+                snapshot.retain();
+                if (pending.size() == window) {
+                    finish(pending.poll());
+                }
+                final Frame frame = free.poll();
+                final long index = i;
+                pending.add(workers.submit(new Callable<Frame>() {
+                        public Frame call() throws IOException {
+                            try {
+                                renderers.get().render(frame, snapshot);
+                            } finally {
+                                snapshot.release();
+                            }
+                            if (!sink.isSequential()) {
+                                sink.write(index, frame.getImage());
+                            }
+                            return frame;
+                        }
+                    }));
+            }
+            while (!pending.isEmpty()) {
+                finish(pending.poll());
+            }
+        } finally {
+            workers.shutdownNow();
+            sink.close();
+        }
+        double seconds = (System.nanoTime() - start) / NANOS;
+        log.info(String.format("batch: %d frames in %.1f s (%.1f fps)",
+                               frames, seconds, frames / seconds));
+    }
+
+    /**
+     * Wait for the oldest frame, write it if the sink is sequential
+     * and recycle its buffer.
+     * @param future  the oldest pending frame
+     * @throws IOException if the frame could not be rendered or written
+     */
+    private void finish(final Future<Frame> future) throws IOException {
+        Frame frame;
+        try {
+            frame = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        if (sink.isSequential()) {
+            sink.write(frames, frame.getImage());
+        }
+        frames++;
+        free.add(frame);
+    }
+}
@@ -0,0 +1,722 @@
+package liquid;
+
+/**
+ * Separable blur over primitive pixel buffers. Buffers are row-major
+ * with no padding between rows, either packed RGB ints or a single
+ * float channel. The vertical pass is split into column bands and
+ * the horizontal pass into row bands, each band running on the shared
+ * {@link Parallel} pool.
+ *
+ * The blur is either an exact Gaussian, identical to convolving with
+ * two ConvolveOps, or three sliding-window box blurs approximating
+ * the same Gaussian whose cost does not depend on the kernel size.
+ * For gray pixels the exact Gaussian can also run on one channel
+ * instead of three, through {@link Luma}, with identical results;
+ * float buffers already have one channel and get the plain Gaussian.
+ *
+ * The packed RGB passes can also be restricted to the dirty
+ * {@link Tiles} of a buffer, leaving the rest of the output as it was.
+ * The Gaussians then compute just those pixels. The box blurs slide
+ * along whole lines, so they redo every line through a dirty tile.
+ *
+ * An instance owns its scratch buffers, so calls on one instance are
+ * serialized. Use one instance per rendering thread.
+ */
+public final class Blur {
+
+    /** How the Gaussian is computed. */
+    public enum Mode {
+        /** Exact Gaussian kernel. */
+        GAUSSIAN,
+        /** Three box blurs approximating the Gaussian. */
+        BOX,
+        /** Exact Gaussian over one channel of gray pixels. */
+        LUMA
+    }
+
+    private static final int MIN_BAND = 8;
+    private static final int BOXES = 3;
+    private static final int BOX_VARIANCE = 12;
+
+    private static final int MASK = 0xff;
+    private static final int RED = 16;
+    private static final int GREEN = 8;
+
+    private final Mode mode;
+    private final float[] kernel;
+    private final int[] radii;
+
+    private int[] tmp = new int[0];
+    private int[] scratch = new int[0];
+    private float[] ftmp = new float[0];
+    private float[] fscratch = new float[0];
+
+    /**
+     * Create a new blur.
+     * @param size  radius of the Gaussian kernel, in pixels
+     * @param mode  how the Gaussian is computed
+     */
+    public Blur(final int size, final Mode mode) {
+        this.mode = mode;
+        kernel = kernel(size);
+        radii = boxes(size / 3f, BOXES);
+    }
+
+    /**
+     * Return the blur mode.
+     * @return how the Gaussian is computed
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Blur a packed RGB buffer, optionally thresholding the result
+     * during the final pass.
+     * @param src        source pixels, left untouched
+     * @param dst        destination pixels, may not be src
+     * @param width      width of the buffers
+     * @param height     height of the buffers
+     * @param threshold  threshold applied to each output pixel, or null
+     */
+    public synchronized void filter(final int[] src, final int[] dst,
+                                    final int width, final int height,
+                                    final Threshold threshold) {
+        reserve(width * height);
+        vertical(src, tmp, width, height);
+        horizontal(tmp, dst, width, height, threshold);
+    }
+
+    /**
+     * Blur a single-channel float buffer.
+     * @param src     source values, left untouched
+     * @param dst     destination values, may not be src
+     * @param width   width of the buffers
+     * @param height  height of the buffers
+     */
+    public synchronized void filter(final float[] src, final float[] dst,
+                                    final int width, final int height) {
+        reserve(width * height);
+        vertical(src, ftmp, width, height);
+        horizontal(ftmp, dst, width, height);
+    }
+
+    /**
+     * Run only the vertical pass over a packed RGB buffer.
+     * @param src     source pixels, left untouched
+     * @param dst     destination pixels, may not be src
+     * @param width   width of the buffers
+     * @param height  height of the buffers
+     */
+    public synchronized void vertical(final int[] src, final int[] dst,
+                                      final int width, final int height) {
+        reserve(width * height);
+        if (mode == Mode.GAUSSIAN) {
+            Parallel.run(width, MIN_BAND, new Parallel.Pass() {
+                    public void run(final int lo, final int hi) {
+                        gaussV(src, dst, width, height, kernel, lo, hi, 0,
+                               height);
+                    }
+                });
+        } else if (mode == Mode.LUMA) {
+            Parallel.run(height, MIN_BAND, new Parallel.Pass() {
+                    public void run(final int lo, final int hi) {
+                        Luma.INSTANCE.vertical(src, dst, width, height,
+                                               kernel, 0, width, lo, hi);
+                    }
+                });
+        } else {
+            boxes(src, dst, width, height, true, null, null);
+        }
+    }
+
+    /**
+     * Run only the horizontal pass over a packed RGB buffer.
+     * @param src        source pixels, left untouched
+     * @param dst        destination pixels, may not be src
+     * @param width      width of the buffers
+     * @param height     height of the buffers
+     * @param threshold  threshold applied to each output pixel, or null
+     */
+    public synchronized void horizontal(final int[] src, final int[] dst,
+                                        final int width, final int height,
+                                        final Threshold threshold) {
+        reserve(width * height);
+        if (mode == Mode.GAUSSIAN) {
+            Parallel.run(height, MIN_BAND, new Parallel.Pass() {
+                    public void run(final int lo, final int hi) {
+                        gaussH(src, dst, width, kernel, threshold, 0, width,
+                               lo, hi);
+                    }
+                });
+        } else if (mode == Mode.LUMA) {
+            Parallel.run(height, MIN_BAND, new Parallel.Pass() {
+                    public void run(final int lo, final int hi) {
+                        Luma.INSTANCE.horizontal(src, dst, width, kernel,
+                                                 threshold, 0, width, lo, hi);
+                    }
+                });
+        } else {
+            boxes(src, dst, width, height, false, threshold, null);
+        }
+    }
+
+    /**
+     * Run only the vertical pass over the dirty tiles of a packed RGB
+     * buffer. The rest of the destination is left as it was.
+     * @param src     source pixels, left untouched
+     * @param dst     destination pixels, may not be src
+     * @param width   width of the buffers
+     * @param height  height of the buffers
+     * @param tiles   the tiles to redo, over buffers of this size
+     */
+    synchronized void vertical(final int[] src, final int[] dst,
+                               final int width, final int height,
+                               final Tiles tiles) {
+        reserve(width * height);
+        if (mode == Mode.BOX) {
+            boxes(src, dst, width, height, true, null, tiles);
+            return;
+        }
+        each(tiles, new Rect() {
+                public void run(final int x0, final int x1, final int y0,
+                                final int y1) {
+                    if (mode == Mode.GAUSSIAN) {
+                        gaussV(src, dst, width, height, kernel, x0, x1, y0,
+                               y1);
+                    } else {
+                        Luma.INSTANCE.vertical(src, dst, width, height,
+                                               kernel, x0, x1, y0, y1);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Run only the horizontal pass over the dirty tiles of a packed RGB
+     * buffer. The rest of the destination is left as it was.
+     * @param src        source pixels, left untouched
+     * @param dst        destination pixels, may not be src
+     * @param width      width of the buffers
+     * @param height     height of the buffers
+     * @param threshold  threshold applied to each output pixel, or null
+     * @param tiles      the tiles to redo, over buffers of this size
+     */
+    synchronized void horizontal(final int[] src, final int[] dst,
+                                 final int width, final int height,
+                                 final Threshold threshold,
+                                 final Tiles tiles) {
+        reserve(width * height);
+        if (mode == Mode.BOX) {
+            boxes(src, dst, width, height, false, threshold, tiles);
+            return;
+        }
+        each(tiles, new Rect() {
+                public void run(final int x0, final int x1, final int y0,
+                                final int y1) {
+                    if (mode == Mode.GAUSSIAN) {
+                        gaussH(src, dst, width, kernel, threshold, x0, x1,
+                               y0, y1);
+                    } else {
+                        Luma.INSTANCE.horizontal(src, dst, width, kernel,
+                                                 threshold, x0, x1, y0, y1);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Run over each run of adjacent dirty tiles in a row of tiles, the
+     * rows of tiles in parallel.
+     * @param tiles  the tiles
+     * @param rect   what to do for each run
+     */
+    private static void each(final Tiles tiles, final Rect rect) {
+        Parallel.run(tiles.getRows(), 1, new Parallel.Pass() {
+                public void run(final int lo, final int hi) {
+                    int columns = tiles.getColumns();
+                    for (int r = lo; r < hi; r++) {
+                        int c = 0;
+                        while (c < columns) {
+                            if (!tiles.isDirty(c, r)) {
+                                c++;
+                                continue;
+                            }
+                            int start = c;
+                            while (c < columns && tiles.isDirty(c, r)) {
+                                c++;
+                            }
+                            rect.run(tiles.left(start), tiles.left(c),
+                                     tiles.top(r), tiles.top(r + 1));
+                        }
+                    }
+                }
+            });
+    }
+
+    /**
+     * Work done for one rectangle of a buffer.
+     */
+    private interface Rect {
+        /**
+         * Process a rectangle.
+         * @param x0  first column (inclusive)
+         * @param x1  last column (exclusive)
+         * @param y0  first row (inclusive)
+         * @param y1  last row (exclusive)
+         */
+        void run(int x0, int x1, int y0, int y1);
+    }
+
+    /**
+     * Run only the vertical pass over a float buffer.
+     * @param src     source values, left untouched
+     * @param dst     destination values, may not be src
+     * @param width   width of the buffers
+     * @param height  height of the buffers
+     */
+    public synchronized void vertical(final float[] src, final float[] dst,
+                                      final int width, final int height) {
+        reserve(width * height);
+        if (mode != Mode.BOX) {
+            Parallel.run(width, MIN_BAND, new Parallel.Pass() {
+                    public void run(final int lo, final int hi) {
+                        gaussV(src, dst, width, height, kernel, lo, hi);
+                    }
+                });
+        } else {
+            boxes(src, dst, width, height, true);
+        }
+    }
+
+    /**
+     * Run only the horizontal pass over a float buffer.
+     * @param src     source values, left untouched
+     * @param dst     destination values, may not be src
+     * @param width   width of the buffers
+     * @param height  height of the buffers
+     */
+    public synchronized void horizontal(final float[] src, final float[] dst,
+                                        final int width, final int height) {
+        reserve(width * height);
+        if (mode != Mode.BOX) {
+            Parallel.run(height, MIN_BAND, new Parallel.Pass() {
+                    public void run(final int lo, final int hi) {
+                        gaussH(src, dst, width, kernel, lo, hi);
+                    }
+                });
+        } else {
+            boxes(src, dst, width, height, false);
+        }
+    }
+
+    /**
+     * Make sure the scratch buffers hold at least the given size.
+     * @param size  number of pixels needed
+     */
+    private void reserve(final int size) {
+        if (tmp.length < size) {
+            tmp = new int[size];
+            scratch = new int[size];
+            ftmp = new float[size];
+            fscratch = new float[size];
+        }
+    }
+
+    /**
+     * Run the three box passes along one axis of a packed RGB buffer.
+     * @param src        source pixels
+     * @param dst        destination pixels
+     * @param width      width of the buffers
+     * @param height     height of the buffers
+     * @param vertical   blur along columns rather than rows
+     * @param threshold  threshold applied during the last pass, or null
+     * @param tiles      only lines through these dirty tiles, or null
+     */
+    private void boxes(final int[] src, final int[] dst,
+                       final int width, final int height,
+                       final boolean vertical, final Threshold threshold,
+                       final Tiles tiles) {
+        int[] in = src;
+        for (int i = 0; i < radii.length; i++) {
+            final int[] from = in;
+            final int[] to;
+            final Threshold t;
+            if ((radii.length - i) % 2 == 1) {
+                to = dst;
+            } else {
+                to = scratch;
+            }
+            if (i == radii.length - 1) {
+                t = threshold;
+            } else {
+                t = null;
+            }
+            final int r = radii[i];
+            if (vertical) {
+                Parallel.run(width, MIN_BAND, new Parallel.Pass() {
+                        public void run(final int lo, final int hi) {
+                            for (int x = lo; x < hi; x++) {
+                                if (tiles == null || tiles.isColumnDirty(
+                                        x / Tiles.SIZE)) {
+                                    box(from, to, x, width, height, r, t);
+                                }
+                            }
+                        }
+                    });
+            } else {
+                Parallel.run(height, MIN_BAND, new Parallel.Pass() {
+                        public void run(final int lo, final int hi) {
+                            for (int y = lo; y < hi; y++) {
+                                if (tiles == null || tiles.isRowDirty(
+                                        y / Tiles.SIZE)) {
+                                    box(from, to, y * width, 1, width, r, t);
+                                }
+                            }
+                        }
+                    });
+            }
+            in = to;
+        }
+    }
+
+    /**
+     * Run the three box passes along one axis of a float buffer.
+     * @param src       source values
+     * @param dst       destination values
+     * @param width     width of the buffers
+     * @param height    height of the buffers
+     * @param vertical  blur along columns rather than rows
+     */
+    private void boxes(final float[] src, final float[] dst,
+                       final int width, final int height,
+                       final boolean vertical) {
+        float[] in = src;
+        for (int i = 0; i < radii.length; i++) {
+            final float[] from = in;
+            final float[] to;
+            if ((radii.length - i) % 2 == 1) {
+                to = dst;
+            } else {
+                to = fscratch;
+            }
+            final int r = radii[i];
+            if (vertical) {
+                Parallel.run(width, MIN_BAND, new Parallel.Pass() {
+                        public void run(final int lo, final int hi) {
+                            for (int x = lo; x < hi; x++) {
+                                box(from, to, x, width, height, r);
+                            }
+                        }
+                    });
+            } else {
+                Parallel.run(height, MIN_BAND, new Parallel.Pass() {
+                        public void run(final int lo, final int hi) {
+                            for (int y = lo; y < hi; y++) {
+                                box(from, to, y * width, 1, width, r);
+                            }
+                        }
+                    });
+            }
+            in = to;
+        }
+    }
+
+    /**
+     * Sliding-window box blur along one line of a packed RGB buffer.
+     * Samples outside the line count as black.
+     * @param src     source pixels
+     * @param dst     destination pixels
+     * @param start   index of the first pixel of the line
+     * @param step    distance between pixels of the line
+     * @param n       number of pixels in the line
+     * @param r       radius of the box
+     * @param t       threshold applied to each output pixel, or null
+     */
+    static void box(final int[] src, final int[] dst, final int start,
+                    final int step, final int n, final int r,
+                    final Threshold t) {
+        float scale = 1f / (r * 2 + 1);
+        int sr = 0;
+        int sg = 0;
+        int sb = 0;
+        for (int i = 0; i < Math.min(r, n); i++) {
+            int rgb = src[start + i * step];
+            sr += (rgb >> RED) & MASK;
+            sg += (rgb >> GREEN) & MASK;
+            sb += rgb & MASK;
+        }
+        for (int i = 0; i < n; i++) {
+            if (i + r < n) {
+                int rgb = src[start + (i + r) * step];
+                sr += (rgb >> RED) & MASK;
+                sg += (rgb >> GREEN) & MASK;
+                sb += rgb & MASK;
+            }
+            int r8 = (int) (sr * scale + 0.5f);
+            int g8 = (int) (sg * scale + 0.5f);
+            int b8 = (int) (sb * scale + 0.5f);
+            if (t == null) {
+                dst[start + i * step] = (r8 << RED) | (g8 << GREEN) | b8;
+            } else {
+                dst[start + i * step] = t.apply(r8, g8, b8);
+            }
+            if (i - r >= 0) {
+                int rgb = src[start + (i - r) * step];
+                sr -= (rgb >> RED) & MASK;
+                sg -= (rgb >> GREEN) & MASK;
+                sb -= rgb & MASK;
+            }
+        }
+    }
+
+    /**
+     * Sliding-window box blur along one line of a float buffer.
+     * Samples outside the line count as zero.
+     * @param src     source values
+     * @param dst     destination values
+     * @param start   index of the first value of the line
+     * @param step    distance between values of the line
+     * @param n       number of values in the line
+     * @param r       radius of the box
+     */
+    static void box(final float[] src, final float[] dst, final int start,
+                    final int step, final int n, final int r) {
+        float scale = 1f / (r * 2 + 1);
+        float sum = 0;
+        for (int i = 0; i < Math.min(r, n); i++) {
+            sum += src[start + i * step];
+        }
+        for (int i = 0; i < n; i++) {
+            if (i + r < n) {
+                sum += src[start + (i + r) * step];
+            }
+            dst[start + i * step] = sum * scale;
+            if (i - r >= 0) {
+                sum -= src[start + (i - r) * step];
+            }
+        }
+    }
+
+    /**
+     * Exact vertical Gaussian over a rectangle of a packed RGB buffer.
+     * Rows closer than the kernel radius to an edge are zero-filled,
+     * as with ConvolveOp.
+     * @param src     source pixels
+     * @param dst     destination pixels
+     * @param width   width of the buffers
+     * @param height  height of the buffers
+     * @param k       the kernel
+     * @param x0      first column (inclusive)
+     * @param x1      last column (exclusive)
+     * @param y0      first row (inclusive)
+     * @param y1      last row (exclusive)
+     */
+    static void gaussV(final int[] src, final int[] dst,
+                       final int width, final int height,
+                       final float[] k, final int x0, final int x1,
+                       final int y0, final int y1) {
+        int half = k.length / 2;
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            if (y < half || y >= height - half) {
+                for (int x = x0; x < x1; x++) {
+                    dst[row + x] = 0;
+                }
+                continue;
+            }
+            for (int x = x0; x < x1; x++) {
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                int i = row - half * width + x;
+                for (int j = 0; j < k.length; j++, i += width) {
+                    int rgb = src[i];
+                    float w = k[j];
+                    r += w * ((rgb >> RED) & MASK);
+                    g += w * ((rgb >> GREEN) & MASK);
+                    b += w * (rgb & MASK);
+                }
+                dst[row + x] = (clamp(r) << RED) | (clamp(g) << GREEN)
+                    | clamp(b);
+            }
+        }
+    }
+
+    /**
+     * Exact horizontal Gaussian over a rectangle of a packed RGB
+     * buffer. Columns closer than the kernel radius to an edge are
+     * zero-filled, as with ConvolveOp.
+     * @param src    source pixels
+     * @param dst    destination pixels
+     * @param width  width of the buffers
+     * @param k      the kernel
+     * @param t      threshold applied to each output pixel, or null
+     * @param x0     first column (inclusive)
+     * @param x1     last column (exclusive)
+     * @param y0     first row (inclusive)
+     * @param y1     last row (exclusive)
+     */
+    static void gaussH(final int[] src, final int[] dst, final int width,
+                       final float[] k, final Threshold t,
+                       final int x0, final int x1,
+                       final int y0, final int y1) {
+        int half = k.length / 2;
+        int empty = 0;
+        if (t != null) {
+            empty = t.apply(0);
+        }
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            for (int x = x0; x < x1; x++) {
+                if (x < half || x >= width - half) {
+                    dst[row + x] = empty;
+                    continue;
+                }
+                float r = 0;
+                float g = 0;
+                float b = 0;
+                int i = row + x - half;
+                for (int j = 0; j < k.length; j++, i++) {
+                    int rgb = src[i];
+                    float w = k[j];
+                    r += w * ((rgb >> RED) & MASK);
+                    g += w * ((rgb >> GREEN) & MASK);
+                    b += w * (rgb & MASK);
+                }
+                if (t == null) {
+                    dst[row + x] = (clamp(r) << RED) | (clamp(g) << GREEN)
+                        | clamp(b);
+                } else {
+                    dst[row + x] = t.apply(clamp(r), clamp(g), clamp(b));
+                }
+            }
+        }
+    }
+
+    /**
+     * Exact vertical Gaussian over a band of columns of a float buffer.
+     * @param src     source values
+     * @param dst     destination values
+     * @param width   width of the buffers
+     * @param height  height of the buffers
+     * @param k       the kernel
+     * @param x0      first column (inclusive)
+     * @param x1      last column (exclusive)
+     */
+    static void gaussV(final float[] src, final float[] dst,
+                       final int width, final int height,
+                       final float[] k, final int x0, final int x1) {
+        int half = k.length / 2;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = x0; x < x1; x++) {
+                float sum = 0;
+                int jlo = Math.max(0, half - y);
+                int jhi = Math.min(k.length, height - y + half);
+                int i = row + (jlo - half) * width + x;
+                for (int j = jlo; j < jhi; j++, i += width) {
+                    sum += k[j] * src[i];
+                }
+                dst[row + x] = sum;
+            }
+        }
+    }
+
+    /**
+     * Exact horizontal Gaussian over a band of rows of a float buffer.
+     * @param src    source values
+     * @param dst    destination values
+     * @param width  width of the buffers
+     * @param k      the kernel
+     * @param y0     first row (inclusive)
+     * @param y1     last row (exclusive)
+     */
+    static void gaussH(final float[] src, final float[] dst, final int width,
+                       final float[] k, final int y0, final int y1) {
+        int half = k.length / 2;
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                int jlo = Math.max(0, half - x);
+                int jhi = Math.min(k.length, width - x + half);
+                int i = row + x - half + jlo;
+                for (int j = jlo; j < jhi; j++, i++) {
+                    sum += k[j] * src[i];
+                }
+                dst[row + x] = sum;
+            }
+        }
+    }
+
+    /**
+     * Truncate and clamp an accumulated channel like ConvolveOp does.
+     * @param v  the accumulated value
+     * @return a channel value between 0 and 255
+     */
+    private static int clamp(final float v) {
+        return Math.max(0, Math.min(MASK, (int) v));
+    }
+
+    /**
+     * Make a normalized one-dimensional Gaussian kernel.
+     * @param size  the radius of the kernel
+     * @return the kernel, 2 * size + 1 wide
+     */
+    public static float[] kernel(final int size) {
+        float radius = size;
+        int rows = size * 2 + 1;
+        float[] matrix = new float[rows];
+        float sigma = radius / 3;
+        float sigma22 = 2 * sigma * sigma;
+        float sigmaPi2 = 2 * (float) Math.PI * sigma;
+        float sqrtSigmaPi2 = (float) Math.sqrt(sigmaPi2);
+        float radius2 = radius * radius;
+        float total = 0;
+        int index = 0;
+        for (int row = -size; row <= size; row++) {
+            float distance = row * row;
+            if (distance > radius2) {
+                matrix[index] = 0;
+            } else {
+                matrix[index] = (float) Math.exp(-(distance) / sigma22)
+                    / sqrtSigmaPi2;
+            }
+            total += matrix[index];
+            index++;
+        }
+        for (int i = 0; i < rows; i++) {
+            matrix[i] /= total;
+        }
+        return matrix;
+    }
+
+    /**
+     * Compute box radii whose repeated application approximates a
+     * Gaussian of the given standard deviation.
+     * @param sigma  the standard deviation to approximate
+     * @param n      the number of boxes
+     * @return the radius of each box
+     */
+    static int[] boxes(final float sigma, final int n) {
+        double ideal = Math.sqrt(BOX_VARIANCE * sigma * sigma / n + 1);
+        int wl = (int) Math.floor(ideal);
+        if (wl % 2 == 0) {
+            wl--;
+        }
+        int wu = wl + 2;
+        double mideal = (BOX_VARIANCE * sigma * sigma - n * wl * wl
+                         - 4 * n * wl - 3 * n) / (-4.0 * wl - 4);
+        long m = Math.round(mideal);
+        int[] radii = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (i < m) {
+                radii[i] = (wl - 1) / 2;
+            } else {
+                radii[i] = (wu - 1) / 2;
+            }
+        }
+        return radii;
+    }
+}
@@ -1,120 +1,383 @@
 package liquid;
 
 import java.awt.geom.Rectangle2D;
-import java.util.Observable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import lombok.Getter;
 import lombok.extern.java.Log;
+import org.jbox2d.callbacks.QueryCallback;
+import org.jbox2d.collision.AABB;
 import org.jbox2d.collision.shapes.CircleShape;
 import org.jbox2d.collision.shapes.PolygonShape;
+import org.jbox2d.collision.shapes.Shape;
 import org.jbox2d.common.Vec2;
 import org.jbox2d.dynamics.Body;
 import org.jbox2d.dynamics.BodyDef;
 import org.jbox2d.dynamics.BodyType;
+import org.jbox2d.dynamics.Fixture;
 import org.jbox2d.dynamics.FixtureDef;
 import org.jbox2d.dynamics.World;
 
 /**
- * A simulated bottle containing a chunky liquid (large solid particles).
+ * A simulated bottle containing a chunky liquid (large solid particles),
+ * or several, each with its own {@link Liquid} density and friction.
+ *
+ * Optionally, balls that have come to rest sleep, so they cost nothing
+ * to step and, not moving, nothing to render incrementally. JBox2D's
+ * own sleeping puts whole islands of touching bodies to sleep at once,
+ * which a pile of balls that keeps settling never is, so instead each
+ * ball that has stayed put for a while is made static until gravity
+ * flips or a moving ball touches it. Resting balls do not touch each
+ * other as far as JBox2D is concerned, so wakes spread by distance: a
+ * ball that moves, or has just woken, wakes the resting balls next to
+ * it, and a resting ball with nothing left under it wakes by itself.
+ * Snapshots report resting balls as dynamic all the same.
  */
 @Log
-public class Bottle extends Observable {
+public class Bottle extends Simulation implements WarmStart.State {
 
     /* Solver */
-    private static final int FPS = 30;
-    private static final int V_ITERATIONS = 8;
-    private static final int P_ITERATIONS = 3;
-    private static final double MILLIS = 1000.0;
+    /** Default steps per second of world time. */
+    static final int FPS = 30;
+    /** Velocity constraint solver iterations per step. */
+    static final int V_ITERATIONS = 8;
+    /** Position constraint solver iterations per step. */
+    static final int P_ITERATIONS = 3;
+    /**
+     * Solver quality levels, cheapest first: velocity iterations,
+     * position iterations and substeps per step.
+     */
+    static final int[][] QUALITY = {
+        {2, 1, 1}, {4, 2, 1}, {6, 2, 1}, {V_ITERATIONS, P_ITERATIONS, 1},
+        {10, 4, 1}, {V_ITERATIONS, P_ITERATIONS, 2}, {10, 4, 2},
+    };
+    /** Quality level of the default iteration counts. */
+    static final int QUALITY_DEFAULT = 3;
+    /*
+     * How far a ball may wander, and for how long, before it rests when
+     * sleeping. A ball in a pile keeps bobbing by about gravity over the
+     * step rate squared, and creeps as the pile settles, so this goes by
+     * distance rather than speed and must stay well above the bobbing.
+     */
+    private static final float REST_DISTANCE = 0.3f;
+    private static final double REST_TIME = 0.5;
+    /*
+     * Speed, in steps' worth of gravity, above which a ball wakes the
+     * resting balls next to it. A ball just woken gains about one before
+     * the pile holds it up again, and bobbing stays below that, so this
+     * must be well above one or wakes would run through a resting pile.
+     */
+    private static final float WAKE_STEPS = 2f;
+    /*
+     * Distance between centers, in radii, of balls next to each other.
+     * A ball that wakes others may have crept up to REST_DISTANCE away
+     * from them since they last touched, which counts too.
+     */
+    private static final float TOUCH = 2.1f;
+    /* Cost of a substep besides its iterations, in iterations. */
+    private static final double SUBSTEP_COST = 6;
+    private static final double MILLIS = 1e6;
 
     /* World */
-    private static final float WIDTH = 50f;
-    private static final float HEIGHT = 70f;
-    private static final float THICKNESS = 0.1f;
-    private static final Vec2 GRAVITY = new Vec2(0, -60f);
-    private static final Rectangle2D VIEW =
+    /** Inside width of the bottle. */
+    static final float WIDTH = 50f;
+    /** Inside height of the bottle. */
+    static final float HEIGHT = 70f;
+    /** Thickness of the bottle walls. */
+    static final float THICKNESS = 0.1f;
+    /** Default acceleration due to gravity, towards the floor. */
+    static final float GRAVITY = 60f;
+    /** The whole bottle. */
+    static final Rectangle2D VIEW =
         new Rectangle2D.Float(-WIDTH / 2, -HEIGHT / 2, WIDTH, HEIGHT);
-    private static final double FLIP_RATE = 3.5; // seconds
+    /** Default seconds between gravity flips. */
+    static final double FLIP_RATE = 3.5;
 
     /* Balls */
-    private static final int BALLS = 400;
-    private static final float BALL_RADIUS = 0.5f;
-    private static final float BALL_DENSITY = 1f;
-    private static final float BALL_FRICTION = 0f;
-    private static final float BALL_RESTITUTION = 0.3f;
+    /** Default number of balls. */
+    static final int BALLS = 400;
+    /** Radius of each ball. */
+    static final float BALL_RADIUS = 0.5f;
+    /** Default fraction of speed kept when a ball bounces. */
+    static final float BALL_RESTITUTION = 0.3f;
 
-    private static final float SPIKE_THICKNESS = 12f;
-    private static final float SPIKE_EXTENT = 20f;
+    /** Height of a spike where it meets the wall. */
+    static final float SPIKE_THICKNESS = 12f;
+    /** Distance from the center to the point of a spike. */
+    static final float SPIKE_EXTENT = 20f;
 
     @Getter private final World world;
     @Getter private double time = 0; // World time
-    private boolean running = false;
-    private static final ScheduledExecutorService EXEC =
-        Executors.newSingleThreadScheduledExecutor();
+    private long steps = 0;
+    private final Vec2 gravity;
+    private final double flipRate;
+    private final float restitution;
+    private final Governor governor;
+    private final boolean sleep;
+    /* Every ball, in body order. */
+    private final List<Ball> balls = new ArrayList<Ball>();
+    /* Balls woken by the current step, and the query that finds them. */
+    private final List<Ball> woken = new ArrayList<Ball>();
+    private final Neighbors neighbors = new Neighbors();
+    private final Support support = new Support();
+    /* Whether gravity currently points up. */
+    private boolean flipped = false;
 
     /**
      * Create a new bottle.
      */
     public Bottle() {
-        world = new World(GRAVITY, false);
+        this(BALLS);
+    }
+
+    /**
+     * Create a new bottle with a given number of balls.
+     * @param balls  the number of balls
+     */
+    public Bottle(final int balls) {
+        this(balls, FPS);
+    }
+
+    /**
+     * Create a new bottle with a given number of balls and step rate.
+     * Higher rates make the simulation more stable and more costly.
+     * @param balls  the number of balls
+     * @param hz     steps per second of world time
+     */
+    public Bottle(final int balls, final int hz) {
+        this(parameters(balls, hz));
+    }
+
+    /**
+     * Create a new bottle with the given parameters.
+     * @param p  the parameters, copied so they can be changed later
+     */
+    public Bottle(final Parameters p) {
+        gravity = new Vec2(0, -p.getGravity());
+        flipRate = p.getFlipRate();
+        restitution = p.getRestitution();
+        governor = new Governor(costs(), p.getMinQuality(),
+                                p.getMaxQuality(), QUALITY_DEFAULT,
+                                (long) (p.getBudget() * MILLIS));
+        sleep = p.isSleep();
+        world = new World(gravity, false);
         /* Set up the containment box. */
         buildContainer();
 
-        /* Add a ball. */
-        Random rng = new Random();
-        for (int i = 0; i < BALLS; i++) {
-            addBall((rng.nextFloat() - 0.5f) * (WIDTH - BALL_RADIUS),
-                    (rng.nextFloat() - 0.5f) * (HEIGHT - BALL_RADIUS));
+        /* Add a ball, taking turns between the liquids. */
+        Random rng = p.random();
+        int liquids = Math.max(1, Math.min(Liquid.MAX, p.getLiquids()));
+        for (int i = 0; i < p.getBalls(); i++) {
+            float x;
+            float y;
+            do {
+                x = (rng.nextFloat() - 0.5f) * (WIDTH - BALL_RADIUS);
+                y = (rng.nextFloat() - 0.5f) * (HEIGHT - BALL_RADIUS);
+            } while (spiked(x, y));
+            addBall(x, y, i % liquids);
         }
         addSpike(SPIKE_EXTENT, 0, 1);
         addSpike(-SPIKE_EXTENT, 0, -1);
-        EXEC.scheduleAtFixedRate(new Runnable() {
-                public void run() {
-                    if (running) {
-                        world.step(1f / FPS, V_ITERATIONS, P_ITERATIONS);
-                        time += 1.0 / FPS;
-                        setChanged();
-                        notifyObservers();
-                        if (Math.sin(time / FLIP_RATE * Math.PI) < 0) {
-                            world.setGravity(GRAVITY.negate());
-                        } else {
-                            world.setGravity(GRAVITY);
-                        }
-                    }
-                }
-            }, 0L, (long) (MILLIS / FPS), TimeUnit.MILLISECONDS);
+        layout(world.getBodyCount(), shapes());
+        capture();
+        schedule(p.getHz());
+    }
+
+    @Override
+    protected final Snapshot step() {
+        long start = System.nanoTime();
+        int[] q = QUALITY[governor.getLevel()];
+        for (int i = 0; i < q[2]; i++) {
+            world.step(1f / getFps() / q[2], q[0], q[1]);
+        }
+        time += 1.0 / getFps();
+        steps++;
+        if (sleep) {
+            settle();
+        }
+        Snapshot snapshot = capture();
+        governor.update(System.nanoTime() - start);
+        boolean up = Math.sin(time / flipRate * Math.PI) < 0;
+        if (up) {
+            world.setGravity(gravity.negate());
+        } else {
+            world.setGravity(gravity);
+        }
+        if (up != flipped && sleep) {
+            wake();
+        }
+        flipped = up;
+        return snapshot;
     }
 
     /**
-     * Run the simulation.
+     * Wake the resting balls next to a ball that is moving, and those
+     * left with nothing under them, and the resting balls next to any of
+     * those, then rest the balls that have stayed put long enough. Wakes
+     * spread one ball further each step for as long as balls move.
      */
-    public final void start() {
-        running = true;
+    private void settle() {
+        float fast = gravity.length() / getFps() * WAKE_STEPS;
+        woken.clear();
+        for (Ball ball : balls) {
+            ball.track(1.0 / getFps());
+            if (!ball.resting && (ball.moved
+                || ball.body.getLinearVelocity().length() > fast)) {
+                neighbors.wake(ball);
+            }
+            ball.last.set(ball.body.getPosition());
+        }
+        for (Ball ball : balls) {
+            if (ball.resting && !support.holds(ball)) {
+                ball.wake();
+                woken.add(ball);
+            }
+        }
+        for (int i = 0, n = woken.size(); i < n; i++) {
+            neighbors.wake(woken.get(i));
+        }
+        for (Ball ball : balls) {
+            if (!ball.resting && ball.still >= REST_TIME) {
+                ball.rest();
+            }
+        }
     }
 
     /**
-     * Stop the simulation, which can be restarted again.
+     * Wake every resting ball.
      */
-    public final void stop() {
-        running = false;
+    private void wake() {
+        for (Ball ball : balls) {
+            if (ball.resting) {
+                ball.wake();
+            }
+        }
+    }
+
+    @Override
+    public final Rectangle2D getView() {
+        return VIEW;
+    }
+
+    /* Floats saved per ball: position, angle and velocities. */
+    private static final int SAVED = 6;
+
+    @Override
+    public final float[] save() {
+        float[] state = new float[balls.size() * SAVED];
+        int i = 0;
+        for (Ball ball : balls) {
+            Body b = ball.body;
+            state[i++] = b.getPosition().x;
+            state[i++] = b.getPosition().y;
+            state[i++] = b.getAngle();
+            state[i++] = b.getLinearVelocity().x;
+            state[i++] = b.getLinearVelocity().y;
+            state[i++] = b.getAngularVelocity();
+        }
+        return state;
+    }
+
+    @Override
+    public final void restore(final float[] state) {
+        int i = 0;
+        for (Ball ball : balls) {
+            if (ball.resting) {
+                ball.wake();
+            }
+            Body b = ball.body;
+            b.setTransform(new Vec2(state[i], state[i + 1]), state[i + 2]);
+            b.setLinearVelocity(new Vec2(state[i + 3], state[i + 4]));
+            b.setAngularVelocity(state[i + SAVED - 1]);
+            b.setAwake(true);
+            ball.anchor.set(b.getPosition());
+            ball.last.set(b.getPosition());
+            ball.still = 0;
+            i += SAVED;
+        }
+        capture();
     }
 
     /**
-     * Return true if the simulation is running.
-     * @return true if the simulation is running
+     * Build default parameters with the given ball count and rate.
+     * @param balls  the number of balls
+     * @param hz     steps per second of world time
+     * @return the parameters
      */
-    public final boolean isRunning() {
-        return running;
+    static Parameters parameters(final int balls, final int hz) {
+        Parameters p = new Parameters();
+        p.setBalls(balls);
+        p.setHz(hz);
+        return p;
     }
 
     /**
-     * Specify the area of interest for this world.
-     * @return a rectangle specifying where things are happening
+     * Estimate the relative cost of each quality level.
+     * @return costs, in the order of QUALITY
      */
-    public final Rectangle2D getView() {
-        return VIEW;
+    private static double[] costs() {
+        double[] costs = new double[QUALITY.length];
+        for (int i = 0; i < costs.length; i++) {
+            int[] q = QUALITY[i];
+            costs[i] = q[2] * (q[0] + q[1] + SUBSTEP_COST);
+        }
+        return costs;
+    }
+
+    /**
+     * Copy the state of every body into a fresh snapshot and publish it.
+     * @return the published snapshot
+     */
+    private Snapshot capture() {
+        Snapshot s = claim();
+        float[] x = s.getX();
+        float[] y = s.getY();
+        float[] angle = s.getAngle();
+        float[] radius = s.getRadius();
+        byte[] type = s.getType();
+        byte[] liquid = s.getLiquid();
+        int i = 0;
+        for (Body b = world.getBodyList(); b != null; b = b.getNext(), i++) {
+            Vec2 pos = b.getPosition();
+            x[i] = pos.x;
+            y[i] = pos.y;
+            angle[i] = b.getAngle();
+            type[i] = (byte) b.getType().ordinal();
+            Shape shape = b.getFixtureList().getShape();
+            if (shape instanceof CircleShape) {
+                radius[i] = shape.m_radius;
+            }
+            if (b.getUserData() instanceof Ball) {
+                type[i] = Snapshot.DYNAMIC;
+                liquid[i] = (byte) ((Ball) b.getUserData()).liquid;
+            }
+        }
+        s.stamp(steps, time, governor.getLevel());
+        publish(s);
+        return s;
+    }
+
+    /**
+     * Collect the local vertices of every polygon body, in body order.
+     * @return vertex arrays, null for bodies that are not polygons
+     */
+    private float[][] shapes() {
+        float[][] shapes = new float[world.getBodyCount()][];
+        int i = 0;
+        for (Body b = world.getBodyList(); b != null; b = b.getNext(), i++) {
+            Shape shape = b.getFixtureList().getShape();
+            if (shape instanceof PolygonShape) {
+                PolygonShape poly = (PolygonShape) shape;
+                float[] v = new float[poly.getVertexCount() * 2];
+                for (int j = 0; j < poly.getVertexCount(); j++) {
+                    v[j * 2] = poly.getVertex(j).x;
+                    v[j * 2 + 1] = poly.getVertex(j).y;
+                }
+                shapes[i] = v;
+            }
+        }
+        return shapes;
     }
 
     /**
@@ -142,12 +405,27 @@ public class Bottle extends Observable {
         world.createBody(def).createFixture(box, 0f);
     }
 
+    /**
+     * Return true if a ball placed at a point would overlap a spike. A
+     * ball placed there is stuck, pushed out of the spike every step,
+     * and the balls piled against it can then never rest.
+     * @param x  the x-coordinate of the ball
+     * @param y  the y-coordinate of the ball
+     * @return true if the ball would overlap either spike
+     */
+    private static boolean spiked(final float x, final float y) {
+        return Math.abs(x) > SPIKE_EXTENT - BALL_RADIUS
+            && Math.abs(y) < SPIKE_THICKNESS / 2 + BALL_RADIUS;
+    }
+
     /**
      * Add a new ball body to the world.
-     * @param x      the x-coordinate of the ball
-     * @param y      the y-coordinate of the ball
+     * @param x       the x-coordinate of the ball
+     * @param y       the y-coordinate of the ball
+     * @param liquid  index of the ball's {@link Liquid}
      */
-    private void addBall(final float x, final float y) {
+    private void addBall(final float x, final float y, final int liquid) {
+        Liquid l = Liquid.ALL[liquid];
         BodyDef def = new BodyDef();
         def.position = new Vec2(x, y);
         def.type = BodyType.DYNAMIC;
@@ -155,10 +433,14 @@ public class Bottle extends Observable {
         circle.m_radius = BALL_RADIUS;
         FixtureDef mass = new FixtureDef();
         mass.shape = circle;
-        mass.density = BALL_DENSITY;
-        mass.friction = BALL_FRICTION;
-        mass.restitution = BALL_RESTITUTION;
-        world.createBody(def).createFixture(mass);
+        mass.density = l.getDensity();
+        mass.friction = l.getFriction();
+        mass.restitution = restitution;
+        Body body = world.createBody(def);
+        body.createFixture(mass);
+        Ball ball = new Ball(body, liquid);
+        body.setUserData(ball);
+        balls.add(ball);
     }
 
     /**
@@ -183,4 +465,177 @@ public class Bottle extends Observable {
         fix.friction = 0f;
         world.createBody(def).createFixture(fix);
     }
+
+    /**
+     * A ball and, when sleeping, how long it has stayed put. A resting
+     * ball is a static body, out of the solver and never moved.
+     */
+    private static final class Ball {
+        private final Body body;
+        private final int liquid;
+        private final Vec2 anchor = new Vec2();
+        /* Where it was after the previous step. */
+        private final Vec2 last = new Vec2();
+        /* Seconds spent near the anchor. */
+        private double still = 0;
+        /* Whether it left its anchor on the last step. */
+        private boolean moved = false;
+        private boolean resting = false;
+
+        /**
+         * Create the record of a ball.
+         * @param body    the ball's body
+         * @param liquid  index of the ball's {@link Liquid}
+         */
+        Ball(final Body body, final int liquid) {
+            this.body = body;
+            this.liquid = liquid;
+            anchor.set(body.getPosition());
+            last.set(body.getPosition());
+        }
+
+        /**
+         * Account for one step, starting over wherever the ball has
+         * wandered too far.
+         * @param dt  seconds in the step
+         */
+        void track(final double dt) {
+            if (resting) {
+                return;
+            }
+            Vec2 pos = body.getPosition();
+            float dx = pos.x - anchor.x;
+            float dy = pos.y - anchor.y;
+            moved = dx * dx + dy * dy > REST_DISTANCE * REST_DISTANCE;
+            if (moved) {
+                anchor.set(pos);
+                still = 0;
+            } else {
+                still += dt;
+            }
+        }
+
+        /**
+         * Take the ball out of the solver where it stands.
+         */
+        void rest() {
+            body.setType(BodyType.STATIC);
+            resting = true;
+        }
+
+        /**
+         * Put the ball back into the solver.
+         */
+        void wake() {
+            body.setType(BodyType.DYNAMIC);
+            body.setAwake(true);
+            anchor.set(body.getPosition());
+            last.set(body.getPosition());
+            still = 0;
+            moved = false;
+            resting = false;
+        }
+    }
+
+    /**
+     * Finds the resting balls next to a ball anywhere along its path
+     * over the last step, so that a fast ball wakes what it left behind
+     * as well as what it reached, and wakes them.
+     */
+    private final class Neighbors implements QueryCallback {
+        private final AABB box = new AABB();
+        private final Vec2 from = new Vec2();
+        private final Vec2 to = new Vec2();
+        private final float reach = BALL_RADIUS * TOUCH + REST_DISTANCE;
+
+        /**
+         * Wake the resting balls next to a ball, noting them as woken.
+         * @param ball  the ball whose neighbors wake
+         */
+        void wake(final Ball ball) {
+            from.set(ball.last);
+            to.set(ball.body.getPosition());
+            box.lowerBound.set(Math.min(from.x, to.x) - reach,
+                               Math.min(from.y, to.y) - reach);
+            box.upperBound.set(Math.max(from.x, to.x) + reach,
+                               Math.max(from.y, to.y) + reach);
+            world.queryAABB(this, box);
+        }
+
+        @Override
+        public boolean reportFixture(final Fixture fixture) {
+            Object data = fixture.getBody().getUserData();
+            if (data instanceof Ball && ((Ball) data).resting) {
+                Ball other = (Ball) data;
+                Vec2 p = other.body.getPosition();
+                /* Distance from the path, a segment, to the other ball. */
+                float sx = to.x - from.x;
+                float sy = to.y - from.y;
+                float length = sx * sx + sy * sy;
+                float t = 0;
+                if (length > 0) {
+                    t = ((p.x - from.x) * sx + (p.y - from.y) * sy) / length;
+                    t = Math.max(0, Math.min(1, t));
+                }
+                float dx = from.x + sx * t - p.x;
+                float dy = from.y + sy * t - p.y;
+                if (dx * dx + dy * dy <= reach * reach) {
+                    other.wake();
+                    woken.add(other);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Finds whether anything holds up a resting ball against gravity: a
+     * wall or spike just under it, or a ball under its middle touching
+     * it. A ball whose support crept away too slowly to wake it wakes
+     * this way instead of hanging in the air.
+     */
+    private final class Support implements QueryCallback {
+        private final AABB box = new AABB();
+        private final Vec2 under = new Vec2();
+        private final float reach = BALL_RADIUS * TOUCH;
+        private Ball ball;
+        private boolean found;
+
+        /**
+         * Return true if something holds up a ball.
+         * @param b  the ball
+         * @return whether it may keep resting
+         */
+        boolean holds(final Ball b) {
+            ball = b;
+            found = false;
+            Vec2 p = b.body.getPosition();
+            Vec2 g = world.getGravity();
+            float scale = reach / 2 / g.length();
+            under.set(p.x + g.x * scale, p.y + g.y * scale);
+            box.lowerBound.set(p.x - reach, p.y - reach);
+            box.upperBound.set(p.x + reach, p.y + reach);
+            world.queryAABB(this, box);
+            return found;
+        }
+
+        @Override
+        public boolean reportFixture(final Fixture fixture) {
+            Body other = fixture.getBody();
+            if (other == ball.body) {
+                return true;
+            }
+            if (other.getUserData() instanceof Ball) {
+                Vec2 p = ball.body.getPosition();
+                Vec2 g = world.getGravity();
+                float dx = other.getPosition().x - p.x;
+                float dy = other.getPosition().y - p.y;
+                found = dx * dx + dy * dy <= reach * reach
+                    && dx * g.x + dy * g.y > 0;
+            } else {
+                found = fixture.testPoint(under);
+            }
+            return !found;
+        }
+    }
 }
@@ -0,0 +1,247 @@
+package liquid;
+
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+
+/**
+ * Traces the outline of the liquid in a blurred density field with
+ * marching squares. Each 2x2 block of samples is a cell, and the
+ * outline crosses the cell edges whose ends lie on opposite sides of
+ * the level, at a point interpolated between the two samples. Cells
+ * are traced in parallel row bands; each crossing records the next one
+ * along its outline, so afterwards the crossings are linked into
+ * closed loops in a single pass.
+ *
+ * Samples on the border of the field count as empty, so every outline
+ * is closed. Buffers are kept between calls and only grow, and an
+ * instance is not thread-safe.
+ */
+public final class Contour {
+
+    private static final int MASK = 0xff;
+    private static final int MIN_ROWS = 8;
+    private static final float QUARTER = 0.25f;
+    private static final int NONE = -1;
+
+    /* Cell corners: top left, top right, bottom right, bottom left. */
+    private static final int A = 8;
+    private static final int B = 4;
+    private static final int C = 2;
+    private static final int D = 1;
+    /* Saddle cells whose center is inside get their own cases. */
+    private static final int SADDLE_BD = 16;
+    private static final int SADDLE_AC = 17;
+
+    /* Cell edges. */
+    private static final int TOP = 0;
+    private static final int RIGHT = 1;
+    private static final int BOTTOM = 2;
+    private static final int LEFT = 3;
+
+    /*
+     * Crossings for each case of inside corners, as pairs of edges
+     * from and to, ordered so that the inside is always on the same
+     * side of the outline.
+     */
+    private static final int[][] SEGMENTS = {
+        {}, {LEFT, BOTTOM}, {BOTTOM, RIGHT}, {LEFT, RIGHT},
+        {RIGHT, TOP}, {RIGHT, TOP, LEFT, BOTTOM}, {BOTTOM, TOP},
+        {LEFT, TOP}, {TOP, LEFT}, {TOP, BOTTOM},
+        {TOP, LEFT, BOTTOM, RIGHT}, {TOP, RIGHT}, {RIGHT, LEFT},
+        {RIGHT, BOTTOM}, {BOTTOM, LEFT}, {},
+        {LEFT, TOP, RIGHT, BOTTOM}, {TOP, RIGHT, BOTTOM, LEFT},
+    };
+
+    /* For each edge id, the next crossing along its outline, or NONE. */
+    private int[] next = new int[0];
+    /* Position of the crossing on each edge id. */
+    private float[] px = new float[0];
+    private float[] py = new float[0];
+
+    private final Path2D.Float path = new Path2D.Float(Path2D.WIND_EVEN_ODD);
+
+    /**
+     * Trace the outline around the samples above a level. Sample (i, j)
+     * sits at ((i + offset) * scale, (j + offset) * scale) in the
+     * output.
+     * @param field   packed gray pixels, only the low byte is read
+     * @param width   width of the field
+     * @param height  height of the field
+     * @param level   samples above this are inside
+     * @param offset  added to sample coordinates
+     * @param scale   output units per sample
+     * @return the outline, reused by the next call
+     */
+    public Path2D trace(final int[] field, final int width, final int height,
+                        final float level, final float offset,
+                        final float scale) {
+        return trace(field, 0, width, height, level, offset, scale);
+    }
+
+    /**
+     * Trace the outline around the samples of one channel of packed
+     * pixels above a level, as {@link #trace(int[], int, int, float,
+     * float, float)} does for the low byte.
+     * @param field   packed pixels
+     * @param shift   bit shift of the channel to read
+     * @param width   width of the field
+     * @param height  height of the field
+     * @param level   samples above this are inside
+     * @param offset  added to sample coordinates
+     * @param scale   output units per sample
+     * @return the outline, reused by the next call
+     */
+    public Path2D trace(final int[] field, final int shift, final int width,
+                        final int height, final float level,
+                        final float offset, final float scale) {
+        reserve(width * height * 2);
+        Parallel.run(height - 1, MIN_ROWS, new Parallel.Pass() {
+                public void run(final int lo, final int hi) {
+                    for (int y = lo; y < hi; y++) {
+                        row(field, shift, width, height, y, level, offset,
+                            scale);
+                    }
+                }
+            });
+        path.reset();
+        for (int start = 0; start < width * height * 2; start++) {
+            if (next[start] == NONE) {
+                continue;
+            }
+            path.moveTo(px[start], py[start]);
+            int e = next[start];
+            next[start] = NONE;
+            while (e != start) {
+                path.lineTo(px[e], py[e]);
+                int n = next[e];
+                next[e] = NONE;
+                e = n;
+            }
+            path.closePath();
+        }
+        return path;
+    }
+
+    /**
+     * Record the crossings of one row of cells.
+     * @param field   the samples
+     * @param shift   bit shift of the channel to read
+     * @param w       width of the field
+     * @param h       height of the field
+     * @param y       the row of cells
+     * @param level   samples above this are inside
+     * @param offset  added to sample coordinates
+     * @param scale   output units per sample
+     */
+    private void row(final int[] field, final int shift, final int w,
+                     final int h, final int y, final float level,
+                     final float offset, final float scale) {
+        for (int x = 0; x < w - 1; x++) {
+            float a = sample(field, shift, w, h, x, y);
+            float b = sample(field, shift, w, h, x + 1, y);
+            float c = sample(field, shift, w, h, x + 1, y + 1);
+            float d = sample(field, shift, w, h, x, y + 1);
+            int cell = 0;
+            if (a > level) {
+                cell |= A;
+            }
+            if (b > level) {
+                cell |= B;
+            }
+            if (c > level) {
+                cell |= C;
+            }
+            if (d > level) {
+                cell |= D;
+            }
+            if ((cell == (B | D) || cell == (A | C))
+                && (a + b + c + d) * QUARTER > level) {
+                if (cell == (B | D)) {
+                    cell = SADDLE_BD;
+                } else {
+                    cell = SADDLE_AC;
+                }
+            }
+            int[] segments = SEGMENTS[cell];
+            for (int i = 0; i < segments.length; i += 2) {
+                int from = edge(w, x, y, segments[i]);
+                next[from] = edge(w, x, y, segments[i + 1]);
+                float cx = x;
+                float cy = y;
+                switch (segments[i]) {
+                case TOP:
+                    cx += (level - a) / (b - a);
+                    break;
+                case RIGHT:
+                    cx += 1;
+                    cy += (level - b) / (c - b);
+                    break;
+                case BOTTOM:
+                    cx += (level - d) / (c - d);
+                    cy += 1;
+                    break;
+                default:
+                    cy += (level - a) / (d - a);
+                    break;
+                }
+                px[from] = (cx + offset) * scale;
+                py[from] = (cy + offset) * scale;
+            }
+        }
+    }
+
+    /**
+     * Read one sample, treating the border of the field as empty.
+     * @param field  the samples
+     * @param shift  bit shift of the channel to read
+     * @param w      width of the field
+     * @param h      height of the field
+     * @param x      column of the sample
+     * @param y      row of the sample
+     * @return the sample value
+     */
+    private static float sample(final int[] field, final int shift,
+                                final int w, final int h, final int x,
+                                final int y) {
+        if (x == 0 || y == 0 || x == w - 1 || y == h - 1) {
+            return 0;
+        }
+        return (field[y * w + x] >> shift) & MASK;
+    }
+
+    /**
+     * Identify an edge of a cell. Horizontal edges have even ids and
+     * vertical edges odd ids, so neighboring cells agree on them.
+     * @param w     width of the field
+     * @param x     column of the cell
+     * @param y     row of the cell
+     * @param side  which edge of the cell
+     * @return the edge id
+     */
+    private static int edge(final int w, final int x, final int y,
+                            final int side) {
+        switch (side) {
+        case TOP:
+            return (y * w + x) * 2;
+        case RIGHT:
+            return (y * w + x + 1) * 2 + 1;
+        case BOTTOM:
+            return ((y + 1) * w + x) * 2;
+        default:
+            return (y * w + x) * 2 + 1;
+        }
+    }
+
+    /**
+     * Make room for a number of edge ids.
+     * @param size  the number of edge ids
+     */
+    private void reserve(final int size) {
+        if (next.length < size) {
+            next = new int[size];
+            Arrays.fill(next, NONE);
+            px = new float[size];
+            py = new float[size];
+        }
+    }
+}
@@ -6,30 +6,49 @@ import java.awt.event.ActionListener;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JPanel;
 import lombok.val;
 
 /**
- * Control panel for a bottle and viewer.
+ * Control panel for a simulation and its display.
  */
 public final class Controls extends JPanel {
 
     private static final long serialVersionUID = 1L;
     private static final int GAP = 10;
+    /* Choices of detail, by Renderer.Lod, then automatic. */
+    private static final String[] DETAIL = {
+        "Full detail", "1/2 detail", "1/4 detail", "Auto detail",
+    };
 
-    private final Bottle bottle;
-    private final Viewer viewer;
+    private final Simulation simulation;
+    private final Display viewer;
 
     /**
-     * Create a new control panel for the given bottle and viewer.
-     * @param bottle  the bottle to be controlled
-     * @param viewer  the viewer to be controlled
+     * Create a new control panel for the given simulation and display,
+     * showing full detail.
+     * @param simulation  the simulation to be controlled
+     * @param viewer      the display to be controlled
      */
-    public Controls(final Bottle bottle, final Viewer viewer) {
-        this.bottle = bottle;
+    public Controls(final Simulation simulation, final Display viewer) {
+        this(simulation, viewer, Renderer.Lod.FULL, false);
+    }
+
+    /**
+     * Create a new control panel for the given simulation and display,
+     * showing the level of detail the display starts at.
+     * @param simulation  the simulation to be controlled
+     * @param viewer      the display to be controlled
+     * @param lod         the display's starting level of detail
+     * @param auto        whether the display picks the level itself
+     */
+    public Controls(final Simulation simulation, final Display viewer,
+                    final Renderer.Lod lod, final boolean auto) {
+        this.simulation = simulation;
         this.viewer = viewer;
 
-        val layout = new GridLayout(2, 2);
+        val layout = new GridLayout(3, 2);
         layout.setHgap(GAP);
         layout.setVgap(GAP);
         setLayout(layout);
@@ -43,27 +62,63 @@ public final class Controls extends JPanel {
             });
         add(threshold);
 
+        val splat = new JCheckBox("Splat", false);
+        splat.addActionListener(new ActionListener() {
+                public void actionPerformed(final ActionEvent e) {
+                    viewer.setSplat(splat.isSelected());
+                }
+            });
+
         val blur = new JCheckBox("Blur", true);
         blur.addActionListener(new ActionListener() {
                 public void actionPerformed(final ActionEvent e) {
                     viewer.setBlur(blur.isSelected());
                     threshold.setEnabled(blur.isSelected());
+                    splat.setEnabled(blur.isSelected());
                 }
             });
         add(blur);
+        add(splat);
 
         val pause = new JButton("Pause");
         pause.addActionListener(new ActionListener() {
                 public void actionPerformed(final ActionEvent e) {
-                    if (bottle.isRunning()) {
-                        bottle.stop();
+                    if (simulation.isRunning()) {
+                        simulation.stop();
                         pause.setText("Play");
                     } else {
-                        bottle.start();
+                        simulation.start();
                         pause.setText("Pause");
                     }
                 }
             });
         add(pause);
+
+        val stats = new JCheckBox("Stats", false);
+        stats.addActionListener(new ActionListener() {
+                public void actionPerformed(final ActionEvent e) {
+                    viewer.setOverlay(stats.isSelected());
+                }
+            });
+        add(stats);
+
+        val detail = new JComboBox<String>(DETAIL);
+        if (auto) {
+            detail.setSelectedIndex(DETAIL.length - 1);
+        } else {
+            detail.setSelectedIndex(lod.ordinal());
+        }
+        detail.addActionListener(new ActionListener() {
+                public void actionPerformed(final ActionEvent e) {
+                    val levels = Renderer.Lod.values();
+                    int i = detail.getSelectedIndex();
+                    if (i < levels.length) {
+                        viewer.setLod(levels[i], false);
+                    } else {
+                        viewer.setLod(Renderer.Lod.FULL, true);
+                    }
+                }
+            });
+        add(detail);
     }
 }
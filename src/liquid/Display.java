@@ -0,0 +1,97 @@
+package liquid;
+
+/**
+ * A component showing a simulation as it runs, and the rendering
+ * options behind it. The {@link Viewer} repaints through Swing; the
+ * {@link ActiveViewer} renders and presents on its own thread.
+ */
+public interface Display {
+
+    /**
+     * Return the simulation being displayed.
+     * @return the simulation
+     */
+    Simulation getSimulation();
+
+    /**
+     * Return the options frames are rendered with, shared by anything
+     * rendering on behalf of this display.
+     * @return the live options
+     */
+    Renderer.Options getOptions();
+
+    /**
+     * Return the width of the display.
+     * @return width in pixels
+     */
+    int getWidth();
+
+    /**
+     * Return the height of the display.
+     * @return height in pixels
+     */
+    int getHeight();
+
+    /**
+     * Turn blurring on or off.
+     * @param set  the new value
+     */
+    void setBlur(boolean set);
+
+    /**
+     * Select how the blur is computed.
+     * @param mode  the new blur mode
+     */
+    void setBlurMode(Blur.Mode mode);
+
+    /**
+     * Render balls by splatting blurred footprints into a density
+     * field instead of rasterizing and blurring the whole canvas.
+     * @param set  the new value
+     */
+    void setSplat(boolean set);
+
+    /**
+     * Turn thresholding on or off.
+     * @param set  the new value
+     */
+    void setThreshold(boolean set);
+
+    /**
+     * Fill a traced outline of the liquid instead of thresholding it.
+     * @param set  the new value
+     */
+    void setContour(boolean set);
+
+    /**
+     * Redo only the parts of each frame near balls that moved.
+     * @param set  the new value
+     */
+    void setIncremental(boolean set);
+
+    /**
+     * Select the level of detail of the blurred liquid.
+     * @param lod   the level of detail, or the finest one if automatic
+     * @param auto  lower the detail while frames take longer than one
+     *              frame period at the default frame rate
+     */
+    void setLod(Renderer.Lod lod, boolean auto);
+
+    /**
+     * Set how often frames are rendered while the simulation runs.
+     * Frames between steps show interpolated positions.
+     * @param fps  frames per second, or 0 for one frame per step
+     */
+    void setFrameRate(int fps);
+
+    /**
+     * Show or hide the frame statistics over the display.
+     * @param set  the new value
+     */
+    void setOverlay(boolean set);
+
+    /**
+     * Stop following the simulation.
+     */
+    void close();
+}
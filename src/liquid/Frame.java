@@ -0,0 +1,65 @@
+package liquid;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import lombok.Getter;
+
+/**
+ * A reusable frame buffer: an image, its backing pixel array and a
+ * long-lived graphics context for drawing onto it.
+ */
+public final class Frame {
+
+    @Getter private final int width;
+    @Getter private final int height;
+    @Getter private final BufferedImage image;
+    @Getter private final int[] pixels;
+    @Getter private final Graphics2D graphics;
+
+    /**
+     * Allocate a new antialiased frame.
+     * @param width   width in pixels
+     * @param height  height in pixels
+     */
+    public Frame(final int width, final int height) {
+        this(width, height, true);
+    }
+
+    /**
+     * Allocate a new frame.
+     * @param width      width in pixels
+     * @param height     height in pixels
+     * @param antialias  whether shapes are drawn antialiased
+     */
+    public Frame(final int width, final int height,
+                 final boolean antialias) {
+        this.width = width;
+        this.height = height;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = Threshold.pixels(image);
+        graphics = image.createGraphics();
+        if (antialias) {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                                      RenderingHints.VALUE_ANTIALIAS_ON);
+        }
+    }
+
+    /**
+     * Return true if this frame has the given size.
+     * @param w  the width to check
+     * @param h  the height to check
+     * @return true if the frame is exactly w by h
+     */
+    public boolean fits(final int w, final int h) {
+        return width == w && height == h;
+    }
+
+    /**
+     * Release the graphics context. The frame must not be drawn to
+     * afterwards.
+     */
+    public void dispose() {
+        graphics.dispose();
+    }
+}
@@ -0,0 +1,218 @@
+package liquid;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import lombok.extern.java.Log;
+
+/**
+ * Latency histograms for each stage of producing a frame, plus
+ * counters for falling behind. One instance belongs to each {@link
+ * Simulation}, and everything that steps, renders, displays or records
+ * it reports here. Recording is lock-free and allocation-free.
+ */
+@Log
+public final class FrameStats implements FrameStatsMXBean {
+
+    /** A measured stage. */
+    public enum Stage {
+        /** One simulation step. */
+        STEP,
+        /** Drawing the balls, or splatting them. */
+        RASTERIZE,
+        /** The vertical blur pass. */
+        BLUR_V,
+        /** The horizontal blur pass, including a fused threshold. */
+        BLUR_H,
+        /** A separate threshold pass, as done when splatting. */
+        THRESHOLD,
+        /** Scaling a reduced level of detail up, including the threshold. */
+        UPSCALE,
+        /** Tracing the outline of the liquid and filling it. */
+        CONTOUR,
+        /** Drawing the finished frame onto the screen. */
+        BLIT,
+        /** From sampling the simulation to showing the frame, actively. */
+        PRESENT,
+        /** Rendering a recorded frame and queuing it for encoding. */
+        RECORD
+    }
+
+    /** JMX name of the registered instance. */
+    public static final String NAME = "liquid:type=FrameStats";
+
+    private static final double MILLIS = 1e6;
+    private static final double MEDIAN = 0.5;
+    private static final double P99 = 0.99;
+
+    private final Histogram[] histograms =
+        new Histogram[Stage.values().length];
+    private final AtomicLong behind = new AtomicLong();
+    private final AtomicLong maxBehind = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Create an empty set of statistics.
+     */
+    public FrameStats() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Record the duration of one stage.
+     * @param stage  the stage
+     * @param nanos  how long it took
+     */
+    public void record(final Stage stage, final long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Record a stage that started at the given time and ends now.
+     * @param stage  the stage
+     * @param start  System.nanoTime() at the start of the stage
+     * @return the current time, to start the next stage
+     */
+    public long since(final Stage stage, final long start) {
+        long now = System.nanoTime();
+        record(stage, now - start);
+        return now;
+    }
+
+    /**
+     * Return the histogram of a stage.
+     * @param stage  the stage
+     * @return its histogram
+     */
+    public Histogram get(final Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Set how many steps the simulation currently lags its schedule.
+     * @param steps  steps behind
+     */
+    public void setBehind(final long steps) {
+        behind.set(steps);
+        long m = maxBehind.get();
+        while (steps > m && !maxBehind.compareAndSet(m, steps)) {
+            m = maxBehind.get();
+        }
+    }
+
+    /**
+     * Count steps skipped because the simulation fell too far behind.
+     * @param steps  the number of steps skipped
+     */
+    public void skipped(final long steps) {
+        skipped.addAndGet(steps);
+    }
+
+    /**
+     * Count a frame that was replaced before being shown, or skipped
+     * because its time to be shown had passed.
+     */
+    public void dropped() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Register this instance with the platform MBean server. Failure,
+     * such as a name already taken or a sandbox, is only logged.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(this, new ObjectName(NAME));
+        } catch (JMException e) {
+            log.warning("could not register " + NAME + ": " + e);
+        } catch (java.security.AccessControlException e) {
+            log.info("could not register " + NAME);
+        }
+    }
+
+    @Override
+    public Map<String, Double> getMedianMillis() {
+        Map<String, Double> map = new LinkedHashMap<String, Double>();
+        for (Stage s : Stage.values()) {
+            map.put(s.name(), get(s).percentile(MEDIAN) / MILLIS);
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Double> getP99Millis() {
+        Map<String, Double> map = new LinkedHashMap<String, Double>();
+        for (Stage s : Stage.values()) {
+            map.put(s.name(), get(s).percentile(P99) / MILLIS);
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Double> getMaxMillis() {
+        Map<String, Double> map = new LinkedHashMap<String, Double>();
+        for (Stage s : Stage.values()) {
+            map.put(s.name(), get(s).getMax() / MILLIS);
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (Stage s : Stage.values()) {
+            map.put(s.name(), get(s).getCount());
+        }
+        return map;
+    }
+
+    @Override
+    public long getStepsBehind() {
+        return behind.get();
+    }
+
+    @Override
+    public long getMaxStepsBehind() {
+        return maxBehind.get();
+    }
+
+    @Override
+    public long getSkippedSteps() {
+        return skipped.get();
+    }
+
+    @Override
+    public long getDroppedRepaints() {
+        return dropped.get();
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram h : histograms) {
+            h.reset();
+        }
+        maxBehind.set(behind.get());
+        skipped.set(0);
+        dropped.set(0);
+    }
+
+    /**
+     * Describe one stage in a single line for display.
+     * @param stage  the stage
+     * @return median, 99th percentile and maximum in milliseconds
+     */
+    public String line(final Stage stage) {
+        Histogram h = get(stage);
+        return String.format("%-9s %6.2f %6.2f %6.2f", stage.name(),
+                             h.percentile(MEDIAN) / MILLIS,
+                             h.percentile(P99) / MILLIS,
+                             h.getMax() / MILLIS);
+    }
+}
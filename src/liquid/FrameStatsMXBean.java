@@ -0,0 +1,64 @@
+package liquid;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link FrameStats}, registered as
+ * <code>liquid:type=FrameStats</code>. Latencies are keyed by stage
+ * name and given in milliseconds.
+ */
+public interface FrameStatsMXBean {
+
+    /**
+     * Return the median latency of each stage.
+     * @return milliseconds by stage
+     */
+    Map<String, Double> getMedianMillis();
+
+    /**
+     * Return the 99th percentile latency of each stage.
+     * @return milliseconds by stage
+     */
+    Map<String, Double> getP99Millis();
+
+    /**
+     * Return the worst latency of each stage.
+     * @return milliseconds by stage
+     */
+    Map<String, Double> getMaxMillis();
+
+    /**
+     * Return how many times each stage was measured.
+     * @return counts by stage
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * Return how many steps the simulation currently lags its schedule.
+     * @return steps behind
+     */
+    long getStepsBehind();
+
+    /**
+     * Return the most steps the simulation has lagged its schedule.
+     * @return steps behind at worst
+     */
+    long getMaxStepsBehind();
+
+    /**
+     * Return how many steps were skipped to catch up with the clock.
+     * @return skipped steps
+     */
+    long getSkippedSteps();
+
+    /**
+     * Return how many rendered frames were replaced before being shown.
+     * @return dropped repaints
+     */
+    long getDroppedRepaints();
+
+    /**
+     * Clear all histograms and counters.
+     */
+    void reset();
+}
@@ -0,0 +1,87 @@
+package liquid;
+
+import lombok.Getter;
+
+/**
+ * Picks a solver quality level from measured step times, so that steps
+ * fit within a time budget: lower quality when steps run long, higher
+ * when there is time to spare. Levels are numbered from 0, cheapest
+ * first, and each has an estimated relative cost. Step times are
+ * smoothed, and after each change the level is held for a while, so
+ * one slow step does not make the quality flicker.
+ */
+public final class Governor {
+
+    /* Weight of the newest step time in the running average. */
+    private static final double SMOOTHING = 0.125;
+    /* Fraction of the budget that steps are aimed to use. */
+    private static final double HEADROOM = 0.85;
+    /* Steps to hold a level after changing it. */
+    private static final int HOLD = 15;
+
+    private final double[] costs;
+    private final int min;
+    private final int max;
+    private final long budget;
+
+    /** The current quality level. */
+    @Getter private int level;
+
+    private double average = -1;
+    private int wait = 0;
+
+    /**
+     * Create a governor.
+     * @param costs   estimated relative cost of each level
+     * @param min     lowest level allowed
+     * @param max     highest level allowed
+     * @param start   the initial level, clamped to the bounds
+     * @param budget  nanoseconds a step may take, or 0 to hold the level
+     */
+    public Governor(final double[] costs, final int min, final int max,
+                    final int start, final long budget) {
+        this.costs = costs.clone();
+        this.min = min;
+        this.max = max;
+        this.budget = budget;
+        level = Math.max(min, Math.min(max, start));
+    }
+
+    /**
+     * Account for one step and choose the level of the next.
+     * @param nanos  how long the step took
+     * @return the level for the next step
+     */
+    public int update(final long nanos) {
+        if (budget <= 0) {
+            return level;
+        }
+        if (average < 0) {
+            average = nanos;
+        } else {
+            average += (nanos - average) * SMOOTHING;
+        }
+        if (wait > 0) {
+            wait--;
+            return level;
+        }
+        double target = budget * HEADROOM;
+        if (average > target && level > min) {
+            change(level - 1);
+        } else if (level < max
+                   && average * costs[level + 1] / costs[level] < target) {
+            change(level + 1);
+        }
+        return level;
+    }
+
+    /**
+     * Switch to another level, expecting steps to cost accordingly.
+     * @param next  the new level
+     */
+    private void change(final int next) {
+        average = average * costs[next] / costs[level];
+        level = next;
+        wait = HOLD;
+    }
+}
@@ -0,0 +1,113 @@
+package liquid;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, cheap enough to
+ * record into on every frame. Recording never allocates. Buckets are
+ * logarithmic with four buckets per power of two, so a percentile is
+ * reported as the upper edge of its bucket, at most 25% above the
+ * true value. The maximum is tracked exactly.
+ */
+public final class Histogram {
+
+    private static final int SUB_BITS = 2;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (Long.SIZE - 1 - SUB_BITS) * SUB + SUB;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record one duration.
+     * @param nanos  the duration in nanoseconds, negative counts as 0
+     */
+    public void record(final long nanos) {
+        long v = Math.max(0, nanos);
+        buckets.incrementAndGet(index(v));
+        count.incrementAndGet();
+        long m = max.get();
+        while (v > m && !max.compareAndSet(m, v)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Return the number of recorded durations.
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Return the longest recorded duration.
+     * @return the maximum in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Estimate a percentile of the recorded durations.
+     * @param p  the fraction of durations at or below the result, 0 to 1
+     * @return the percentile in nanoseconds, or 0 if nothing is recorded
+     */
+    public long percentile(final double p) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += buckets.get(i);
+        }
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(upper(i), max.get());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Forget everything recorded so far. Durations recorded during the
+     * reset may be partly lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Find the bucket of a duration.
+     * @param v  a non-negative duration
+     * @return the bucket index
+     */
+    private static int index(final long v) {
+        if (v < SUB) {
+            return (int) v;
+        }
+        int exp = Long.SIZE - 1 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /**
+     * Return the largest duration that falls into a bucket.
+     * @param i  the bucket index
+     * @return the upper edge in nanoseconds
+     */
+    private static long upper(final int i) {
+        if (i < SUB) {
+            return i;
+        }
+        int exp = i / SUB + SUB_BITS - 1;
+        long width = 1L << (exp - SUB_BITS);
+        return (SUB + i % SUB) * width + width - 1;
+    }
+}
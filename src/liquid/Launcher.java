@@ -3,6 +3,9 @@ package liquid;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
+import java.awt.Component;
+import java.net.InetSocketAddress;
+import java.util.Locale;
 import javax.swing.BoxLayout;
 import javax.swing.JFrame;
 import lombok.extern.java.Log;
@@ -14,9 +17,143 @@ import lombok.val;
 @Log
 public final class Launcher {
 
+    private static final long MINUTE = 60;
+    private static final int MAX_PORT = 0xffff;
+
     @Parameter(names = "-record", description = "Record the simulation.")
     private boolean record;
 
+    @Parameter(names = "-format",
+               description = "Recording format: png, y4m or rgb.")
+    private String format = "png";
+
+    @Parameter(names = "-output",
+               description = "Stream file for y4m or rgb, - for stdout.")
+    private String output;
+
+    @Parameter(names = "-encoders",
+               description = "Number of threads encoding recorded frames.")
+    private int encoders = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = "-queue",
+               description = "Recorded frames that may wait for an encoder.")
+    private int queue = Runtime.getRuntime().availableProcessors() * 2;
+
+    @Parameter(names = "-backpressure",
+               description = "When the queue is full: block, drop or spill.")
+    private String backpressure = "block";
+    private Recorder.Policy policy;
+
+    @Parameter(names = "-trace",
+               description = "Write a replayable trace of the run.")
+    private String trace;
+
+    @Parameter(names = "-replay",
+               description = "Play back a trace instead of simulating.")
+    private String replay;
+
+    @Parameter(names = "-hz",
+               description = "Physics steps per second.")
+    private int hz = Bottle.FPS;
+
+    @Parameter(names = "-balls",
+               description = "Number of balls, 0 for the solver's default.")
+    private int balls;
+
+    @Parameter(names = "-liquids",
+               description = "Number of liquids the balls are split "
+               + "between, from 1 to 3.")
+    private int liquids = 1;
+
+    @Parameter(names = "-fluid",
+               description = "Simulate many small particles without JBox2D.")
+    private boolean fluid;
+
+    @Parameter(names = "-seed",
+               description = "Seed of the initial layout, for repeatable runs.")
+    private Long seed;
+
+    @Parameter(names = "-budget",
+               description = "Milliseconds per step before solver quality "
+               + "is lowered, 0 to keep it fixed.")
+    private double budget;
+
+    @Parameter(names = "-quality",
+               description = "Bounds of the solver quality level, MIN:MAX, "
+               + "from 0 to 6.")
+    private String quality;
+    private int minQuality = 0;
+    private int maxQuality = Bottle.QUALITY.length - 1;
+
+    @Parameter(names = "-warm",
+               description = "Start from a cached, already settled state.")
+    private boolean warm;
+
+    @Parameter(names = "-sweep",
+               description = "Run a headless parameter sweep and print CSV, "
+               + "e.g. balls=100,400;gravity=30,60;restitution=0.3;flip=3.5")
+    private String sweep;
+    private Sweep sweeper;
+
+    @Parameter(names = "-fps",
+               description = "Display frames per second, 0 for one per step.")
+    private int fps = Viewer.FRAME_RATE;
+
+    @Parameter(names = "-active",
+               description = "Render and present the window on a thread of "
+               + "its own, paced to -fps, instead of repainting it.")
+    private boolean active;
+
+    @Parameter(names = "-headless",
+               description = "Render frames offline, without a window.")
+    private boolean headless;
+
+    @Parameter(names = "-steps",
+               description = "Frames to render headless (default: one "
+               + "minute, or the whole replay).")
+    private long steps;
+
+    @Parameter(names = "-threads",
+               description = "Number of threads rendering headless.")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = "-lod",
+               description = "Level of detail of the blur: full, half, "
+               + "quarter or auto.")
+    private String lod = "full";
+    private Renderer.Lod level;
+    private boolean autoLod;
+
+    @Parameter(names = "-contour",
+               description = "Fill a traced outline of the liquid instead "
+               + "of thresholding it.")
+    private boolean contour;
+
+    @Parameter(names = "-surface",
+               description = "Write the outline of the liquid after each "
+               + "step to SVG files starting with this prefix.")
+    private String surface;
+
+    @Parameter(names = "-incremental",
+               description = "Redo only the tiles of each frame near balls "
+               + "that moved.")
+    private boolean incremental;
+
+    @Parameter(names = "-sleep",
+               description = "Let balls that have settled sleep until "
+               + "disturbed.")
+    private boolean sleep;
+
+    @Parameter(names = "-box",
+               description = "Approximate the Gaussian blur with box blurs.")
+    private boolean box;
+
+    @Parameter(names = "-serve",
+               description = "Serve the animation over HTTP at [HOST:]PORT, "
+               + "as MJPEG and as a WebSocket feed of snapshots.")
+    private String serve;
+    private InetSocketAddress address;
+
     /**
      * Private constructor.
      */
@@ -39,6 +176,44 @@ public final class Launcher {
         val options = new Launcher();
         try {
             new JCommander(options, args);
+            options.policy = choice(Recorder.Policy.class,
+                                    options.backpressure);
+            if (options.hz <= 0) {
+                throw new ParameterException("-hz must be positive");
+            }
+            if (options.balls < 0) {
+                throw new ParameterException("-balls must not be negative");
+            }
+            if (options.liquids < 1 || options.liquids > Liquid.MAX) {
+                throw new ParameterException("-liquids must be from 1 to "
+                                             + Liquid.MAX);
+            }
+            if (options.budget < 0) {
+                throw new ParameterException("-budget must not be negative");
+            }
+            if (options.quality != null) {
+                options.qualities(options.quality);
+            }
+            if ("auto".equalsIgnoreCase(options.lod)) {
+                options.level = Renderer.Lod.FULL;
+                options.autoLod = true;
+            } else {
+                options.level = choice(Renderer.Lod.class, options.lod);
+            }
+            if (options.serve != null) {
+                options.address = address(options.serve);
+            }
+            if (!"png".equalsIgnoreCase(options.format)) {
+                choice(StreamSink.Format.class, options.format);
+            }
+            if (options.sweep != null) {
+                try {
+                    options.sweeper = new Sweep(options.parameters(),
+                                                options.sweep, options.fluid);
+                } catch (IllegalArgumentException e) {
+                    throw new ParameterException(e.getMessage());
+                }
+            }
         } catch (ParameterException e) {
             System.out.println("error: " + e.getMessage());
             new JCommander(options).usage();
@@ -47,23 +222,255 @@ public final class Launcher {
             log.warning("could not process arguments: " + e.getMessage());
         }
 
+        if (options.headless || options.sweeper != null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        if (options.sweeper != null) {
+            long count = options.steps;
+            if (count <= 0) {
+                count = Bottle.FPS * MINUTE;
+            }
+            options.sweeper.run(count, System.out);
+            System.exit(0);
+        }
+
+        /* Set up the simulation. */
+        final Simulation simulation;
+        try {
+            if (options.replay != null) {
+                simulation = new Replay(options.replay);
+            } else if (options.warm) {
+                simulation = new WarmStart(WarmStart.DIR)
+                    .create(options.parameters(), options.fluid);
+            } else if (options.fluid) {
+                simulation = new ParticleFluid(options.parameters());
+            } else {
+                simulation = new Bottle(options.parameters());
+            }
+            if (options.surface != null) {
+                final SurfaceWriter writer = new SurfaceWriter(
+                    simulation, options.surface, options.level);
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                        public void run() {
+                            writer.close();
+                        }
+                    });
+            }
+            if (options.trace != null) {
+                final TraceWriter writer =
+                    new TraceWriter(simulation, options.trace);
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                        public void run() {
+                            writer.close();
+                        }
+                    });
+            }
+            if (options.address != null) {
+                int rate = options.fps;
+                if (rate <= 0) {
+                    rate = simulation.getFps();
+                }
+                final Server server = new Server(simulation, options.address,
+                                                 options.render(), rate);
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                        public void run() {
+                            server.close();
+                        }
+                    });
+            }
+        } catch (java.io.IOException e) {
+            System.out.println("error: " + e.getMessage());
+            System.exit(-1);
+            return;
+        }
+
+        if (options.headless && options.address != null) {
+            /* Serve live; the server's thread keeps the process up. */
+            simulation.start();
+            return;
+        } else if (options.headless) {
+            options.batch(simulation);
+            return;
+        }
+
         /* Set up the frame. */
         JFrame frame = new JFrame("Fun Liquid");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         val layout = new BoxLayout(frame.getContentPane(), BoxLayout.Y_AXIS);
         frame.setLayout(layout);
-        val bottle = new Bottle();
-        val viewer = new Viewer(bottle);
-        frame.add(viewer);
-        frame.add(new Controls(bottle, viewer));
+        final Display viewer;
+        if (options.active) {
+            viewer = new ActiveViewer(simulation);
+        } else {
+            viewer = new Viewer(simulation);
+        }
+        viewer.setFrameRate(options.fps);
+        if (options.box) {
+            viewer.setBlurMode(Blur.Mode.BOX);
+        }
+        viewer.setLod(options.level, options.autoLod);
+        viewer.setContour(options.contour);
+        viewer.setIncremental(options.incremental);
+        frame.add((Component) viewer);
+        frame.add(new Controls(simulation, viewer, options.level,
+                               options.autoLod));
         frame.setResizable(false);
         frame.pack();
         frame.setVisible(true);
         if (options.record) {
-            new Recorder(viewer);
+            final Recorder recorder;
+            try {
+                recorder = new Recorder(viewer,
+                                        options.sink(simulation.getFps()),
+                                        options.encoders, options.queue,
+                                        options.policy);
+            } catch (java.io.IOException e) {
+                System.out.println("error: " + e.getMessage());
+                System.exit(-1);
+                return;
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        recorder.close();
+                    }
+                });
         }
 
         /* Begin the simulation. */
-        bottle.start();
+        simulation.start();
+    }
+
+    /**
+     * Render the simulation offline into the selected output and exit.
+     * @param simulation  the simulation to render
+     */
+    private void batch(final Simulation simulation) {
+        long count = steps;
+        if (count <= 0 && simulation instanceof Replay) {
+            count = Long.MAX_VALUE;
+        } else if (count <= 0) {
+            count = simulation.getFps() * MINUTE;
+        }
+        try {
+            new Batch(simulation, render(), sink(simulation.getFps()),
+                      threads).run(count);
+        } catch (java.io.IOException e) {
+            System.out.println("error: " + e.getMessage());
+            System.exit(-1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Build the rendering options selected on the command line.
+     * @return the options
+     */
+    private Renderer.Options render() {
+        val render = new Renderer.Options();
+        if (box) {
+            render.setBlurMode(Blur.Mode.BOX);
+        }
+        render.setLod(level);
+        render.setContour(contour);
+        render.setIncremental(incremental);
+        return render;
+    }
+
+    /**
+     * Parse the address to serve at.
+     * @param spec  [HOST:]PORT, all interfaces if no host is given
+     * @return the address
+     */
+    private static InetSocketAddress address(final String spec) {
+        int colon = spec.lastIndexOf(':');
+        int port;
+        try {
+            port = Integer.parseInt(spec.substring(colon + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new ParameterException("invalid address: " + spec);
+        }
+        if (port < 0 || port > MAX_PORT) {
+            throw new ParameterException("invalid port: " + port);
+        }
+        if (colon <= 0) {
+            return new InetSocketAddress(port);
+        }
+        return new InetSocketAddress(spec.substring(0, colon), port);
+    }
+
+    /**
+     * Build the simulation parameters selected on the command line.
+     * @return the parameters
+     */
+    private Parameters parameters() {
+        val p = new Parameters();
+        p.setHz(hz);
+        p.setLiquids(liquids);
+        p.setSeed(seed);
+        p.setBudget(budget);
+        p.setMinQuality(minQuality);
+        p.setMaxQuality(maxQuality);
+        p.setSleep(sleep);
+        if (balls > 0) {
+            p.setBalls(balls);
+        } else if (fluid) {
+            p.setBalls(ParticleFluid.PARTICLES);
+        }
+        return p;
+    }
+
+    /**
+     * Parse the bounds of the solver quality level.
+     * @param bounds  MIN:MAX, or a single level to fix it
+     */
+    private void qualities(final String bounds) {
+        String[] parts = bounds.split(":", 2);
+        try {
+            minQuality = Integer.parseInt(parts[0].trim());
+            maxQuality = Integer.parseInt(parts[parts.length - 1].trim());
+        } catch (NumberFormatException e) {
+            throw new ParameterException("invalid quality: " + bounds);
+        }
+        if (minQuality < 0 || maxQuality >= Bottle.QUALITY.length
+            || minQuality > maxQuality) {
+            throw new ParameterException("invalid quality: " + bounds);
+        }
+    }
+
+    /**
+     * Open the recording output selected on the command line.
+     * @param fps  frame rate of the recording
+     * @return the sink to record into
+     * @throws java.io.IOException if the output cannot be opened
+     */
+    private Sink sink(final int fps) throws java.io.IOException {
+        if ("png".equalsIgnoreCase(format)) {
+            return new PngSink();
+        }
+        val layout = choice(StreamSink.Format.class, format);
+        if ("-".equals(output)) {
+            return new StreamSink(layout, fps);
+        } else if (output == null) {
+            String name = "liquid." + format.toLowerCase(Locale.ROOT);
+            return new StreamSink(name, layout, fps);
+        } else {
+            return new StreamSink(output, layout, fps);
+        }
+    }
+
+    /**
+     * Parse a case-insensitive enum option.
+     * @param type   the enum class
+     * @param value  the option value
+     * @param <T>    the enum type
+     * @return the matching constant
+     */
+    private static <T extends Enum<T>> T choice(final Class<T> type,
+                                                final String value) {
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new ParameterException("invalid choice: " + value);
+        }
     }
 }
@@ -0,0 +1,61 @@
+package liquid;
+
+import java.awt.Color;
+import lombok.Getter;
+
+/**
+ * One of the liquids a bottle can hold: the color it is drawn in and
+ * the physical properties of its balls. Several liquids share one
+ * rasterized field, each in its own color channel, so they are blurred
+ * together in one pass and then thresholded and colored per channel.
+ * The field is packed RGB, which makes room for {@link #MAX} liquids.
+ */
+public final class Liquid {
+
+    /** Most liquids in one simulation, one per color channel. */
+    public static final int MAX = 3;
+
+    /** The liquids, by index. The first is the only one by default. */
+    static final Liquid[] ALL = {
+        new Liquid("water", new Color(0x4090ff), 1f, 0f),
+        new Liquid("oil", new Color(0xffb030), 0.6f, 0.2f),
+        new Liquid("syrup", new Color(0x50e050), 2f, 0.5f),
+    };
+
+    /* Shift of the channel of the first liquid. */
+    private static final int RED = 16;
+
+    /** Name of the liquid. */
+    @Getter private final String name;
+    /** Color of the thresholded liquid. */
+    @Getter private final Color color;
+    /** Density of each ball. */
+    @Getter private final float density;
+    /** Friction between balls, 0 to 1. */
+    @Getter private final float friction;
+
+    /**
+     * Create a liquid.
+     * @param name      name of the liquid
+     * @param color     color of the thresholded liquid
+     * @param density   density of each ball
+     * @param friction  friction between balls
+     */
+    private Liquid(final String name, final Color color, final float density,
+                   final float friction) {
+        this.name = name;
+        this.color = color;
+        this.density = density;
+        this.friction = friction;
+    }
+
+    /**
+     * Return the bit shift of a liquid's channel in a packed RGB field:
+     * red for the first, then green, then blue.
+     * @param liquid  index of the liquid
+     * @return the shift, 16, 8 or 0
+     */
+    static int shift(final int liquid) {
+        return RED - liquid * Byte.SIZE;
+    }
+}
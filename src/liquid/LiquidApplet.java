@@ -32,4 +32,9 @@ public class LiquidApplet extends JApplet {
     public final void stop() {
         bottle.stop();
     }
+
+    @Override
+    public final void destroy() {
+        viewer.close();
+    }
 }
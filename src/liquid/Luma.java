@@ -0,0 +1,323 @@
+package liquid;
+
+import java.util.Arrays;
+import java.util.Random;
+import lombok.extern.java.Log;
+
+/**
+ * Exact Gaussian passes over packed gray pixels, where the three
+ * channels are equal and only one of them needs to be convolved. The
+ * results are identical to those of the packed RGB passes in
+ * {@link Blur} on the same gray input, including the truncation of
+ * the intermediate pass and the zero-filled edges.
+ *
+ * The passes are implemented with the incubating Vector API when it
+ * is present (run with --add-modules jdk.incubator.vector) and with
+ * plain loops otherwise. The implementation is chosen once, at class
+ * initialization, and the vector one only if it agrees with the
+ * scalar one on a random field.
+ */
+@Log
+abstract class Luma {
+
+    /* Class of the vector implementation, compiled separately. */
+    private static final String VECTOR = "liquid.VectorLuma";
+
+    private static final int MASK = 0xff;
+    private static final int GRAY = 0x010101;
+    private static final int CHECK_SIZE = 67;
+    private static final int CHECK_KERNEL = 6;
+    private static final long CHECK_SEED = 0x6c756d61L;
+    /*
+     * Rectangles also checked, as the margins left on each side: left,
+     * right, top and bottom. Tiles start off lane boundaries and end
+     * inside the field, and the last is shorter than most vectors.
+     */
+    private static final int[][] CHECK_RECTS = {
+        {CHECK_KERNEL / 2, CHECK_KERNEL / 2, 0, 0},
+        {5, 7, 4, 6},
+        {13, 29, 9, 11},
+    };
+
+    /** The implementation used by this process. */
+    static final Luma INSTANCE = select();
+
+    /**
+     * Return a short name for this implementation.
+     * @return the name
+     */
+    abstract String name();
+
+    /**
+     * Vertical Gaussian over a rectangle of packed gray pixels. Rows
+     * closer than the kernel radius to an edge are zero-filled.
+     * @param src     source pixels
+     * @param dst     destination pixels, gray
+     * @param width   width of the buffers
+     * @param height  height of the buffers
+     * @param k       the kernel
+     * @param x0      first column (inclusive)
+     * @param x1      last column (exclusive)
+     * @param y0      first row (inclusive)
+     * @param y1      last row (exclusive)
+     */
+    abstract void vertical(int[] src, int[] dst, int width, int height,
+                           float[] k, int x0, int x1, int y0, int y1);
+
+    /**
+     * Horizontal Gaussian over a rectangle of packed gray pixels.
+     * Columns closer than the kernel radius to an edge are filled as
+     * if black.
+     * @param src    source pixels
+     * @param dst    destination pixels
+     * @param width  width of the buffers
+     * @param k      the kernel
+     * @param t      threshold applied to each output pixel, or null
+     * @param x0     first column (inclusive)
+     * @param x1     last column (exclusive)
+     * @param y0     first row (inclusive)
+     * @param y1     last row (exclusive)
+     */
+    abstract void horizontal(int[] src, int[] dst, int width, float[] k,
+                             Threshold t, int x0, int x1, int y0, int y1);
+
+    /**
+     * Choose the vector implementation if it loads and agrees with the
+     * scalar one, or else the scalar one.
+     * @return the implementation to use
+     */
+    private static Luma select() {
+        Luma scalar = new Scalar();
+        Luma vector;
+        try {
+            vector = (Luma) Class.forName(VECTOR).getDeclaredConstructor()
+                .newInstance();
+        } catch (ClassNotFoundException e) {
+            log.fine("luma: no vector implementation");
+            return scalar;
+        } catch (ReflectiveOperationException e) {
+            log.info("luma: vector implementation unavailable: " + e);
+            return scalar;
+        } catch (LinkageError e) {
+            log.fine("luma: Vector API unavailable: " + e);
+            return scalar;
+        }
+        try {
+            if (!agree(scalar, vector)) {
+                log.warning("luma: vector results differ, using scalar");
+                return scalar;
+            }
+        } catch (LinkageError e) {
+            log.fine("luma: Vector API unavailable: " + e);
+            return scalar;
+        } catch (RuntimeException e) {
+            log.warning("luma: vector implementation failed: " + e);
+            return scalar;
+        }
+        log.info("luma: " + vector.name());
+        return vector;
+    }
+
+    /**
+     * Run both passes of two implementations over the same random
+     * field, thresholded and not, whole and over rectangles inside it,
+     * and compare the outputs, including the pixels around rectangles.
+     * @param a  one implementation
+     * @param b  the other
+     * @return true if every output pixel is the same
+     */
+    static boolean agree(final Luma a, final Luma b) {
+        Random random = new Random(CHECK_SEED);
+        int w = CHECK_SIZE;
+        int h = CHECK_SIZE - 2;
+        int[] src = new int[w * h];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = random.nextInt(MASK + 1) * GRAY;
+        }
+        float[] k = Blur.kernel(CHECK_KERNEL);
+        Threshold t = new Threshold(Renderer.THRESHOLD, java.awt.Color.WHITE,
+                                    java.awt.Color.BLACK);
+        int[] ta = new int[src.length];
+        int[] tb = new int[src.length];
+        int[] da = new int[src.length];
+        int[] db = new int[src.length];
+        a.vertical(src, ta, w, h, k, 0, w, 0, h);
+        b.vertical(src, tb, w, h, k, 0, w, 0, h);
+        if (!Arrays.equals(ta, tb)) {
+            return false;
+        }
+        a.horizontal(ta, da, w, k, null, 0, w, 0, h);
+        b.horizontal(ta, db, w, k, null, 0, w, 0, h);
+        if (!Arrays.equals(da, db)) {
+            return false;
+        }
+        a.horizontal(ta, da, w, k, t, 0, w, 0, h);
+        b.horizontal(ta, db, w, k, t, 0, w, 0, h);
+        if (!Arrays.equals(da, db)) {
+            return false;
+        }
+        for (int[] r : CHECK_RECTS) {
+            int x0 = r[0];
+            int x1 = w - r[1];
+            int y0 = r[2];
+            int y1 = h - r[3];
+            Arrays.fill(ta, GRAY);
+            Arrays.fill(tb, GRAY);
+            a.vertical(src, ta, w, h, k, x0, x1, y0, y1);
+            b.vertical(src, tb, w, h, k, x0, x1, y0, y1);
+            if (!Arrays.equals(ta, tb)) {
+                return false;
+            }
+            for (Threshold th : new Threshold[] {null, t}) {
+                Arrays.fill(da, GRAY);
+                Arrays.fill(db, GRAY);
+                a.horizontal(ta, da, w, k, th, x0, x1, y0, y1);
+                b.horizontal(ta, db, w, k, th, x0, x1, y0, y1);
+                if (!Arrays.equals(da, db)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Vertical Gaussian over part of one row, one pixel at a time. The
+     * row must be at least the kernel radius from either edge.
+     * @param src    source pixels
+     * @param dst    destination pixels, gray
+     * @param width  width of the buffers
+     * @param k      the kernel
+     * @param y      the row
+     * @param x0     first column (inclusive)
+     * @param x1     last column (exclusive)
+     */
+    static void verticalRun(final int[] src, final int[] dst,
+                            final int width, final float[] k, final int y,
+                            final int x0, final int x1) {
+        int half = k.length / 2;
+        int row = y * width;
+        for (int x = x0; x < x1; x++) {
+            float sum = 0;
+            int i = row - half * width + x;
+            for (int j = 0; j < k.length; j++, i += width) {
+                sum += k[j] * (src[i] & MASK);
+            }
+            dst[row + x] = clamp(sum) * GRAY;
+        }
+    }
+
+    /**
+     * Horizontal Gaussian over part of one row, one pixel at a time.
+     * The columns must be at least the kernel radius from either edge.
+     * @param src    source pixels
+     * @param dst    destination pixels
+     * @param width  width of the buffers
+     * @param k      the kernel
+     * @param t      threshold applied to each output pixel, or null
+     * @param y      the row
+     * @param x0     first column (inclusive)
+     * @param x1     last column (exclusive)
+     */
+    static void horizontalRun(final int[] src, final int[] dst,
+                              final int width, final float[] k,
+                              final Threshold t, final int y,
+                              final int x0, final int x1) {
+        int half = k.length / 2;
+        int row = y * width;
+        for (int x = x0; x < x1; x++) {
+            float sum = 0;
+            int i = row + x - half;
+            for (int j = 0; j < k.length; j++, i++) {
+                sum += k[j] * (src[i] & MASK);
+            }
+            int rgb = clamp(sum) * GRAY;
+            if (t != null) {
+                rgb = t.apply(rgb);
+            }
+            dst[row + x] = rgb;
+        }
+    }
+
+    /**
+     * Return the first column of a run that is at least the kernel
+     * radius from the left edge. Columns before it are filled as if
+     * black by the horizontal pass.
+     * @param k   the kernel
+     * @param x0  first column of the run (inclusive)
+     * @param x1  last column of the run (exclusive)
+     * @return a column from x0 to x1
+     */
+    static int innerFrom(final float[] k, final int x0, final int x1) {
+        return Math.min(x1, Math.max(x0, k.length / 2));
+    }
+
+    /**
+     * Return the end of the columns of a run that are at least the
+     * kernel radius from the right edge. Columns from it on are filled
+     * as if black by the horizontal pass.
+     * @param k      the kernel
+     * @param width  width of the buffer
+     * @param x0     first column of the run (inclusive)
+     * @param x1     last column of the run (exclusive)
+     * @return a column from {@link #innerFrom} to x1
+     */
+    static int innerTo(final float[] k, final int width, final int x0,
+                       final int x1) {
+        return Math.max(innerFrom(k, x0, x1),
+                        Math.min(x1, width - k.length / 2));
+    }
+
+    /**
+     * Truncate and clamp an accumulated value like ConvolveOp does.
+     * @param v  the accumulated value
+     * @return a value between 0 and 255
+     */
+    static int clamp(final float v) {
+        return Math.max(0, Math.min(MASK, (int) v));
+    }
+
+    /**
+     * Plain loops, one pixel at a time.
+     */
+    static final class Scalar extends Luma {
+
+        @Override
+        String name() {
+            return "scalar";
+        }
+
+        @Override
+        void vertical(final int[] src, final int[] dst, final int width,
+                      final int height, final float[] k, final int x0,
+                      final int x1, final int y0, final int y1) {
+            int half = k.length / 2;
+            for (int y = y0; y < y1; y++) {
+                int row = y * width;
+                if (y < half || y >= height - half) {
+                    Arrays.fill(dst, row + x0, row + x1, 0);
+                } else {
+                    verticalRun(src, dst, width, k, y, x0, x1);
+                }
+            }
+        }
+
+        @Override
+        void horizontal(final int[] src, final int[] dst, final int width,
+                        final float[] k, final Threshold t, final int x0,
+                        final int x1, final int y0, final int y1) {
+            int lo = innerFrom(k, x0, x1);
+            int hi = innerTo(k, width, x0, x1);
+            int empty = 0;
+            if (t != null) {
+                empty = t.apply(0);
+            }
+            for (int y = y0; y < y1; y++) {
+                int row = y * width;
+                Arrays.fill(dst, row + x0, row + lo, empty);
+                Arrays.fill(dst, row + hi, row + x1, empty);
+                horizontalRun(src, dst, width, k, t, y, lo, hi);
+            }
+        }
+    }
+}
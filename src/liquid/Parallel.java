@@ -0,0 +1,87 @@
+package liquid;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a range of independent work into bands run on a shared
+ * ForkJoin pool, one pool for the whole process so that blurring and
+ * particle solving do not oversubscribe the cores between them.
+ */
+final class Parallel {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+    private static final int BANDS_PER_THREAD = 4;
+
+    /**
+     * Hidden constructor.
+     */
+    private Parallel() {
+    }
+
+    /**
+     * Run a pass over the range [0, n) split into bands on the pool,
+     * returning when every band is done.
+     * @param n     number of items, such as rows or particles
+     * @param min   smallest band worth running as a separate task
+     * @param pass  the work to do for each band
+     */
+    static void run(final int n, final int min, final Pass pass) {
+        int bands = POOL.getParallelism() * BANDS_PER_THREAD;
+        int grain = Math.max(min, (n + bands - 1) / bands);
+        if (n <= grain) {
+            pass.run(0, n);
+        } else {
+            POOL.invoke(new Band(pass, 0, n, grain));
+        }
+    }
+
+    /**
+     * Work done for one band of a range.
+     */
+    interface Pass {
+        /**
+         * Process a band.
+         * @param lo  first item (inclusive)
+         * @param hi  last item (exclusive)
+         */
+        void run(int lo, int hi);
+    }
+
+    /**
+     * Recursively splits a range into bands no larger than a grain.
+     */
+    private static final class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Pass pass;
+        private final int lo;
+        private final int hi;
+        private final int grain;
+
+        /**
+         * Create a task covering [lo, hi).
+         * @param pass   the work to run on each band
+         * @param lo     first item (inclusive)
+         * @param hi     last item (exclusive)
+         * @param grain  largest band processed without splitting
+         */
+        Band(final Pass pass, final int lo, final int hi, final int grain) {
+            this.pass = pass;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= grain) {
+                pass.run(lo, hi);
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Band(pass, lo, mid, grain),
+                          new Band(pass, mid, hi, grain));
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package liquid;
+
+import java.util.Random;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * The physical parameters of a bottle. A simulation copies them when
+ * it is constructed, so one instance may be changed and reused to
+ * build many simulations, as a parameter sweep does.
+ */
+public final class Parameters {
+
+    private static final long FNV_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long BYTE = 0xff;
+
+    /** Number of balls or particles. */
+    @Getter @Setter private int balls = Bottle.BALLS;
+    /** Number of liquids the balls are split between, up to Liquid.MAX. */
+    @Getter @Setter private int liquids = 1;
+    /** Steps per second of world time. */
+    @Getter @Setter private int hz = Bottle.FPS;
+    /** Acceleration due to gravity, towards the floor. */
+    @Getter @Setter private float gravity = Bottle.GRAVITY;
+    /** Fraction of speed kept when a ball bounces. */
+    @Getter @Setter private float restitution = Bottle.BALL_RESTITUTION;
+    /** Seconds between gravity flips. */
+    @Getter @Setter private double flipRate = Bottle.FLIP_RATE;
+    /** Seed of the initial layout, or null for a different one each run. */
+    @Getter @Setter private Long seed = null;
+    /** Milliseconds a step may take before quality is lowered, 0 for none. */
+    @Getter @Setter private double budget = 0;
+    /** Lowest solver quality level, an index into Bottle.QUALITY. */
+    @Getter @Setter private int minQuality = 0;
+    /** Highest solver quality level, an index into Bottle.QUALITY. */
+    @Getter @Setter private int maxQuality = Bottle.QUALITY.length - 1;
+    /** Let balls that have settled sleep until disturbed. */
+    @Getter @Setter private boolean sleep = false;
+
+    /**
+     * Return a copy of these parameters.
+     * @return an independent copy
+     */
+    public Parameters copy() {
+        Parameters p = new Parameters();
+        p.balls = balls;
+        p.liquids = liquids;
+        p.hz = hz;
+        p.gravity = gravity;
+        p.restitution = restitution;
+        p.flipRate = flipRate;
+        p.seed = seed;
+        p.budget = budget;
+        p.minQuality = minQuality;
+        p.maxQuality = maxQuality;
+        p.sleep = sleep;
+        return p;
+    }
+
+    /**
+     * Return a random number generator for the initial layout, seeded
+     * if a seed is set.
+     * @return a fresh generator
+     */
+    public Random random() {
+        if (seed == null) {
+            return new Random();
+        }
+        return new Random(seed);
+    }
+
+    /**
+     * Hash every parameter into a key that identifies, together with
+     * the kind of simulation, the state these parameters settle into.
+     * The budget is left out, since states are settled without one.
+     * @return a 64-bit FNV-1a hash
+     */
+    public long key() {
+        long h = FNV_BASIS;
+        h = mix(h, balls);
+        h = mix(h, liquids);
+        h = mix(h, hz);
+        h = mix(h, Float.floatToIntBits(gravity));
+        h = mix(h, Float.floatToIntBits(restitution));
+        h = mix(h, Double.doubleToLongBits(flipRate));
+        h = mix(h, minQuality);
+        h = mix(h, maxQuality);
+        if (seed != null) {
+            h = mix(h, seed);
+        }
+        if (sleep) {
+            h = mix(h, 1);
+        }
+        return h;
+    }
+
+    /**
+     * Mix the eight bytes of a value into a hash.
+     * @param hash   the hash so far
+     * @param value  the value
+     * @return the new hash
+     */
+    private static long mix(final long hash, final long value) {
+        long h = hash;
+        for (int i = 0; i < Long.SIZE; i += Byte.SIZE) {
+            h ^= (value >>> i) & BYTE;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("balls=%d liquids=%d hz=%d gravity=%s "
+                             + "restitution=%s flip=%s seed=%s budget=%s "
+                             + "quality=%d:%d sleep=%s", balls, liquids, hz,
+                             gravity, restitution, flipRate, seed, budget,
+                             minQuality, maxQuality, sleep);
+    }
+}
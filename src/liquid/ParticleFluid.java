@@ -0,0 +1,506 @@
+package liquid;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.Random;
+import lombok.Getter;
+
+/**
+ * The same bottle as {@link Bottle}, filled with many small particles
+ * and solved without JBox2D. Particles are position-based: each
+ * substep predicts where every particle goes under gravity, then
+ * repeatedly pushes overlapping pairs apart and out of the walls and
+ * spikes, and takes the velocity to be whatever movement resulted.
+ *
+ * State is kept in flat float arrays indexed by particle. Every
+ * substep the particles are counting-sorted by the cell of a uniform
+ * grid one particle across, so that the neighbours of a particle are
+ * the particles of three runs of adjacent cells, which are also
+ * adjacent in memory.
+ *
+ * Overlaps are resolved Gauss-Seidel style, pair by pair, in sweeps
+ * from the floor upwards. The lower particle of a pair counts as
+ * heavier, so the upper one takes most of the correction: the weight
+ * of a deep pile reaches the floor within a sweep or two instead of
+ * one layer per iteration, and the liquid does not compress. To run
+ * in parallel the grid rows are cut into stripes, and alternate
+ * stripes are swept at the same time on the {@link Parallel} pool. A
+ * particle only touches the rows next to its own, so no two stripes
+ * swept at once share a particle and no locks are needed. Stripes do
+ * not depend on the number of threads, so neither does the result.
+ *
+ * Fast particles can sink deep into the pile within one substep, and
+ * pushing them out again must not fling them off. After the sweeps a
+ * particle may leave a substep only a little faster than it was
+ * predicted to move; any further correction is positional only.
+ */
+public final class ParticleFluid extends Simulation
+    implements WarmStart.State {
+
+    /** Default number of particles. */
+    static final int PARTICLES = 50000;
+    /** Substeps per step. */
+    static final int SUBSTEPS = 2;
+    /** Constraint iterations per substep. */
+    static final int ITERATIONS = 4;
+
+    /* Grid rows per stripe swept by one task. */
+    private static final int STRIPE = 8;
+    private static final int MIN_STRIPES = 2;
+    /* Largest push of one pair, in radii. */
+    private static final float CAP = 1f;
+    /* How much of a pair correction goes to the upper particle, beyond
+     * an even share, when one is directly above the other. */
+    private static final float SHOCK = 0.45f;
+    private static final float HALF = 0.5f;
+    private static final float EPSILON = 1e-12f;
+    private static final int MIN_BAND = 4096;
+    /* Floats saved per particle: position now and a substep ago. */
+    private static final int SAVED = 4;
+
+    /* Inner faces of the walls. */
+    private static final float WALL = (Bottle.WIDTH - Bottle.THICKNESS) / 2;
+    private static final float CEILING =
+        (Bottle.HEIGHT - Bottle.THICKNESS) / 2;
+    /* Outward normal of the upper edge of the right spike. */
+    private static final float SPIKE_RUN = Bottle.WIDTH / 2
+        - Bottle.SPIKE_EXTENT;
+    private static final float SPIKE_RISE = Bottle.SPIKE_THICKNESS / 2;
+    private static final float SPIKE_NX = (float) (SPIKE_RISE
+        / Math.hypot(SPIKE_RUN, SPIKE_RISE));
+    private static final float SPIKE_NY = (float) (SPIKE_RUN
+        / Math.hypot(SPIKE_RUN, SPIKE_RISE));
+
+    /* The walls and spikes, as in Bottle. */
+    private static final float HALF_W = Bottle.WIDTH / 2;
+    private static final float HALF_H = Bottle.HEIGHT / 2;
+    private static final float HALF_T = Bottle.THICKNESS / 2;
+    private static final float[] STATIC_X = {
+        HALF_W, -HALF_W, 0, 0, Bottle.SPIKE_EXTENT, -Bottle.SPIKE_EXTENT
+    };
+    private static final float[] STATIC_Y = {0, 0, HALF_H, -HALF_H, 0, 0};
+    private static final float[][] STATIC_SHAPES = {
+        {-HALF_T, -HALF_H, HALF_T, -HALF_H, HALF_T, HALF_H, -HALF_T, HALF_H},
+        {-HALF_T, -HALF_H, HALF_T, -HALF_H, HALF_T, HALF_H, -HALF_T, HALF_H},
+        {-HALF_W, -HALF_T, HALF_W, -HALF_T, HALF_W, HALF_T, -HALF_W, HALF_T},
+        {-HALF_W, -HALF_T, HALF_W, -HALF_T, HALF_W, HALF_T, -HALF_W, HALF_T},
+        {SPIKE_RUN, SPIKE_RISE, 0, 0, SPIKE_RUN, -SPIKE_RISE},
+        {-SPIKE_RUN, -SPIKE_RISE, 0, 0, -SPIKE_RUN, SPIKE_RISE},
+    };
+
+    @Getter private final int count;
+    @Getter private final float radius;
+    @Getter private double time = 0;
+    private long steps = 0;
+
+    private final float diameter;
+    private final int columns;
+    private final int rows;
+
+    /* Positions before and after the current substep, in grid order,
+     * and spare arrays to sort into. */
+    private float[] x;
+    private float[] y;
+    private float[] px;
+    private float[] py;
+    private int[] id;
+    private float[] sx;
+    private float[] sy;
+    private float[] spx;
+    private float[] spy;
+    private int[] sid;
+    /* Squared distance each particle was predicted to move. */
+    private final float[] motion;
+
+    /* Grid cell of each particle, and the first particle of each cell
+     * with one extra entry marking the end of the last cell. */
+    private final int[] cellOf;
+    private final int[] start;
+    private final int[] cursor;
+    private final int stripes;
+
+    private final float pull;
+    private final double flipRate;
+    private final float restitution;
+    private float gravity;
+    private boolean flipped = false;
+    private float dt;
+    private int parity;
+
+    private final Parallel.Pass predict = new Parallel.Pass() {
+            public void run(final int lo, final int hi) {
+                predict(lo, hi);
+            }
+        };
+    private final Parallel.Pass limit = new Parallel.Pass() {
+            public void run(final int lo, final int hi) {
+                limit(lo, hi);
+            }
+        };
+    private final Parallel.Pass solve = new Parallel.Pass() {
+            public void run(final int lo, final int hi) {
+                for (int k = lo; k < hi; k++) {
+                    sweep(k * 2 + parity);
+                }
+            }
+        };
+
+    /**
+     * Create a new bottle of particles.
+     */
+    public ParticleFluid() {
+        this(PARTICLES, Bottle.FPS);
+    }
+
+    /**
+     * Create a new bottle with a given number of particles and step
+     * rate. The particles are sized so that they fill as much of the
+     * bottle as the balls of a default {@link Bottle}.
+     * @param particles  the number of particles
+     * @param hz         steps per second of world time
+     */
+    public ParticleFluid(final int particles, final int hz) {
+        this(Bottle.parameters(particles, hz));
+    }
+
+    /**
+     * Create a new bottle of particles with the given parameters. The
+     * restitution applies to bounces off the walls.
+     * @param p  the parameters, copied so they can be changed later
+     */
+    public ParticleFluid(final Parameters p) {
+        count = p.getBalls();
+        pull = p.getGravity();
+        gravity = -pull;
+        flipRate = p.getFlipRate();
+        restitution = p.getRestitution();
+        radius = Bottle.BALL_RADIUS
+            * (float) Math.sqrt((double) Bottle.BALLS / count);
+        diameter = radius * 2;
+        columns = (int) Math.ceil(Bottle.WIDTH / diameter);
+        rows = (int) Math.ceil(Bottle.HEIGHT / diameter);
+        x = new float[count];
+        y = new float[count];
+        px = new float[count];
+        py = new float[count];
+        id = new int[count];
+        sx = new float[count];
+        sy = new float[count];
+        spx = new float[count];
+        spy = new float[count];
+        sid = new int[count];
+        cellOf = new int[count];
+        motion = new float[count];
+        start = new int[columns * rows + 1];
+        cursor = new int[columns * rows];
+        stripes = (rows + STRIPE - 1) / STRIPE;
+
+        Random rng = p.random();
+        for (int i = 0; i < count; i++) {
+            px[i] = (rng.nextFloat() - 0.5f) * (Bottle.WIDTH - diameter);
+            py[i] = (rng.nextFloat() - 0.5f) * (Bottle.HEIGHT - diameter);
+            x[i] = px[i];
+            y[i] = py[i];
+            id[i] = i;
+        }
+        float[][] shapes = new float[count + STATIC_X.length][];
+        System.arraycopy(STATIC_SHAPES, 0, shapes, count,
+                         STATIC_SHAPES.length);
+        layout(shapes.length, shapes);
+        capture();
+        schedule(p.getHz());
+    }
+
+    @Override
+    protected Snapshot step() {
+        dt = 1f / (getFps() * SUBSTEPS);
+        for (int s = 0; s < SUBSTEPS; s++) {
+            Parallel.run(count, MIN_BAND, predict);
+            sort();
+            for (int k = 0; k < ITERATIONS; k++) {
+                for (parity = 0; parity < 2; parity++) {
+                    Parallel.run((stripes + 1 - parity) / 2, MIN_STRIPES,
+                                 solve);
+                }
+            }
+            Parallel.run(count, MIN_BAND, limit);
+        }
+        time += 1.0 / getFps();
+        steps++;
+        Snapshot snapshot = capture();
+        if (Math.sin(time / flipRate * Math.PI) < 0) {
+            gravity = pull;
+            flipped = true;
+        } else {
+            gravity = -pull;
+            flipped = false;
+        }
+        return snapshot;
+    }
+
+    @Override
+    public Rectangle2D getView() {
+        return Bottle.VIEW;
+    }
+
+    @Override
+    public float[] save() {
+        float[] state = new float[count * SAVED];
+        for (int i = 0; i < count; i++) {
+            int k = id[i] * SAVED;
+            state[k] = px[i];
+            state[k + 1] = py[i];
+            state[k + 2] = x[i];
+            state[k + SAVED - 1] = y[i];
+        }
+        return state;
+    }
+
+    @Override
+    public void restore(final float[] state) {
+        for (int i = 0; i < count; i++) {
+            int k = id[i] * SAVED;
+            px[i] = state[k];
+            py[i] = state[k + 1];
+            x[i] = state[k + 2];
+            y[i] = state[k + SAVED - 1];
+        }
+        capture();
+    }
+
+    /**
+     * Move a band of particles by their velocity and gravity. The
+     * velocity is the movement over the last substep, and the result
+     * replaces the older position, after which the two sets swap.
+     * @param lo  first particle (inclusive)
+     * @param hi  last particle (exclusive)
+     */
+    private void predict(final int lo, final int hi) {
+        float fall = gravity * dt * dt;
+        for (int i = lo; i < hi; i++) {
+            x[i] = px[i] * 2 - x[i];
+            y[i] = py[i] * 2 - y[i] + fall;
+        }
+    }
+
+    /**
+     * Swap in the predicted positions and counting-sort every particle
+     * by grid cell, row by row from the bottom.
+     */
+    private void sort() {
+        float[] t = x;
+        x = px;
+        px = t;
+        t = y;
+        y = py;
+        py = t;
+
+        Arrays.fill(start, 0);
+        for (int i = 0; i < count; i++) {
+            int c = row(py[i]) * columns + column(px[i]);
+            cellOf[i] = c;
+            start[c + 1]++;
+        }
+        for (int c = 0; c < cursor.length; c++) {
+            start[c + 1] += start[c];
+            cursor[c] = start[c];
+        }
+        for (int i = 0; i < count; i++) {
+            int j = cursor[cellOf[i]]++;
+            sx[j] = x[i];
+            sy[j] = y[i];
+            spx[j] = px[i];
+            spy[j] = py[i];
+            sid[j] = id[i];
+            float mx = px[i] - x[i];
+            float my = py[i] - y[i];
+            motion[j] = mx * mx + my * my;
+        }
+        t = x;
+        x = sx;
+        sx = t;
+        t = y;
+        y = sy;
+        sy = t;
+        t = px;
+        px = spx;
+        spx = t;
+        t = py;
+        py = spy;
+        spy = t;
+        int[] u = id;
+        id = sid;
+        sid = u;
+    }
+
+    /**
+     * Sweep the particles of one stripe of grid rows, from the floor
+     * upwards, pushing each off its neighbours, the walls and spikes.
+     * Neighbours may be in the rows just outside the stripe.
+     * @param stripe  the stripe to sweep
+     */
+    private void sweep(final int stripe) {
+        int first = stripe * STRIPE;
+        int last = Math.min(rows, first + STRIPE) - 1;
+        if (flipped) {
+            for (int r = last; r >= first; r--) {
+                int lo = start[r * columns];
+                for (int i = start[(r + 1) * columns] - 1; i >= lo; i--) {
+                    settle(i, r, -1f);
+                }
+            }
+        } else {
+            for (int r = first; r <= last; r++) {
+                int hi = start[(r + 1) * columns];
+                for (int i = start[r * columns]; i < hi; i++) {
+                    settle(i, r, 1f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Push one particle and its overlapping neighbours apart, the
+     * particle taking more of the correction from those below it and
+     * less from those above. Then push it out of the walls and spikes.
+     * @param i   the particle
+     * @param r   its grid row when sorted
+     * @param up  1 if up is +y, -1 if gravity is flipped
+     */
+    private void settle(final int i, final int r, final float up) {
+        float reach = diameter * diameter;
+        float cap = radius * CAP;
+        float xi = px[i];
+        float yi = py[i];
+        int cx = column(xi);
+        int left = Math.max(0, cx - 1);
+        int right = Math.min(columns - 1, cx + 1);
+        for (int n = Math.max(0, r - 1); n <= Math.min(rows - 1, r + 1); n++) {
+            int end = start[n * columns + right + 1];
+            for (int j = start[n * columns + left]; j < end; j++) {
+                float ex = xi - px[j];
+                float ey = yi - py[j];
+                float d2 = ex * ex + ey * ey;
+                if (d2 < reach && d2 > EPSILON && j != i) {
+                    float d = (float) Math.sqrt(d2);
+                    float share = HALF + SHOCK * ey * up / d;
+                    float push = Math.min(cap, diameter - d) / d;
+                    xi += ex * push * share;
+                    yi += ey * push * share;
+                    px[j] -= ex * push * (1 - share);
+                    py[j] -= ey * push * (1 - share);
+                }
+            }
+        }
+        xi = bounce(xi, WALL - radius);
+        yi = bounce(yi, CEILING - radius);
+        /* Both spikes are mirror images of the upper right edge. */
+        float ax = Math.abs(xi);
+        float ay = Math.abs(yi);
+        float depth = radius
+            - ((Bottle.SPIKE_EXTENT - ax) * SPIKE_NX + ay * SPIKE_NY);
+        if (depth > 0) {
+            ax -= SPIKE_NX * depth;
+            ay += SPIKE_NY * depth;
+            if (xi < 0) {
+                ax = -ax;
+            }
+            if (yi < 0) {
+                ay = -ay;
+            }
+            xi = ax;
+            yi = ay;
+        }
+        px[i] = xi;
+        py[i] = yi;
+    }
+
+    /**
+     * Limit how much faster a band of particles leave a substep than
+     * they were predicted to move. Pushing apart particles that sank
+     * deep into each other would otherwise fling them out; the excess
+     * moves the previous position along instead, so the overlap is
+     * still resolved without adding speed.
+     * @param lo  first particle (inclusive)
+     * @param hi  last particle (exclusive)
+     */
+    private void limit(final int lo, final int hi) {
+        float slack = Math.abs(gravity) * dt * dt;
+        for (int i = lo; i < hi; i++) {
+            float vx = px[i] - x[i];
+            float vy = py[i] - y[i];
+            float v = (float) Math.sqrt(vx * vx + vy * vy);
+            float most = (float) Math.sqrt(motion[i]) + slack;
+            if (v > most) {
+                float keep = most / v;
+                x[i] = px[i] - vx * keep;
+                y[i] = py[i] - vy * keep;
+            }
+        }
+    }
+
+    /**
+     * Keep a coordinate between two walls, reflecting any overshoot
+     * scaled by the restitution so that the particle bounces.
+     * @param at     the coordinate
+     * @param limit  the walls are at -limit and +limit
+     * @return the coordinate inside the walls
+     */
+    private float bounce(final float at, final float limit) {
+        if (at > limit) {
+            return Math.max(-limit, limit - (at - limit) * restitution);
+        } else if (at < -limit) {
+            return Math.min(limit, (-limit - at) * restitution - limit);
+        }
+        return at;
+    }
+
+    /**
+     * Return the grid column of a position.
+     * @param at  x-coordinate
+     * @return the column, clamped to the grid
+     */
+    private int column(final float at) {
+        int c = (int) ((at + HALF_W) / diameter);
+        return Math.max(0, Math.min(columns - 1, c));
+    }
+
+    /**
+     * Return the grid row of a position.
+     * @param at  y-coordinate
+     * @return the row, clamped to the grid
+     */
+    private int row(final float at) {
+        int r = (int) ((at + HALF_H) / diameter);
+        return Math.max(0, Math.min(rows - 1, r));
+    }
+
+    /**
+     * Copy every particle and the static bodies into a fresh snapshot
+     * and publish it. Particles keep their original index.
+     * @return the published snapshot
+     */
+    private Snapshot capture() {
+        Snapshot s = claim();
+        float[] sxs = s.getX();
+        float[] sys = s.getY();
+        float[] radii = s.getRadius();
+        byte[] type = s.getType();
+        for (int i = 0; i < count; i++) {
+            int k = id[i];
+            sxs[k] = px[i];
+            sys[k] = py[i];
+            radii[k] = radius;
+            type[k] = Snapshot.DYNAMIC;
+        }
+        for (int i = 0; i < STATIC_X.length; i++) {
+            sxs[count + i] = STATIC_X[i];
+            sys[count + i] = STATIC_Y[i];
+            radii[count + i] = 0;
+            type[count + i] = Snapshot.STATIC;
+        }
+        s.stamp(steps, time);
+        publish(s);
+        return s;
+    }
+}
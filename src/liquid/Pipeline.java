@@ -0,0 +1,187 @@
+package liquid;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Renders frames on a dedicated thread into a ring of three reusable
+ * frame buffers. One buffer is being rendered, one holds the latest
+ * completed frame and one is being displayed, so the display side
+ * only ever blits a finished frame and never waits on rendering.
+ * Buffers are reallocated only when the requested size changes.
+ * Rendering happens either once per request or at a steady frame
+ * rate, see {@link #setFrameRate(int)}.
+ * Frames replaced before being displayed are counted as dropped
+ * repaints in the simulation's {@link FrameStats}.
+ */
+public final class Pipeline {
+
+    private static final int FRESH = 4;
+    private static final int INDEX = 3;
+    private static final long NANOS = 1000000000L;
+
+    private final Simulation simulation;
+    private final Renderer renderer;
+    private final Runnable listener;
+    private final Frame[] frames = new Frame[3];
+
+    /* Index of the latest completed frame, plus FRESH if unseen. */
+    private final AtomicInteger ready = new AtomicInteger(1);
+    private int back = 2;  // render thread only
+    private int front = 0; // display thread only
+
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile int width;
+    private volatile int height;
+    private volatile long period = 0;
+
+    /**
+     * Start a new pipeline.
+     * @param simulation  source of the snapshots to render
+     * @param renderer    renderer used on the render thread
+     * @param listener    called on the render thread after each frame
+     */
+    public Pipeline(final Simulation simulation, final Renderer renderer,
+                    final Runnable listener) {
+        this.simulation = simulation;
+        this.renderer = renderer;
+        this.listener = listener;
+        thread = new Thread(new Runnable() {
+                public void run() {
+                    loop();
+                }
+            }, "liquid-render");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Set the size of subsequently rendered frames.
+     * @param w  width in pixels
+     * @param h  height in pixels
+     */
+    public void setSize(final int w, final int h) {
+        if (w != width || h != height) {
+            width = w;
+            height = h;
+            request();
+        }
+    }
+
+    /**
+     * Render at a steady rate while the simulation runs, placing
+     * bodies between steps, instead of once per request. Frames that
+     * cannot be rendered in time are skipped, not made up.
+     * @param fps  frames per second, or 0 to render only on request
+     */
+    public void setFrameRate(final int fps) {
+        if (fps > 0) {
+            period = NANOS / fps;
+        } else {
+            period = 0;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Ask for a new frame to be rendered. Requests made while a frame
+     * is being rendered are coalesced into one.
+     */
+    public void request() {
+        pending.set(true);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Return the most recently completed frame for display. The frame
+     * stays valid until the next call. Only one thread may call this.
+     * @return the latest frame, or null if none has been rendered yet
+     */
+    public Frame acquire() {
+        if ((ready.get() & FRESH) != 0) {
+            front = ready.getAndSet(front) & INDEX;
+        }
+        return frames[front];
+    }
+
+    /**
+     * Stop the render thread.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Main loop of the render thread.
+     */
+    private void loop() {
+        long next = System.nanoTime();
+        while (running) {
+            long rate = period;
+            boolean paced = rate > 0 && simulation.isRunning();
+            if (!pending.getAndSet(false) && !paced) {
+                LockSupport.park(this);
+                next = System.nanoTime();
+                continue;
+            }
+            if (paced) {
+                next = pace(next, rate);
+            }
+            int w = width;
+            int h = height;
+            if (w <= 0 || h <= 0) {
+                continue;
+            }
+            Frame frame = frames[back];
+            if (frame == null || !frame.fits(w, h)) {
+                if (frame != null) {
+                    frame.dispose();
+                }
+                frame = new Frame(w, h);
+                frames[back] = frame;
+            }
+            Snapshot snapshot = simulation.acquireSnapshot();
+            try {
+                float alpha = 1f;
+                if (paced) {
+                    alpha = snapshot.alpha(System.nanoTime(),
+                                           simulation.getFps());
+                }
+                renderer.render(frame, snapshot, alpha);
+            } finally {
+                snapshot.release();
+            }
+            int old = ready.getAndSet(back | FRESH);
+            if ((old & FRESH) != 0) {
+                simulation.getStats().dropped();
+            }
+            back = old & INDEX;
+            listener.run();
+        }
+    }
+
+    /**
+     * Wait for the next frame time. Requests do not cut the wait
+     * short. If rendering has fallen more than a frame behind, the
+     * missed frame times are dropped and the schedule restarts now.
+     * @param next  when the next frame is due
+     * @param rate  nanoseconds between frames
+     * @return when the frame after it is due
+     */
+    private long pace(final long next, final long rate) {
+        long now = System.nanoTime();
+        long due = next;
+        if (now - due > rate) {
+            due = now;
+        }
+        while (running && now < due) {
+            LockSupport.parkNanos(this, due - now);
+            now = System.nanoTime();
+        }
+        return due + rate;
+    }
+}
@@ -0,0 +1,33 @@
+package liquid;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * Writes each frame to its own numbered PNG file.
+ */
+public final class PngSink implements Sink {
+
+    private static final String PREFIX = "frame-";
+
+    @Override
+    public void write(final long index, final BufferedImage image)
+        throws IOException {
+        File file = new File(String.format("%s%08d.png", PREFIX, index));
+        if (!ImageIO.write(image, "PNG", file)) {
+            throw new IOException("no PNG writer for " + file);
+        }
+    }
+
+    @Override
+    public boolean isSequential() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        /* Each file is closed as it is written. */
+    }
+}
@@ -2,48 +2,320 @@ package liquid;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.util.Observable;
-import java.util.Observer;
-import javax.imageio.ImageIO;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
 import lombok.extern.java.Log;
 import lombok.val;
 
 /**
- * Latches onto a Viewer and records each frame of the
+ * Latches onto a {@link Display} and records each frame of the
  * simulation. These frames can be later reassembled into a video
- * file.
+ * file. Frames are rendered from the snapshot handed over with each
+ * step by the simulation's {@link StepBus}.
+ *
+ * Rendering happens on a delivery thread of the bus, whose ring is
+ * sized and overflows to match the policy, and encoding and
+ * writing are handed to a pool of encoder threads through a bounded
+ * set of frame buffers. Frames are numbered in order no matter which
+ * encoder finishes first, and a sequential {@link Sink} gets a single
+ * encoder so that its frames arrive in order. When every buffer is
+ * busy the recorder applies its {@link Policy}.
  */
 @Log
-public class Recorder implements Observer {
+public class Recorder implements StepBus.Listener {
 
-    private final Viewer viewer;
+    /** What to do with a new frame when every buffer is busy. */
+    public enum Policy {
+        /** Wait for a buffer to free up, holding up the simulation. */
+        BLOCK,
+        /** Skip the frame. */
+        DROP,
+        /** Dump the raw pixels to disk and encode them later. */
+        SPILL
+    }
+
+    private static final String SPILL_PREFIX = "spill-";
+    private static final long TIMEOUT = 1; // hours
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final Display viewer;
+    private final Sink sink;
+    private final Renderer renderer;
+    private final Policy policy;
+    private final BlockingQueue<Frame> free;
+    private final ExecutorService encoders;
+    private final StepBus.Subscription subscription;
+    private Frame spill;
+    private ByteBuffer spillBuffer = ByteBuffer.allocate(0);
     private long counter = 0;
-    private static final String PREFIX = "frame-";
+    private boolean closed = false;
+
+    @Getter private final AtomicLong queued = new AtomicLong();
+    @Getter private final AtomicLong encoded = new AtomicLong();
+    @Getter private final AtomicLong spilled = new AtomicLong();
+    @Getter private final AtomicLong dropped = new AtomicLong();
+    @Getter private final AtomicLong failed = new AtomicLong();
 
     /**
-     * Make a new recorder that follows the given viewer.
+     * Make a new recorder that follows the given viewer, writing PNG
+     * files with one encoder per processor and blocking backpressure.
      * @param viewer  the viewer to record
      */
-    public Recorder(final Viewer viewer) {
+    public Recorder(final Display viewer) {
+        this(viewer, new PngSink(), Runtime.getRuntime().availableProcessors(),
+             Runtime.getRuntime().availableProcessors() * 2, Policy.BLOCK);
+    }
+
+    /**
+     * Make a new recorder that follows the given viewer.
+     * @param viewer    the viewer to record
+     * @param sink      where frames are written
+     * @param threads   number of encoder threads, forced to one for
+     *                  sequential sinks
+     * @param capacity  number of frames that may wait for an encoder
+     * @param policy    what to do when all frames are waiting
+     */
+    public Recorder(final Display viewer, final Sink sink, final int threads,
+                    final int capacity, final Policy policy) {
         this.viewer = viewer;
-        viewer.getBottle().addObserver(this);
+        this.sink = sink;
+        this.policy = policy;
+        renderer = new Renderer(viewer.getOptions());
+        /* Nobody waits on recorded frames, so they keep the set detail. */
+        renderer.setBudgeted(false);
+        free = new ArrayBlockingQueue<Frame>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.add(new Frame(1, 1));
+        }
+        int n = threads;
+        if (sink.isSequential()) {
+            n = 1;
+        }
+        encoders = Executors.newFixedThreadPool(n, new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "liquid-encoder");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        StepBus.Overflow overflow = StepBus.Overflow.BLOCK;
+        if (policy == Policy.DROP) {
+            overflow = StepBus.Overflow.DROP;
+        }
+        subscription = viewer.getSimulation().subscribe(this, capacity,
+                                                        overflow);
     }
 
     @Override
-    public final void update(final Observable o, final Object arg) {
-        val image = new BufferedImage(viewer.getWidth(), viewer.getHeight(),
+    public final synchronized void step(final Snapshot snapshot) {
+        int width = viewer.getWidth();
+        int height = viewer.getHeight();
+        if (closed || width <= 0 || height <= 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            record(snapshot, width, height);
+        } finally {
+            viewer.getSimulation().getStats()
+                .since(FrameStats.Stage.RECORD, start);
+        }
+    }
+
+    /**
+     * Render a frame and hand it to an encoder, applying the policy
+     * if no frame buffer is free.
+     * @param snapshot  the world state to render
+     * @param width     frame width
+     * @param height    frame height
+     */
+    private void record(final Snapshot snapshot, final int width,
+                        final int height) {
+        Frame frame = free.poll();
+        if (frame == null) {
+            switch (policy) {
+            case BLOCK:
+                try {
+                    frame = free.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.incrementAndGet();
+                    return;
+                }
+                break;
+            case SPILL:
+                spill(snapshot, width, height);
+                return;
+            default:
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        if (!frame.fits(width, height)) {
+            frame.dispose();
+            frame = new Frame(width, height);
+        }
+        renderer.render(frame, snapshot);
+        final Frame done = frame;
+        final long index = counter++;
+        queued.incrementAndGet();
+        encoders.execute(new Runnable() {
+                public void run() {
+                    try {
+                        write(index, done.getImage());
+                    } finally {
+                        free.add(done);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Stop recording, wait for queued frames to be written and log
+     * a report. Safe to call more than once.
+     */
+    public final void close() {
+        subscription.close();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        encoders.shutdown();
+        try {
+            encoders.awaitTermination(TIMEOUT, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            sink.close();
+        } catch (IOException e) {
+            log.warning("failed to close output: " + e.getMessage());
+        }
+        log.info(report());
+    }
+
+    /**
+     * Summarize what happened to the recorded frames.
+     * @return a one-line report
+     */
+    public final String report() {
+        return String.format("recorder: %d queued, %d spilled, %d encoded, "
+                             + "%d dropped, %d failed",
+                             queued.get(), spilled.get(), encoded.get(),
+                             dropped.get(), failed.get());
+    }
+
+    /**
+     * Render a frame and dump its raw pixels to disk, to be encoded
+     * when an encoder gets to it.
+     * @param snapshot  the world state to render
+     * @param width     frame width
+     * @param height    frame height
+     */
+    private void spill(final Snapshot snapshot, final int width,
+                       final int height) {
+        if (spill == null || !spill.fits(width, height)) {
+            if (spill != null) {
+                spill.dispose();
+            }
+            spill = new Frame(width, height);
+            spillBuffer = ByteBuffer.allocate(width * height * BYTES_PER_PIXEL);
+        }
+        renderer.render(spill, snapshot);
+        final long index = counter++;
+        final File raw = new File(String.format("%s%08d.raw",
+                                                SPILL_PREFIX, index));
+        try {
+            spillBuffer.clear();
+            spillBuffer.asIntBuffer().put(spill.getPixels());
+            val out = new RandomAccessFile(raw, "rw");
+            try {
+                FileChannel channel = out.getChannel();
+                while (spillBuffer.hasRemaining()) {
+                    channel.write(spillBuffer);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            log.warning("failed to spill " + raw + ": " + e.getMessage());
+            failed.incrementAndGet();
+            return;
+        }
+        spilled.incrementAndGet();
+        encoders.execute(new Runnable() {
+                public void run() {
+                    unspill(raw, width, height, index);
+                }
+            });
+    }
+
+    /**
+     * Load a spilled frame back from disk and encode it.
+     * @param raw     the spilled raw pixels
+     * @param width   frame width
+     * @param height  frame height
+     * @param index   the frame number
+     */
+    private void unspill(final File raw, final int width, final int height,
+                         final long index) {
+        val image = new BufferedImage(width, height,
                                       BufferedImage.TYPE_INT_RGB);
-        val g = image.createGraphics();
-        viewer.paintComponent(g);
-        g.dispose();
-        val file = new File(String.format("%s%08d.png", PREFIX, counter++));
         try {
-            ImageIO.write(image, "PNG", file);
-        } catch (java.io.IOException e) {
-            log.warning("failed to write " + file + ": " + e.getMessage());
+            val in = new RandomAccessFile(raw, "r");
+            try {
+                val buf = ByteBuffer.allocate((int) raw.length());
+                FileChannel channel = in.getChannel();
+                int n;
+                do {
+                    n = channel.read(buf);
+                } while (n >= 0 && buf.hasRemaining());
+                buf.flip();
+                buf.asIntBuffer().get(Threshold.pixels(image));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warning("failed to read " + raw + ": " + e.getMessage());
+            failed.incrementAndGet();
+            return;
+        }
+        write(index, image);
+        if (!raw.delete()) {
+            log.warning("failed to delete " + raw);
+        }
+    }
+
+    /**
+     * Write a frame to the sink. Runs on an encoder thread.
+     * @param index  the frame number
+     * @param image  the frame
+     */
+    private void write(final long index, final BufferedImage image) {
+        try {
+            sink.write(index, image);
+            encoded.incrementAndGet();
+        } catch (IOException e) {
+            log.warning("failed to write frame " + index + ": "
+                        + e.getMessage());
+            failed.incrementAndGet();
         } catch (java.security.AccessControlException e) {
-            log.warning("failed to write " + file + ": " + e.getMessage());
-            viewer.getBottle().deleteObserver(this);
+            log.warning("failed to write frame " + index + ": "
+                        + e.getMessage());
+            failed.incrementAndGet();
+            subscription.cancel();
             log.info("unsubscribed");
         }
     }
@@ -0,0 +1,954 @@
+package liquid;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Renders a world snapshot into a frame: rasterize the balls, blur,
+ * threshold, then draw the static bodies on top. When the balls belong
+ * to several liquids, each liquid is rasterized into its own channel
+ * of the same field, so they are all blurred in one pass; each channel
+ * is then thresholded against its own limit and drawn in its liquid's
+ * color. Splatting has only one channel and is skipped for those.
+ *
+ * Rendered incrementally, the blurred field is kept between frames
+ * and only the {@link Tiles} near balls that moved more than a
+ * fraction of a pixel are rasterized, blurred and thresholded again.
+ * Each ball is drawn where it was when its tiles were last redone, so
+ * the field is always exactly what a full render of those positions
+ * would give. This applies at full detail without contours; other
+ * frames are rendered whole.
+ *
+ * An instance keeps its scratch buffers between frames, so once warm
+ * it only allocates when the frame size changes. Instances are not
+ * thread-safe; each rendering thread needs its own, possibly sharing
+ * one set of options.
+ */
+public final class Renderer {
+
+    /** Pixels per world unit. */
+    static final float SCALE = 5f;
+
+    private static final Color BACKGROUND = Color.BLACK;
+    private static final Color FOREGROUND = Color.WHITE;
+    private static final Color STATIC     = Color.GRAY;
+    /** Size of the blur kernel in pixels. */
+    static final int KERNEL_SIZE = 12;
+    /** Minimum sum of the blurred channels drawn as liquid. */
+    static final int THRESHOLD = 28 * 3;
+    /* Gray level of the threshold, as it sums three equal channels. */
+    private static final float LEVEL = THRESHOLD / 3f;
+    /* The same level for one liquid's channel. */
+    private static final int CHANNEL = THRESHOLD / 3;
+    /* Circles narrower than this many pixels are added as coverage. */
+    private static final float DOT = 1f;
+    private static final int MASK = 0xff;
+    private static final int GRAY = 0x010101;
+    private static final int RGB = 0xffffff;
+    private static final int ALPHA = 24;
+    private static final float HALF = 0.5f;
+    private static final int MIN_ROWS = 16;
+    private static final double MILLIS = 1e6;
+    /* Pixels a ball may move before its tiles are redone. */
+    private static final float EPSILON = 1f / Disc.SUB;
+
+    @Getter private final Options options;
+
+    private Blur blurrer;
+    private int blurSize;
+    private final Threshold thresholder =
+        new Threshold(THRESHOLD, FOREGROUND, BACKGROUND);
+    /* Threshold of the last number of liquids above one. */
+    private Threshold mixer;
+    private int mixed;
+    private final Splat splatter = new Splat(KERNEL_SIZE);
+    private final Contour contour = new Contour();
+
+    /** Number of liquids outlined in the last frame, 0 if not traced. */
+    @Getter private int surfaces = 0;
+    private final Path2D.Float[] outlines = new Path2D.Float[Liquid.MAX];
+
+    /* Padded rasterization and blur buffers. */
+    private Frame work;
+    private int[] half = new int[0];
+    private int[] blurred = new int[0];
+
+    /* Tiles of the field to redo, or null if nothing is kept. */
+    private Tiles tiles;
+    /* What the kept field was rendered with. */
+    private Blur tiledBlur;
+    private Threshold tiledThreshold;
+    private int tiledLiquids;
+    /* Where each ball was last drawn into the kept field, in pixels. */
+    private float[] drawnX = new float[0];
+    private float[] drawnY = new float[0];
+    private float[] drawnRadius = new float[0];
+    private byte[] drawnLiquid = new byte[0];
+
+    /** Fraction of the field redone in the last frame. */
+    @Getter private float redone = 1f;
+
+    /* Lowers the level of detail while frames run over budget. */
+    private Governor governor;
+    private Lod governed;
+    private double governedBudget;
+    /** Whether the budget in the options applies to this renderer. */
+    @Getter @Setter private boolean budgeted = true;
+
+    /** Where stage timings are reported, or null to not measure. */
+    @Getter @Setter private FrameStats stats;
+
+    private final Ellipse2D.Float circle = new Ellipse2D.Float();
+    private final AffineTransform identity = new AffineTransform();
+    private final AffineTransform transform = new AffineTransform();
+    private final Path2D.Float polygon = new Path2D.Float();
+
+    /* Disc sprites by radius in pixels, and the last one used. */
+    private final Map<Float, Disc> discs = new HashMap<Float, Disc>();
+    private Disc disc;
+
+    /* Pixels covered by static bodies and their colors, with alpha. */
+    private int[] layerIndex = new int[0];
+    private int[] layerColor = new int[0];
+    private float[][] layerShapes;
+    private int layerWidth;
+    private int layerHeight;
+
+    /**
+     * Create a renderer.
+     * @param options  rendering options, possibly shared
+     */
+    public Renderer(final Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Return the outline of one liquid in the last frame, reused by the
+     * next frame.
+     * @param liquid  the liquid, below {@link #getSurfaces()}
+     * @return its outline
+     */
+    public Path2D getSurface(final int liquid) {
+        return outlines[liquid];
+    }
+
+    /**
+     * Return the natural display size for a view of the world.
+     * @param view  the area of interest in world units
+     * @return the size in pixels
+     */
+    public static Dimension size(final Rectangle2D view) {
+        return new Dimension((int) (view.getWidth() * SCALE),
+                             (int) (view.getHeight() * SCALE));
+    }
+
+    /**
+     * Render a snapshot of a world into a frame.
+     * @param frame  the destination frame
+     * @param s      the world state to render
+     */
+    public void render(final Frame frame, final Snapshot s) {
+        render(frame, s, 1f);
+    }
+
+    /**
+     * Render a snapshot of a world into a frame, with bodies placed
+     * between their previous and current poses.
+     * @param frame  the destination frame
+     * @param s      the world state to render
+     * @param alpha  0 for the previous step, 1 for the snapshot's own
+     */
+    public void render(final Frame frame, final Snapshot s,
+                       final float alpha) {
+        long start = System.nanoTime();
+        surfaces = 0;
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        Graphics2D g = frame.getGraphics();
+        int liquids = s.liquids();
+        Threshold t = null;
+        if (options.isThreshold()) {
+            t = threshold(liquids);
+        }
+        if (!options.isBlur()) {
+            g.setTransform(identity);
+            g.setColor(BACKGROUND);
+            g.fillRect(0, 0, width, height);
+            draw(g, width, height, s, alpha, Snapshot.DYNAMIC, FOREGROUND,
+                 SCALE);
+            circles(frame.getPixels(), width, height, s, alpha, SCALE,
+                    liquids);
+            mark(FrameStats.Stage.RASTERIZE, start);
+        } else if (options.isSplat() && liquids == 1) {
+            splat(width, height, s, alpha, t, frame.getPixels());
+        } else {
+            blur(frame, s, alpha, t, lod(), liquids);
+        }
+        statics(frame, s);
+        if (governor != null) {
+            governor.update(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Rasterize the dynamic bodies at a level of detail, blur them and
+     * threshold the result into a frame. Below full detail the blurred
+     * field is scaled up bilinearly and thresholded afterwards, so the
+     * liquid keeps smooth edges. When tracing contours the threshold is
+     * replaced by an antialiased fill of the outline.
+     * @param frame    the destination frame
+     * @param s        the world state to render
+     * @param alpha    interpolation factor between steps
+     * @param t        threshold to apply, or null
+     * @param lod      the level of detail
+     * @param liquids  number of liquids, each in its own channel if more
+     *                 than one
+     */
+    private void blur(final Frame frame, final Snapshot s, final float alpha,
+                      final Threshold t, final Lod lod, final int liquids) {
+        long time = System.nanoTime();
+        int d = lod.getDivisor();
+        int k = KERNEL_SIZE / d;
+        float scale = SCALE / d;
+        int w = (frame.getWidth() + d - 1) / d + k * 2;
+        int h = (frame.getHeight() + d - 1) / d + k * 2;
+        if (work == null || !work.fits(w, h)) {
+            if (work != null) {
+                work.dispose();
+            }
+            work = new Frame(w, h, false);
+            half = new int[w * h];
+            blurred = new int[w * h];
+        }
+        boolean outline = options.isContour() && t != null;
+        if (options.isIncremental() && d == 1 && !outline
+            && !dynamicShapes(s)) {
+            tiled(frame, s, alpha, t, w, h, k, liquids);
+            return;
+        }
+        tiles = null;
+        redone = 1f;
+        Graphics2D wg = work.getGraphics();
+        wg.setTransform(identity);
+        wg.setColor(BACKGROUND);
+        wg.fillRect(0, 0, w, h);
+        draw(wg, w, h, s, alpha, Snapshot.DYNAMIC, FOREGROUND, scale);
+        circles(work.getPixels(), w, h, s, alpha, scale, liquids);
+        time = mark(FrameStats.Stage.RASTERIZE, time);
+
+        /* Blur, thresholding during the final pass at full detail. */
+        Blur b = blur(k, liquids);
+        b.vertical(work.getPixels(), half, w, h);
+        time = mark(FrameStats.Stage.BLUR_V, time);
+        Threshold fused = null;
+        if (d == 1 && !outline) {
+            fused = t;
+        }
+        b.horizontal(half, blurred, w, h, fused);
+        time = mark(FrameStats.Stage.BLUR_H, time);
+        if (outline) {
+            outline(frame, w, h, k, d, liquids);
+            mark(FrameStats.Stage.CONTOUR, time);
+        } else if (d == 1) {
+            copy(frame, w, k);
+        } else {
+            upscale(frame, w, k, d, t, liquids);
+            mark(FrameStats.Stage.UPSCALE, time);
+        }
+    }
+
+    /**
+     * Copy the visible region of the blurred field into a frame.
+     * @param frame  the destination frame
+     * @param w      width of the blurred field
+     * @param k      border around the visible region of the field
+     */
+    private void copy(final Frame frame, final int w, final int k) {
+        int width = frame.getWidth();
+        int[] pixels = frame.getPixels();
+        for (int y = 0; y < frame.getHeight(); y++) {
+            System.arraycopy(blurred, (y + k) * w + k,
+                             pixels, y * width, width);
+        }
+    }
+
+    /**
+     * Render the dynamic circles at full detail, redoing only the tiles
+     * of the kept field within a kernel of a ball that moved. The whole
+     * field is redone when anything else it depends on has changed.
+     * @param frame    the destination frame
+     * @param s        the world state to render
+     * @param alpha    interpolation factor between steps
+     * @param t        threshold to apply, or null
+     * @param w        width of the field
+     * @param h        height of the field
+     * @param k        border around the visible region of the field
+     * @param liquids  number of liquids, each in its own channel if more
+     *                 than one
+     */
+    private void tiled(final Frame frame, final Snapshot s, final float alpha,
+                       final Threshold t, final int w, final int h,
+                       final int k, final int liquids) {
+        long time = System.nanoTime();
+        Blur b = blur(k, liquids);
+        int n = s.getCount();
+        int[] raster = work.getPixels();
+        boolean whole = tiles == null || !tiles.fits(w, h) || b != tiledBlur
+            || t != tiledThreshold || liquids != tiledLiquids
+            || drawnX.length != n;
+        if (whole) {
+            tiles = new Tiles(w, h);
+            tiledBlur = b;
+            tiledThreshold = t;
+            tiledLiquids = liquids;
+            drawnX = new float[n];
+            drawnY = new float[n];
+            drawnRadius = new float[n];
+            drawnLiquid = new byte[n];
+        } else {
+            tiles.clear();
+        }
+        float[] radius = s.getRadius();
+        byte[] types = s.getType();
+        byte[] liquid = s.getLiquid();
+        for (int i = 0; i < n; i++) {
+            if (types[i] != Snapshot.DYNAMIC) {
+                continue;
+            }
+            float x = w / 2 + s.x(i, alpha) * SCALE;
+            float y = h / 2 - s.y(i, alpha) * SCALE;
+            float r = radius[i] * SCALE;
+            if (whole || Math.abs(x - drawnX[i]) > EPSILON
+                || Math.abs(y - drawnY[i]) > EPSILON
+                || r != drawnRadius[i] || liquid[i] != drawnLiquid[i]) {
+                touch(i, k);
+                drawnX[i] = x;
+                drawnY[i] = y;
+                drawnRadius[i] = r;
+                drawnLiquid[i] = liquid[i];
+                touch(i, k);
+            }
+        }
+        redone = tiles.getCount() / (float) tiles.getSize();
+        if (tiles.getCount() > 0) {
+            clear(raster, w);
+            stamp(raster, w, h, liquids);
+            time = mark(FrameStats.Stage.RASTERIZE, time);
+            b.vertical(raster, half, w, h, tiles);
+            time = mark(FrameStats.Stage.BLUR_V, time);
+            b.horizontal(half, blurred, w, h, t, tiles);
+            mark(FrameStats.Stage.BLUR_H, time);
+        }
+        copy(frame, w, k);
+    }
+
+    /**
+     * Mark the tiles a drawn ball affects once blurred as dirty.
+     * @param i  index of the ball
+     * @param k  radius of the blur
+     */
+    private void touch(final int i, final int k) {
+        float r = drawnRadius[i] + k + 1;
+        tiles.mark((int) Math.floor(drawnX[i] - r),
+                   (int) Math.floor(drawnY[i] - r),
+                   (int) Math.ceil(drawnX[i] + r) + 1,
+                   (int) Math.ceil(drawnY[i] + r) + 1);
+    }
+
+    /**
+     * Clear the dirty tiles of a raster to the background.
+     * @param raster  packed pixels
+     * @param w       width of the raster
+     */
+    private void clear(final int[] raster, final int w) {
+        for (int r = 0; r < tiles.getRows(); r++) {
+            for (int c = 0; c < tiles.getColumns(); c++) {
+                if (!tiles.isDirty(c, r)) {
+                    continue;
+                }
+                int x0 = tiles.left(c);
+                int x1 = tiles.left(c + 1);
+                for (int y = tiles.top(r); y < tiles.top(r + 1); y++) {
+                    Arrays.fill(raster, y * w + x0, y * w + x1, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draw every ball touching a dirty tile where it was last drawn, as
+     * {@link #circles} would. Disc stamps keep the brighter pixel, so
+     * stamping a ball again over clean tiles changes nothing there.
+     * Coverage of tiny balls adds up instead and goes to dirty tiles
+     * only.
+     * @param raster   packed pixels
+     * @param w        width of the raster
+     * @param h        height of the raster
+     * @param liquids  number of liquids
+     */
+    private void stamp(final int[] raster, final int w, final int h,
+                       final int liquids) {
+        for (int i = 0; i < drawnX.length; i++) {
+            float x = drawnX[i];
+            float y = drawnY[i];
+            float r = drawnRadius[i];
+            if (r <= 0 || !tiles.touches((int) (x - r) - 1, (int) (y - r) - 1,
+                                         (int) (x + r) + 2,
+                                         (int) (y + r) + 2)) {
+                continue;
+            }
+            int shift = 0;
+            int unit = GRAY;
+            if (liquids > 1) {
+                shift = Liquid.shift(drawnLiquid[i]);
+                unit = 1 << shift;
+            }
+            if (r >= DOT && liquids > 1) {
+                disc(r).stamp(raster, w, h, x, y, shift);
+                continue;
+            } else if (r >= DOT) {
+                disc(r).stamp(raster, w, h, x, y);
+                continue;
+            }
+            int px = (int) x;
+            int py = (int) y;
+            if (px < 0 || py < 0 || px >= w || py >= h
+                || !tiles.isDirtyAt(px, py)) {
+                continue;
+            }
+            int j = py * w + px;
+            int p = raster[j];
+            int v = ((p >> shift) & MASK)
+                + (int) (Math.PI * r * r * MASK + HALF);
+            raster[j] = (p & ~(MASK * unit)) | Math.min(MASK, v) * unit;
+        }
+    }
+
+    /**
+     * Return true if a snapshot has dynamic polygons, which are drawn
+     * through Java2D and never incrementally.
+     * @param s  the world state
+     * @return true if any dynamic body is a polygon
+     */
+    private static boolean dynamicShapes(final Snapshot s) {
+        byte[] types = s.getType();
+        float[][] shapes = s.getShape();
+        for (int i = 0; i < s.getCount(); i++) {
+            if (types[i] == Snapshot.DYNAMIC && shapes[i] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Trace the outline of the liquid in the blurred field and fill it,
+     * antialiased, into a frame. Several liquids are traced one channel
+     * at a time and filled in their own colors. Each outline is kept as
+     * a surface.
+     * @param frame    the destination frame
+     * @param w        width of the blurred field
+     * @param h        height of the blurred field
+     * @param k        border around the visible region of the field
+     * @param d        how many frame pixels span one field pixel
+     * @param liquids  number of liquids in the field
+     */
+    private void outline(final Frame frame, final int w, final int h,
+                         final int k, final int d, final int liquids) {
+        Graphics2D g = frame.getGraphics();
+        g.setTransform(identity);
+        g.setColor(BACKGROUND);
+        g.fillRect(0, 0, frame.getWidth(), frame.getHeight());
+        Object hint = g.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                           RenderingHints.VALUE_ANTIALIAS_ON);
+        for (int i = 0; i < liquids; i++) {
+            Path2D p;
+            if (liquids == 1) {
+                p = contour.trace(blurred, w, h, LEVEL, HALF - k, d);
+                g.setColor(FOREGROUND);
+            } else {
+                p = contour.trace(blurred, Liquid.shift(i), w, h,
+                                  LEVEL, HALF - k, d);
+                g.setColor(Liquid.ALL[i].getColor());
+            }
+            g.fill(p);
+            if (outlines[i] == null) {
+                outlines[i] = new Path2D.Float(Path2D.WIND_EVEN_ODD);
+            }
+            outlines[i].reset();
+            outlines[i].append(p, false);
+        }
+        surfaces = liquids;
+        if (hint != null) {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, hint);
+        }
+    }
+
+    /**
+     * Scale the visible region of the blurred field up into a frame
+     * with bilinear filtering, thresholding each output pixel.
+     * @param frame    the destination frame
+     * @param w        width of the blurred field
+     * @param k        border around the visible region of the field
+     * @param d        how many frame pixels span one field pixel
+     * @param t        threshold to apply, or null
+     * @param liquids  number of liquids, each in its own channel if more
+     *                 than one
+     */
+    private void upscale(final Frame frame, final int w, final int k,
+                         final int d, final Threshold t, final int liquids) {
+        final int width = frame.getWidth();
+        final int[] pixels = frame.getPixels();
+        final int[] field = blurred;
+        final float step = 1f / d;
+        final float offset = k + step / 2 - HALF;
+        Parallel.run(frame.getHeight(), MIN_ROWS, new Parallel.Pass() {
+                public void run(final int lo, final int hi) {
+                    for (int y = lo; y < hi; y++) {
+                        float fy = y * step + offset;
+                        int y0 = (int) fy;
+                        float wy = fy - y0;
+                        int row = y0 * w;
+                        for (int x = 0; x < width; x++) {
+                            float fx = x * step + offset;
+                            int x0 = (int) fx;
+                            float wx = fx - x0;
+                            int i = row + x0;
+                            int rgb;
+                            if (liquids == 1) {
+                                rgb = bilinear(field, i, w, wx, wy, 0) * GRAY;
+                            } else {
+                                rgb = 0;
+                                for (int c = 0; c < liquids; c++) {
+                                    int shift = Liquid.shift(c);
+                                    rgb |= bilinear(field, i, w, wx, wy,
+                                                    shift) << shift;
+                                }
+                            }
+                            if (t != null) {
+                                rgb = t.apply(rgb);
+                            }
+                            pixels[y * width + x] = rgb;
+                        }
+                    }
+                }
+            });
+    }
+
+    /**
+     * Interpolate one channel of a packed field bilinearly between a
+     * sample and its neighbors to the right and below.
+     * @param field  packed pixels
+     * @param i      index of the top left sample
+     * @param w      width of the field
+     * @param wx     weight of the right samples, 0 to 1
+     * @param wy     weight of the bottom samples, 0 to 1
+     * @param shift  bit shift of the channel
+     * @return the rounded channel value
+     */
+    private static int bilinear(final int[] field, final int i, final int w,
+                                final float wx, final float wy,
+                                final int shift) {
+        float top = lerp((field[i] >> shift) & MASK,
+                         (field[i + 1] >> shift) & MASK, wx);
+        float bottom = lerp((field[i + w] >> shift) & MASK,
+                            (field[i + w + 1] >> shift) & MASK, wx);
+        return (int) (lerp(top, bottom, wy) + HALF);
+    }
+
+    /**
+     * Interpolate linearly between two values.
+     * @param a  the value at 0
+     * @param b  the value at 1
+     * @param f  where between them, 0 to 1
+     * @return the interpolated value
+     */
+    private static float lerp(final float a, final float b, final float f) {
+        return a + (b - a) * f;
+    }
+
+    /**
+     * Choose the level of detail of the next frame: the selected one,
+     * or a coarser one while frames take longer than the budget.
+     * @return the level of detail
+     */
+    private Lod lod() {
+        Lod finest = options.getLod();
+        double budget = options.getBudget();
+        if (!budgeted || budget <= 0) {
+            governor = null;
+            return finest;
+        }
+        Lod[] levels = Lod.values();
+        int top = levels.length - 1 - finest.ordinal();
+        if (governor == null || governed != finest
+            || governedBudget != budget) {
+            double[] costs = new double[levels.length];
+            for (int i = 0; i < costs.length; i++) {
+                int d = levels[levels.length - 1 - i].getDivisor();
+                costs[i] = 1.0 / (d * d);
+            }
+            governor = new Governor(costs, 0, top, top,
+                                    (long) (budget * MILLIS));
+            governed = finest;
+            governedBudget = budget;
+        }
+        return levels[levels.length - 1 - governor.getLevel()];
+    }
+
+    /**
+     * Report the end of a stage, if measuring.
+     * @param stage  the stage that just finished
+     * @param start  System.nanoTime() when it started
+     * @return the current time
+     */
+    private long mark(final FrameStats.Stage stage, final long start) {
+        if (stats == null) {
+            return start;
+        }
+        return stats.since(stage, start);
+    }
+
+    /**
+     * Return the blur for the currently selected mode. A field of
+     * several liquids is not gray, so it gets the three-channel
+     * Gaussian instead of the one-channel one.
+     * @param size     radius of the kernel, in pixels
+     * @param liquids  number of liquids in the field
+     * @return the blur engine
+     */
+    private Blur blur(final int size, final int liquids) {
+        Blur.Mode mode = options.getBlurMode();
+        if (liquids > 1 && mode == Blur.Mode.LUMA) {
+            mode = Blur.Mode.GAUSSIAN;
+        }
+        if (blurrer == null || blurrer.getMode() != mode
+            || blurSize != size) {
+            blurrer = new Blur(size, mode);
+            blurSize = size;
+        }
+        return blurrer;
+    }
+
+    /**
+     * Return the threshold for a number of liquids.
+     * @param liquids  number of liquids in the field
+     * @return the summed threshold for one, else one limit per channel
+     */
+    private Threshold threshold(final int liquids) {
+        if (liquids == 1) {
+            return thresholder;
+        }
+        if (mixer == null || mixed != liquids) {
+            int[] limits = new int[liquids];
+            Color[] colors = new Color[liquids];
+            for (int i = 0; i < liquids; i++) {
+                limits[i] = CHANNEL;
+                colors[i] = Liquid.ALL[i].getColor();
+            }
+            mixer = new Threshold(limits, colors, BACKGROUND);
+            mixed = liquids;
+        }
+        return mixer;
+    }
+
+    /**
+     * Draw bodies of one type onto the given graphics. Dynamic circles
+     * are left to {@link #circles}.
+     * @param g       the graphics context to use
+     * @param width   width of the drawing context
+     * @param height  height of the drawing context
+     * @param s       the world state to draw
+     * @param alpha   interpolation factor between steps
+     * @param type    the type of body to draw
+     * @param color   the color to draw the bodies
+     * @param scale   pixels per world unit
+     */
+    private void draw(final Graphics2D g, final int width, final int height,
+                      final Snapshot s, final float alpha, final byte type,
+                      final Color color, final float scale) {
+        /* Set up coordinate system. */
+        g.translate(width / 2, height / 2);
+        g.scale(scale, -scale);
+
+        /* Draw each body. */
+        g.setColor(color);
+        float[] radius = s.getRadius();
+        byte[] types = s.getType();
+        float[][] shapes = s.getShape();
+        for (int i = 0; i < s.getCount(); i++) {
+            if (types[i] != type) {
+                continue;
+            }
+            float x = s.x(i, alpha);
+            float y = s.y(i, alpha);
+            if (shapes[i] != null) {
+                draw(g, x, y, s.angle(i, alpha), shapes[i]);
+            } else if (type != Snapshot.DYNAMIC && radius[i] * scale >= DOT) {
+                float r = radius[i];
+                circle.setFrame(x - r, y - r, r * 2, r * 2);
+                g.fill(circle);
+            }
+        }
+    }
+
+    /**
+     * Draw the dynamic circles straight into packed gray pixels, or
+     * into the channel of each circle's liquid if there are several.
+     * Those at least a pixel wide are stamped from a pre-rasterized
+     * disc. Smaller ones are added as coverage, which filling them as
+     * shapes would mostly miss; the blur that follows spreads them out
+     * the same either way.
+     * @param pixels   the packed pixels to draw into
+     * @param width    width of the pixels
+     * @param height   height of the pixels
+     * @param s        the world state to draw
+     * @param alpha    interpolation factor between steps
+     * @param scale    pixels per world unit
+     * @param liquids  number of liquids
+     */
+    private void circles(final int[] pixels, final int width,
+                         final int height, final Snapshot s,
+                         final float alpha, final float scale,
+                         final int liquids) {
+        float[] radius = s.getRadius();
+        byte[] types = s.getType();
+        byte[] liquid = s.getLiquid();
+        float[][] shapes = s.getShape();
+        for (int i = 0; i < s.getCount(); i++) {
+            float r = radius[i] * scale;
+            if (types[i] != Snapshot.DYNAMIC || shapes[i] != null || r <= 0) {
+                continue;
+            }
+            float x = width / 2 + s.x(i, alpha) * scale;
+            float y = height / 2 - s.y(i, alpha) * scale;
+            int shift = 0;
+            int unit = GRAY;
+            if (liquids > 1) {
+                shift = Liquid.shift(liquid[i]);
+                unit = 1 << shift;
+            }
+            if (r >= DOT && liquids > 1) {
+                disc(r).stamp(pixels, width, height, x, y, shift);
+                continue;
+            } else if (r >= DOT) {
+                disc(r).stamp(pixels, width, height, x, y);
+                continue;
+            }
+            int px = (int) x;
+            int py = (int) y;
+            if (px < 0 || py < 0 || px >= width || py >= height) {
+                continue;
+            }
+            int k = py * width + px;
+            int p = pixels[k];
+            int v = ((p >> shift) & MASK)
+                + (int) (Math.PI * r * r * MASK + HALF);
+            pixels[k] = (p & ~(MASK * unit)) | Math.min(MASK, v) * unit;
+        }
+    }
+
+    /**
+     * Return the disc sprite of a radius, rasterizing it the first time.
+     * @param r  radius in pixels
+     * @return the disc
+     */
+    private Disc disc(final float r) {
+        if (disc == null || disc.getRadius() != r) {
+            disc = discs.get(r);
+            if (disc == null) {
+                disc = new Disc(r);
+                discs.put(r, disc);
+            }
+        }
+        return disc;
+    }
+
+    /**
+     * Draw the static bodies into a frame. They never move, so they are
+     * drawn once into a layer and only the pixels they cover are kept;
+     * the layer is redrawn when the frame size or the bodies change.
+     * @param frame  the destination frame
+     * @param s      the world state to draw
+     */
+    private void statics(final Frame frame, final Snapshot s) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        if (layerShapes != s.getShape() || layerWidth != width
+            || layerHeight != height) {
+            layer(frame, s);
+        }
+        int[] pixels = frame.getPixels();
+        for (int i = 0; i < layerIndex.length; i++) {
+            int src = layerColor[i];
+            int a = src >>> ALPHA;
+            int k = layerIndex[i];
+            if (a == MASK) {
+                pixels[k] = src & RGB;
+            } else {
+                pixels[k] = blend(pixels[k], src, a);
+            }
+        }
+    }
+
+    /**
+     * Draw the static bodies into a fresh layer and keep the pixels
+     * they cover, with their coverage as alpha.
+     * @param frame  the frame the layer is for
+     * @param s      the world state to draw
+     */
+    private void layer(final Frame frame, final Snapshot s) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        BufferedImage image = new BufferedImage(width, height,
+                                                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D lg = image.createGraphics();
+        lg.setRenderingHints(frame.getGraphics().getRenderingHints());
+        draw(lg, width, height, s, 1f, Snapshot.STATIC, STATIC, SCALE);
+        lg.dispose();
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+        int n = 0;
+        for (int v : argb) {
+            if (v >>> ALPHA != 0) {
+                n++;
+            }
+        }
+        layerIndex = new int[n];
+        layerColor = new int[n];
+        for (int k = 0, i = 0; k < argb.length; k++) {
+            if (argb[k] >>> ALPHA != 0) {
+                layerIndex[i] = k;
+                layerColor[i++] = argb[k];
+            }
+        }
+        layerShapes = s.getShape();
+        layerWidth = width;
+        layerHeight = height;
+    }
+
+    /**
+     * Blend a color over a pixel.
+     * @param dst  the packed RGB pixel
+     * @param src  the packed color
+     * @param a    opacity of the color, 0 to 255
+     * @return the blended pixel
+     */
+    private static int blend(final int dst, final int src, final int a) {
+        int out = 0;
+        for (int shift = 0; shift < ALPHA; shift += Byte.SIZE) {
+            int d = (dst >> shift) & MASK;
+            int c = (src >> shift) & MASK;
+            out |= (d + (c - d) * a / MASK) << shift;
+        }
+        return out;
+    }
+
+    /**
+     * Render the dynamic circles by splatting them into a density field.
+     * @param width      width of the field
+     * @param height     height of the field
+     * @param s          the world state to draw
+     * @param alpha      interpolation factor between steps
+     * @param t          threshold applied to the field, or null
+     * @param pixels     destination pixels, width * height in size
+     */
+    private void splat(final int width, final int height, final Snapshot s,
+                       final float alpha, final Threshold t,
+                       final int[] pixels) {
+        long time = System.nanoTime();
+        splatter.clear(width, height);
+        float[] radius = s.getRadius();
+        byte[] types = s.getType();
+        for (int i = 0; i < s.getCount(); i++) {
+            if (types[i] == Snapshot.DYNAMIC && radius[i] > 0) {
+                splatter.add(width / 2 + s.x(i, alpha) * SCALE,
+                             height / 2 - s.y(i, alpha) * SCALE,
+                             radius[i] * SCALE);
+            }
+        }
+        time = mark(FrameStats.Stage.RASTERIZE, time);
+        splatter.resolve(pixels, t);
+        mark(FrameStats.Stage.THRESHOLD, time);
+    }
+
+    /**
+     * Draw a polygon body.
+     * @param g       the graphics context to use
+     * @param x       x-position of the body
+     * @param y       y-position of the body
+     * @param angle   the rotation of the body
+     * @param vertex  local vertices of the polygon
+     */
+    private void draw(final Graphics2D g, final float x, final float y,
+                      final float angle, final float[] vertex) {
+        polygon.reset();
+        polygon.moveTo(vertex[0], vertex[1]);
+        for (int i = 2; i < vertex.length; i += 2) {
+            polygon.lineTo(vertex[i], vertex[i + 1]);
+        }
+        polygon.closePath();
+        transform.setToTranslation(x, y);
+        transform.rotate(angle);
+        polygon.transform(transform);
+        g.fill(polygon);
+    }
+
+    /**
+     * Rendering options. These may be shared between renderers and
+     * changed from any thread; renderers pick up changes on their
+     * next frame.
+     */
+    public static final class Options {
+        @Getter @Setter private volatile boolean blur = true;
+        @Getter @Setter private volatile boolean threshold = true;
+        @Getter @Setter private volatile boolean splat = false;
+        /** The rasterized field is gray, so one channel is blurred. */
+        @Getter @Setter private volatile Blur.Mode blurMode =
+            Blur.Mode.LUMA;
+        /** Fill a traced outline of the liquid instead of thresholding. */
+        @Getter @Setter private volatile boolean contour = false;
+        /** Level of detail of the blur, or the finest one if governed. */
+        @Getter @Setter private volatile Lod lod = Lod.FULL;
+        /** Milliseconds a frame may take before detail is lowered, or 0. */
+        @Getter @Setter private volatile double budget = 0;
+        /** Redo only the tiles near balls that moved, at full detail. */
+        @Getter @Setter private volatile boolean incremental = false;
+    }
+
+    /**
+     * Level of detail of the blurred liquid. Coarser levels rasterize
+     * and blur a smaller field with a smaller kernel, then scale it up.
+     */
+    public enum Lod {
+        /** Every pixel. */
+        FULL(1),
+        /** Half the width and height. */
+        HALF(2),
+        /** A quarter of the width and height. */
+        QUARTER(4);
+
+        /** Frame pixels spanned by one field pixel, across and down. */
+        @Getter private final int divisor;
+
+        /**
+         * Create a level of detail.
+         * @param divisor  frame pixels per field pixel
+         */
+        Lod(final int divisor) {
+            this.divisor = divisor;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package liquid;
+
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import lombok.Getter;
+
+/**
+ * Plays back a trace written by {@link TraceWriter} in place of a live
+ * physics world. The file is memory-mapped and its chunk headers are
+ * scanned once on open to build an index, so any step can be reached
+ * by decoding at most one chunk. A truncated final chunk, as left by
+ * a run that was killed, is ignored.
+ *
+ * When started, the replay steps at the recorded rate and stops at the
+ * end of the trace. It can also be driven directly with {@link
+ * #advance()} and {@link #seek(long)}, which run as fast as decoding
+ * allows, e.g. by a {@link Batch}.
+ */
+public final class Replay extends Simulation {
+
+    private static final int ANGLE_MASK = 0xffff;
+    private static final int INITIAL_CHUNKS = 64;
+
+    private final MappedByteBuffer map;
+    private final Rectangle2D view;
+    private final int count;
+    private final int[] bodies;
+    private final byte[] type;
+    private final byte[] liquid;
+    private final float[] x;
+    private final float[] y;
+    private final float[] angle;
+    private final float[] radius;
+    private final int[] qx;
+    private final int[] qy;
+    private final int[] qa;
+
+    /* Chunk index. */
+    private final int chunks;
+    private final int[] offsets;
+    private final long[] firsts;
+    private final int[] lengths;
+
+    private int chunk = -1;
+    private int remaining = 0;
+
+    /** Step number of the current state. */
+    @Getter private long step;
+    /** Step number of the first recorded step. */
+    @Getter private final long first;
+    /** Step number of the last recorded step. */
+    @Getter private final long last;
+
+    /**
+     * Open a trace and publish its first recorded step.
+     * @param path  the trace file
+     * @throws IOException if the file cannot be read or is not a trace
+     */
+    public Replay(final String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("trace too large to map: " + path);
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                              channel.size());
+        } finally {
+            file.close();
+        }
+        if (map.remaining() < TraceWriter.CHUNK_HEADER
+            || map.getInt() != TraceWriter.MAGIC) {
+            throw new IOException("not a trace file: " + path);
+        }
+        int version = map.getInt();
+        if (version < 1 || version > TraceWriter.VERSION) {
+            throw new IOException("unsupported trace version: " + path);
+        }
+        int fps = map.getInt();
+        count = map.getInt();
+        view = new Rectangle2D.Float(map.getFloat(), map.getFloat(),
+                                     map.getFloat(), map.getFloat());
+        type = new byte[count];
+        liquid = new byte[count];
+        x = new float[count];
+        y = new float[count];
+        angle = new float[count];
+        radius = new float[count];
+        float[][] shapes = new float[count][];
+        int moving = 0;
+        for (int i = 0; i < count; i++) {
+            type[i] = map.get();
+            if (version > 1) {
+                liquid[i] = map.get();
+            }
+            if (liquid[i] < 0 || liquid[i] >= Liquid.MAX) {
+                throw new IOException("bad liquid in trace: " + path);
+            }
+            x[i] = map.getFloat();
+            y[i] = map.getFloat();
+            angle[i] = map.getFloat();
+            radius[i] = map.getFloat();
+            int vertices = map.getInt();
+            if (vertices >= 0) {
+                shapes[i] = new float[vertices];
+                for (int j = 0; j < vertices; j++) {
+                    shapes[i][j] = map.getFloat();
+                }
+            }
+            if (type[i] != Snapshot.STATIC) {
+                moving++;
+            }
+        }
+        bodies = new int[moving];
+        for (int i = 0, j = 0; i < count; i++) {
+            if (type[i] != Snapshot.STATIC) {
+                bodies[j++] = i;
+            }
+        }
+        qx = new int[moving];
+        qy = new int[moving];
+        qa = new int[moving];
+
+        /* Index the chunks. */
+        int n = 0;
+        int[] offs = new int[INITIAL_CHUNKS];
+        long[] fsts = new long[INITIAL_CHUNKS];
+        int[] lens = new int[INITIAL_CHUNKS];
+        int pos = map.position();
+        while (pos + TraceWriter.CHUNK_HEADER <= map.limit()) {
+            int steps = map.getInt(pos);
+            int bytes = map.getInt(pos + TraceWriter.LENGTH_OFFSET);
+            long start = map.getLong(pos + TraceWriter.FIRST_OFFSET);
+            int end = pos + TraceWriter.CHUNK_HEADER + bytes;
+            if (steps <= 0 || bytes < 0 || end > map.limit() || end < 0) {
+                break;
+            }
+            if (n == offs.length) {
+                offs = Arrays.copyOf(offs, n * 2);
+                fsts = Arrays.copyOf(fsts, n * 2);
+                lens = Arrays.copyOf(lens, n * 2);
+            }
+            offs[n] = pos + TraceWriter.CHUNK_HEADER;
+            fsts[n] = start;
+            lens[n] = steps;
+            n++;
+            pos = end;
+        }
+        if (n == 0) {
+            throw new IOException("trace has no steps: " + path);
+        }
+        chunks = n;
+        offsets = offs;
+        firsts = fsts;
+        lengths = lens;
+        first = firsts[0];
+        last = firsts[n - 1] + lengths[n - 1] - 1;
+
+        layout(count, shapes);
+        schedule(fps);
+        seek(first);
+    }
+
+    @Override
+    protected Snapshot step() {
+        Snapshot s = next();
+        if (s == null) {
+            stop();
+        }
+        return s;
+    }
+
+    @Override
+    public Rectangle2D getView() {
+        return view;
+    }
+
+    /**
+     * Decode and publish the next recorded step.
+     * @return the published snapshot, or null at the end of the trace
+     */
+    private synchronized Snapshot next() {
+        if (remaining == 0) {
+            if (chunk + 1 >= chunks) {
+                return null;
+            }
+            load(chunk + 1);
+        }
+        decode();
+        return capture();
+    }
+
+    /**
+     * Jump to a recorded step and publish it. Steps outside the trace
+     * are clamped to the first or last step. Subscribers are not
+     * handed the step.
+     * @param target  the step number to jump to
+     */
+    public synchronized void seek(final long target) {
+        long s = Math.max(first, Math.min(last, target));
+        int c = Arrays.binarySearch(firsts, 0, chunks, s);
+        if (c < 0) {
+            c = -c - 2;
+        }
+        load(c);
+        for (long i = firsts[c]; i <= s; i++) {
+            decode();
+        }
+        capture();
+    }
+
+    /**
+     * Position the decoder at the start of a chunk.
+     * @param c  the chunk index
+     */
+    private void load(final int c) {
+        chunk = c;
+        remaining = lengths[c];
+        step = firsts[c] - 1;
+        map.position(offsets[c]);
+    }
+
+    /**
+     * Decode one step of the current chunk into the quantized state.
+     */
+    private void decode() {
+        ByteBuffer in = map;
+        byte tag = in.get();
+        for (int i = 0; i < bodies.length; i++) {
+            switch (tag) {
+            case TraceWriter.BYTE:
+                qx[i] += in.get();
+                qy[i] += in.get();
+                qa[i] = (qa[i] + in.get()) & ANGLE_MASK;
+                break;
+            case TraceWriter.WORD:
+                qx[i] += in.getShort();
+                qy[i] += in.getShort();
+                qa[i] = (qa[i] + in.getShort()) & ANGLE_MASK;
+                break;
+            default:
+                qx[i] = in.getInt();
+                qy[i] = in.getInt();
+                qa[i] = in.getShort() & ANGLE_MASK;
+                break;
+            }
+        }
+        remaining--;
+        step++;
+    }
+
+    /**
+     * Publish the decoded state as a snapshot.
+     * @return the published snapshot
+     */
+    private Snapshot capture() {
+        Snapshot s = claim();
+        System.arraycopy(x, 0, s.getX(), 0, count);
+        System.arraycopy(y, 0, s.getY(), 0, count);
+        System.arraycopy(angle, 0, s.getAngle(), 0, count);
+        System.arraycopy(radius, 0, s.getRadius(), 0, count);
+        System.arraycopy(type, 0, s.getType(), 0, count);
+        System.arraycopy(liquid, 0, s.getLiquid(), 0, count);
+        float[] sx = s.getX();
+        float[] sy = s.getY();
+        float[] sa = s.getAngle();
+        for (int i = 0; i < bodies.length; i++) {
+            int b = bodies[i];
+            sx[b] = qx[i] / TraceWriter.POSITION;
+            sy[b] = qy[i] / TraceWriter.POSITION;
+            sa[b] = (float) (qa[i] * 2 * Math.PI / TraceWriter.TURN);
+        }
+        s.stamp(step, step / (double) getFps());
+        publish(s);
+        return s;
+    }
+}
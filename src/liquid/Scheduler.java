@@ -0,0 +1,63 @@
+package liquid;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * Steps many independent simulations as fast as they can go, spread
+ * over the cores on the shared work-stealing {@link Parallel} pool.
+ * Simulations advance in lockstep batches: within a batch each one
+ * takes its steps on whichever thread picks it up, and a batch ends
+ * only when every simulation has finished it, so between batches all
+ * of them have taken the same number of steps.
+ *
+ * Simulations share no mutable state, so no locking is needed. They
+ * must not also be running on their own schedule.
+ */
+public final class Scheduler {
+
+    /** Default number of steps in each batch. */
+    static final int BATCH = 30;
+
+    private final List<Simulation> simulations;
+    private final int batch;
+
+    /** Steps taken by every simulation so far. */
+    @Getter private long steps = 0;
+
+    /**
+     * Create a scheduler over some simulations.
+     * @param simulations  the simulations to step
+     * @param batch        steps each simulation takes per batch
+     */
+    public Scheduler(final List<? extends Simulation> simulations,
+                     final int batch) {
+        this.simulations = new ArrayList<Simulation>(simulations);
+        this.batch = batch;
+    }
+
+    /**
+     * Step every simulation a number of times and return when all of
+     * them have.
+     * @param count  the number of steps
+     */
+    public void run(final long count) {
+        long left = count;
+        while (left > 0) {
+            final int n = (int) Math.min(batch, left);
+            Parallel.run(simulations.size(), 1, new Parallel.Pass() {
+                    public void run(final int lo, final int hi) {
+                        for (int i = lo; i < hi; i++) {
+                            Simulation s = simulations.get(i);
+                            for (int k = 0; k < n; k++) {
+                                s.advance();
+                            }
+                        }
+                    }
+                });
+            left -= n;
+            steps += n;
+        }
+    }
+}
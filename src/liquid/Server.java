@@ -0,0 +1,832 @@
+package liquid;
+
+import java.awt.Dimension;
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+/**
+ * Serves a running simulation over HTTP to any number of clients,
+ * using only the JDK. There are three resources:
+ *
+ * <ul>
+ * <li><code>/</code>, a page showing the stream;</li>
+ * <li><code>/stream.mjpeg</code>, the rendered animation as a
+ *     multipart MJPEG stream, as understood by an img tag;</li>
+ * <li><code>/snapshots</code>, a WebSocket feed of binary snapshots
+ *     for a client that renders the bodies itself, such as the WebGL
+ *     version.</li>
+ * </ul>
+ *
+ * Each frame and each snapshot is encoded once, on a delivery thread
+ * of the simulation's {@link StepBus}, into an immutable buffer that
+ * every client is handed a view of, so more clients cost no more
+ * encoding. Only when somebody is watching a resource is anything
+ * encoded for it. One selector thread does all the networking. Every
+ * client has a short queue of buffers to write; when it is full the
+ * oldest unstarted buffer is dropped, so a slow client misses frames
+ * rather than holding up the others or the simulation.
+ *
+ * Feed messages are little-endian. A layout message is sent first:
+ * <code>u32 0, u32 count, f32 view x, y, width, height</code>, then
+ * for each body <code>u8 type, u8 liquid, u16 n, f32 radius, n * f32
+ * polygon vertex coordinates</code>. Each step is then
+ * <code>u32 1, u32 step, f64 time, u32 count, u32 0</code> and
+ * <code>f32 x, y, angle</code> for each body.
+ */
+@Log
+public final class Server implements Closeable {
+
+    /** Path of the MJPEG stream. */
+    static final String STREAM = "/stream.mjpeg";
+    /** Path of the WebSocket feed. */
+    static final String FEED = "/snapshots";
+    /** Feed message type of the body layout. */
+    static final int LAYOUT = 0;
+    /** Feed message type of a step. */
+    static final int STEP = 1;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String BOUNDARY = "liquidframe";
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String PAGE = "<!DOCTYPE html>\n<html><head>"
+        + "<title>Fun Liquid</title></head>\n<body style=\"background: #000\">"
+        + "<img src=\"stream.mjpeg\" alt=\"\"/></body></html>\n";
+    private static final float QUALITY = 0.85f;
+    private static final long NANOS = 1000000000L;
+
+    /* Client states. */
+    private static final int REQUEST = 0;
+    private static final int WATCHING = 1;
+    private static final int FOLLOWING = 2;
+    private static final int CLOSING = 3;
+
+    /* Buffers a client may fall behind by, per kind. */
+    private static final int FRAMES = 2;
+    private static final int STEPS = 8;
+    private static final int REQUEST_LIMIT = 8192;
+
+    /* WebSocket framing. */
+    private static final int FIN = 0x80;
+    private static final int OPCODE = 0x0f;
+    private static final int BINARY = 0x2;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xa;
+    private static final int MASKED = 0x80;
+    private static final int LENGTH = 0x7f;
+    private static final int LENGTH16 = 126;
+    private static final int LENGTH64 = 127;
+    private static final int MASK_SIZE = 4;
+    private static final int BYTE = 0xff;
+    private static final int SHORT = 0xffff;
+
+    private static final int VIEW = 4;
+    private static final int STEP_HEADER = 24;
+    private static final int BODY_HEADER = 8;
+    private static final int POSE = 3;
+    private static final int FLOAT = 4;
+
+    private final Simulation simulation;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private final StepBus.Subscription frames;
+    private final StepBus.Subscription steps;
+
+    /* Buffers encoded for clients, handed to the selector thread. */
+    private final Queue<Message> outbox = new ConcurrentLinkedQueue<Message>();
+    /* Latest of each kind, for new clients. Selector thread only. */
+    private ByteBuffer lastFrame;
+    private ByteBuffer lastStep;
+    private ByteBuffer layout;
+    /* Whether the layout has been encoded. Step thread only. */
+    private boolean laidOut = false;
+
+    /* Clients of each kind, for the encoders to check. */
+    private volatile int watchers = 0;
+    private volatile int followers = 0;
+
+    /* Frame thread only. */
+    private final Renderer renderer;
+    private final Frame frame;
+    private final ImageWriter writer;
+    private final ImageWriteParam param;
+    private final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    private long lastEncoded = 0;
+    private final long period;
+
+    /** Frames encoded. */
+    @Getter private volatile long encoded = 0;
+    /** Buffers dropped because a client fell behind. */
+    @Getter private volatile long dropped = 0;
+
+    /**
+     * Start serving a simulation.
+     * @param simulation  the simulation to serve
+     * @param address     where to listen
+     * @param options     how to render the stream, possibly shared
+     * @param fps         most stream frames per second
+     * @throws IOException if the address cannot be bound
+     */
+    public Server(final Simulation simulation, final InetSocketAddress address,
+                  final Renderer.Options options, final int fps)
+        throws IOException {
+        this.simulation = simulation;
+        renderer = new Renderer(options);
+        Dimension size = Renderer.size(simulation.getView());
+        frame = new Frame(size.width, size.height, false);
+        writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(QUALITY);
+        period = NANOS / Math.max(1, fps);
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.socket().bind(address);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(new Runnable() {
+                public void run() {
+                    loop();
+                }
+            }, "liquid-server");
+        thread.start();
+        frames = simulation.subscribe(new StepBus.Listener() {
+                public void step(final Snapshot s) {
+                    frame(s);
+                }
+            }, 1, StepBus.Overflow.LATEST);
+        steps = simulation.subscribe(new StepBus.Listener() {
+                public void step(final Snapshot s) {
+                    snapshot(s);
+                }
+            }, 1, StepBus.Overflow.LATEST);
+        log.info("serving on " + server.socket().getLocalSocketAddress());
+    }
+
+    /**
+     * Return the port the server listens on.
+     * @return the local port
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Stop serving and disconnect every client. Safe to call more than
+     * once.
+     */
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        frames.close();
+        steps.close();
+        running = false;
+        selector.wakeup();
+        if (thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (writer != null) {
+                writer.dispose();
+            }
+            frame.dispose();
+        }
+        log.info("server: " + encoded + " frames, " + dropped + " dropped");
+    }
+
+    /**
+     * Render and encode a snapshot for the stream, if anyone watches
+     * and a frame is due. Frame thread only.
+     * @param s  the snapshot
+     */
+    private synchronized void frame(final Snapshot s) {
+        long now = System.nanoTime();
+        if (watchers == 0 || now - lastEncoded < period || !running) {
+            return;
+        }
+        lastEncoded = now;
+        renderer.render(frame, s);
+        jpeg.reset();
+        try {
+            ImageOutputStream out = ImageIO.createImageOutputStream(jpeg);
+            try {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(frame.getImage(), null, null),
+                             param);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            log.warning("failed to encode frame: " + e.getMessage());
+            return;
+        }
+        byte[] head = String.format("--%s\r\nContent-Type: image/jpeg\r\n"
+                                    + "Content-Length: %d\r\n\r\n", BOUNDARY,
+                                    jpeg.size()).getBytes(ASCII);
+        ByteBuffer part = ByteBuffer.allocate(head.length + jpeg.size() + 2);
+        part.put(head);
+        part.put(jpeg.toByteArray());
+        part.put((byte) '\r').put((byte) '\n');
+        part.flip();
+        encoded++;
+        send(WATCHING, part);
+    }
+
+    /**
+     * Encode a snapshot for the feed, if anyone follows it. The layout
+     * is encoded with the first one. Step thread only.
+     * @param s  the snapshot
+     */
+    private void snapshot(final Snapshot s) {
+        if (followers == 0 || !running) {
+            return;
+        }
+        if (!laidOut) {
+            laidOut = true;
+            send(LAYOUT, websocket(BINARY, layout(s)));
+        }
+        int n = s.getCount();
+        ByteBuffer b = ByteBuffer.allocate(STEP_HEADER + n * POSE * FLOAT)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(STEP);
+        b.putInt((int) s.getStep());
+        b.putDouble(s.getTime());
+        b.putInt(n);
+        b.putInt(0);
+        for (int i = 0; i < n; i++) {
+            b.putFloat(s.getX()[i]);
+            b.putFloat(s.getY()[i]);
+            b.putFloat(s.getAngle()[i]);
+        }
+        b.flip();
+        send(FOLLOWING, websocket(BINARY, b));
+    }
+
+    /**
+     * Encode the layout of the bodies in a snapshot.
+     * @param s  the snapshot
+     * @return the feed message
+     */
+    private ByteBuffer layout(final Snapshot s) {
+        int n = s.getCount();
+        float[][] shapes = s.getShape();
+        int size = BODY_HEADER + VIEW * FLOAT;
+        for (int i = 0; i < n; i++) {
+            size += BODY_HEADER;
+            if (shapes[i] != null) {
+                size += shapes[i].length * FLOAT;
+            }
+        }
+        Rectangle2D view = simulation.getView();
+        ByteBuffer b = ByteBuffer.allocate(size)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(LAYOUT);
+        b.putInt(n);
+        b.putFloat((float) view.getX());
+        b.putFloat((float) view.getY());
+        b.putFloat((float) view.getWidth());
+        b.putFloat((float) view.getHeight());
+        for (int i = 0; i < n; i++) {
+            b.put(s.getType()[i]);
+            b.put(s.getLiquid()[i]);
+            if (shapes[i] == null) {
+                b.putShort((short) 0);
+            } else {
+                b.putShort((short) shapes[i].length);
+            }
+            b.putFloat(s.getRadius()[i]);
+            if (shapes[i] != null) {
+                for (float v : shapes[i]) {
+                    b.putFloat(v);
+                }
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Hand an encoded buffer to the selector thread for the clients of
+     * one kind.
+     * @param kind  WATCHING, FOLLOWING, or LAYOUT for followers
+     * @param data  the encoded buffer, never modified afterwards
+     */
+    private void send(final int kind, final ByteBuffer data) {
+        outbox.add(new Message(kind, data.asReadOnlyBuffer()));
+        selector.wakeup();
+    }
+
+    /**
+     * Accept, read and write until closed. Selector thread only.
+     */
+    private void loop() {
+        try {
+            while (running) {
+                selector.select();
+                deliver();
+                Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                while (i.hasNext()) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        log.fine("client failed: " + e);
+                        drop(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warning("server failed: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    log.fine("failed to close: " + e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.fine("failed to close selector: " + e);
+            }
+        }
+    }
+
+    /**
+     * Queue the buffers handed over since the last call for every
+     * client they are for, and start writing them.
+     */
+    private void deliver() {
+        for (Message m = outbox.poll(); m != null; m = outbox.poll()) {
+            int kind = m.kind;
+            if (kind == LAYOUT) {
+                layout = m.data;
+                kind = FOLLOWING;
+            } else if (kind == WATCHING) {
+                lastFrame = m.data;
+            } else {
+                lastStep = m.data;
+            }
+            boolean droppable = m.kind != LAYOUT;
+            for (SelectionKey key : selector.keys()) {
+                Client c = (Client) key.attachment();
+                if (c != null && c.state == kind && key.isValid()) {
+                    queue(key, m.data, droppable);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue a buffer for a client that must be written in full.
+     * @param key   the client's key
+     * @param data  the buffer
+     */
+    private void queue(final SelectionKey key, final ByteBuffer data) {
+        queue(key, data, false);
+    }
+
+    /**
+     * Queue a buffer for a client. A droppable buffer first makes room
+     * by dropping the client's oldest droppable buffer not yet started,
+     * if it already has its limit of them.
+     * @param key        the client's key
+     * @param data       the buffer, possibly shared between clients
+     * @param droppable  whether the buffer may be dropped
+     */
+    private void queue(final SelectionKey key, final ByteBuffer data,
+                       final boolean droppable) {
+        Client c = (Client) key.attachment();
+        if (droppable && c.droppable >= c.limit) {
+            Iterator<Pending> i = c.out.iterator();
+            while (i.hasNext()) {
+                Pending p = i.next();
+                if (p.droppable && p.data.position() == 0) {
+                    i.remove();
+                    c.droppable--;
+                    dropped++;
+                    break;
+                }
+            }
+        }
+        if (droppable) {
+            c.droppable++;
+        }
+        c.out.addLast(new Pending(data.duplicate(), droppable));
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Accept a new client.
+     * @throws IOException if the connection fails
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Client());
+    }
+
+    /**
+     * Read from a client: its request, or messages on the feed.
+     * @param key  the client's key
+     * @throws IOException if reading fails
+     */
+    private void read(final SelectionKey key) throws IOException {
+        Client c = (Client) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (!c.in.hasRemaining() || channel.read(c.in) < 0) {
+            drop(key);
+            return;
+        }
+        if (c.state == REQUEST) {
+            request(key, c);
+        } else if (c.state == FOLLOWING) {
+            messages(key, c);
+        } else {
+            /* Nothing more is expected. */
+            c.in.clear();
+        }
+    }
+
+    /**
+     * Parse a complete request and answer it.
+     * @param key  the client's key
+     * @param c    the client
+     */
+    private void request(final SelectionKey key, final Client c) {
+        String text = new String(c.in.array(), 0, c.in.position(), ASCII);
+        int end = text.indexOf("\r\n\r\n");
+        if (end < 0) {
+            return;
+        }
+        c.in.clear();
+        String[] lines = text.substring(0, end).split("\r\n");
+        String[] line = lines[0].split(" ");
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim()
+                            .toLowerCase(Locale.ROOT),
+                            lines[i].substring(colon + 1).trim());
+            }
+        }
+        if (line.length != 3 || !"GET".equals(line[0])) {
+            respond(key, "405 Method Not Allowed", "text/plain",
+                    "GET only\n");
+            return;
+        }
+        String path = line[1];
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        if ("/".equals(path)) {
+            respond(key, "200 OK", "text/html; charset=utf-8", PAGE);
+        } else if (STREAM.equals(path)) {
+            watch(key, c);
+        } else if (FEED.equals(path) && headers.containsKey(
+                       "sec-websocket-key")) {
+            follow(key, c, headers.get("sec-websocket-key"));
+        } else if (FEED.equals(path)) {
+            respond(key, "426 Upgrade Required", "text/plain",
+                    "WebSocket only\n");
+        } else {
+            respond(key, "404 Not Found", "text/plain", "not found\n");
+        }
+    }
+
+    /**
+     * Start streaming frames to a client.
+     * @param key  the client's key
+     * @param c    the client
+     */
+    private void watch(final SelectionKey key, final Client c) {
+        String head = "HTTP/1.1 200 OK\r\n"
+            + "Content-Type: multipart/x-mixed-replace; boundary="
+            + BOUNDARY + "\r\nCache-Control: no-cache\r\n"
+            + "Connection: close\r\n\r\n";
+        c.state = WATCHING;
+        c.limit = FRAMES;
+        queue(key, ByteBuffer.wrap(head.getBytes(ASCII)));
+        if (lastFrame != null) {
+            queue(key, lastFrame, true);
+        }
+        watchers++;
+        log.fine("watcher connected, " + watchers + " watching");
+    }
+
+    /**
+     * Accept a WebSocket handshake and start the feed for a client.
+     * @param key     the client's key
+     * @param c       the client
+     * @param secret  the client's Sec-WebSocket-Key
+     */
+    private void follow(final SelectionKey key, final Client c,
+                        final String secret) {
+        String accept;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            accept = Base64.getEncoder().encodeToString(
+                sha1.digest((secret + GUID).getBytes(ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        String head = "HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+            + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+        c.state = FOLLOWING;
+        c.limit = STEPS;
+        queue(key, ByteBuffer.wrap(head.getBytes(ASCII)));
+        if (layout != null) {
+            queue(key, layout);
+        }
+        if (lastStep != null) {
+            queue(key, lastStep, true);
+        }
+        followers++;
+        log.fine("follower connected, " + followers + " following");
+    }
+
+    /**
+     * Handle the complete messages a feed client has sent: answer
+     * pings and close when asked. Anything else is ignored.
+     * @param key  the client's key
+     * @param c    the client
+     */
+    private void messages(final SelectionKey key, final Client c) {
+        ByteBuffer in = c.in;
+        in.flip();
+        while (in.remaining() >= 2) {
+            int start = in.position();
+            int opcode = in.get() & OPCODE;
+            int second = in.get() & BYTE;
+            long length = second & LENGTH;
+            int header = 2;
+            if (length == LENGTH16) {
+                header += 2;
+            } else if (length == LENGTH64) {
+                header += Long.SIZE / Byte.SIZE;
+            }
+            if ((second & MASKED) != 0) {
+                header += MASK_SIZE;
+            }
+            in.position(start);
+            if (in.remaining() < header) {
+                break;
+            }
+            in.position(start + 2);
+            if (length == LENGTH16) {
+                length = in.getShort() & SHORT;
+            } else if (length == LENGTH64) {
+                length = in.getLong();
+            }
+            if (length < 0 || length > in.capacity() - header) {
+                drop(key);
+                return;
+            }
+            if (in.limit() - start < header + length) {
+                in.position(start);
+                break;
+            }
+            byte[] mask = new byte[MASK_SIZE];
+            if ((second & MASKED) != 0) {
+                in.get(mask);
+            }
+            byte[] payload = new byte[(int) length];
+            in.get(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i % MASK_SIZE];
+            }
+            if (opcode == CLOSE) {
+                queue(key, websocket(CLOSE, ByteBuffer.wrap(payload)));
+                part(key, c);
+                in.clear();
+                return;
+            } else if (opcode == PING) {
+                queue(key, websocket(PONG, ByteBuffer.wrap(payload)));
+            }
+        }
+        in.compact();
+    }
+
+    /**
+     * Write as much of a client's queue as it will take.
+     * @param key  the client's key
+     * @throws IOException if writing fails
+     */
+    private void write(final SelectionKey key) throws IOException {
+        Client c = (Client) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        while (!c.out.isEmpty()) {
+            Pending p = c.out.peekFirst();
+            channel.write(p.data);
+            if (p.data.hasRemaining()) {
+                return;
+            }
+            c.out.removeFirst();
+            if (p.droppable) {
+                c.droppable--;
+            }
+        }
+        if (c.state == CLOSING) {
+            drop(key);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Answer a request with a small document and close afterwards.
+     * @param key     the client's key
+     * @param status  status code and reason
+     * @param type    content type of the body
+     * @param body    the body
+     */
+    private void respond(final SelectionKey key, final String status,
+                         final String type, final String body) {
+        Client c = (Client) key.attachment();
+        byte[] bytes = body.getBytes(Charset.forName("UTF-8"));
+        String head = "HTTP/1.1 " + status + "\r\nContent-Type: " + type
+            + "\r\nContent-Length: " + bytes.length
+            + "\r\nConnection: close\r\n\r\n";
+        queue(key, ByteBuffer.wrap(head.getBytes(ASCII)));
+        queue(key, ByteBuffer.wrap(bytes));
+        part(key, c);
+    }
+
+    /**
+     * Close a client once its queue is written.
+     * @param key  the client's key
+     * @param c    the client
+     */
+    private void part(final SelectionKey key, final Client c) {
+        leave(c);
+        c.state = CLOSING;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Close a client now.
+     * @param key  the client's key
+     */
+    private void drop(final SelectionKey key) {
+        Client c = (Client) key.attachment();
+        if (c != null) {
+            leave(c);
+            c.state = CLOSING;
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            log.fine("failed to close client: " + e);
+        }
+    }
+
+    /**
+     * Stop counting a client as watching or following.
+     * @param c  the client
+     */
+    private void leave(final Client c) {
+        if (c.state == WATCHING) {
+            watchers--;
+        } else if (c.state == FOLLOWING) {
+            followers--;
+        }
+    }
+
+    /**
+     * Frame a message as a single unmasked WebSocket frame.
+     * @param opcode   the frame type
+     * @param payload  the message
+     * @return the frame
+     */
+    static ByteBuffer websocket(final int opcode,
+                                final ByteBuffer payload) {
+        int n = payload.remaining();
+        int header = 2;
+        if (n > SHORT) {
+            header += Long.SIZE / Byte.SIZE;
+        } else if (n >= LENGTH16) {
+            header += 2;
+        }
+        ByteBuffer b = ByteBuffer.allocate(header + n);
+        b.put((byte) (FIN | opcode));
+        if (n > SHORT) {
+            b.put((byte) LENGTH64);
+            b.putLong(n);
+        } else if (n >= LENGTH16) {
+            b.put((byte) LENGTH16);
+            b.putShort((short) n);
+        } else {
+            b.put((byte) n);
+        }
+        b.put(payload);
+        b.flip();
+        return b;
+    }
+
+    /**
+     * An encoded buffer on its way to the selector thread.
+     */
+    private static final class Message {
+        private final int kind;
+        private final ByteBuffer data;
+
+        /**
+         * Create a message.
+         * @param kind  who the buffer is for
+         * @param data  the buffer
+         */
+        Message(final int kind, final ByteBuffer data) {
+            this.kind = kind;
+            this.data = data;
+        }
+    }
+
+    /**
+     * A buffer queued for one client, with its own position.
+     */
+    private static final class Pending {
+        private final ByteBuffer data;
+        private final boolean droppable;
+
+        /**
+         * Create a queued buffer.
+         * @param data       the client's view of the buffer
+         * @param droppable  whether it may be dropped unstarted
+         */
+        Pending(final ByteBuffer data, final boolean droppable) {
+            this.data = data;
+            this.droppable = droppable;
+        }
+    }
+
+    /**
+     * The state of one connection. Selector thread only.
+     */
+    private static final class Client {
+        private final ByteBuffer in = ByteBuffer.allocate(REQUEST_LIMIT);
+        private final Deque<Pending> out = new ArrayDeque<Pending>();
+        private int state = REQUEST;
+        /* Droppable buffers queued and the most allowed. */
+        private int droppable = 0;
+        private int limit = 1;
+    }
+}
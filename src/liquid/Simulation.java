@@ -0,0 +1,224 @@
+package liquid;
+
+import java.awt.geom.Rectangle2D;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A source of world states, stepped at a fixed rate. Each step
+ * publishes a {@link Snapshot} and hands it to subscribers on a {@link
+ * StepBus}, so viewers and recorders work the same whether the states
+ * come from a live physics world or from a recorded trace.
+ */
+public abstract class Simulation {
+
+    private static final long NANOS = 1000000000L;
+
+    /** Most steps taken back to back to catch up with the clock. */
+    public static final int MAX_CATCH_UP = 4;
+    /* Steps running simulations, each on one thread at a time. */
+    private static final ScheduledExecutorService EXEC =
+        Executors.newScheduledThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "liquid-step");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private volatile boolean running = false;
+    private final AtomicBoolean ticking = new AtomicBoolean();
+    private final Runnable tick = new Runnable() {
+            public void run() {
+                tick();
+            }
+        };
+    private Snapshot.Buffer snapshots;
+    private int fps;
+    private long period;
+    private final FrameStats stats = new FrameStats();
+    private final StepBus bus = new StepBus();
+
+    /* When the next step is due, or 0 when not scheduled. */
+    private long due = 0;
+
+    /**
+     * Advance by one step and publish the result.
+     * @return the published snapshot, or null if nothing changed
+     */
+    protected abstract Snapshot step();
+
+    /**
+     * Specify the area of interest for this world.
+     * @return a rectangle specifying where things are happening
+     */
+    public abstract Rectangle2D getView();
+
+    /**
+     * Set the body layout of published snapshots. Must be called once
+     * by the subclass constructor before anything is published.
+     * @param count   the number of bodies
+     * @param shapes  polygon vertices for each body
+     */
+    protected final void layout(final int count, final float[][] shapes) {
+        snapshots = new Snapshot.Buffer(count, shapes);
+    }
+
+    /**
+     * Set the rate at which to step once started. Running simulations
+     * are stepped on a shared pool of threads, so several simulations
+     * in one process step concurrently, while the steps of any one
+     * simulation are taken in order and never overlap. A simulation
+     * that is not running holds no thread and schedules nothing.
+     *
+     * Stepping follows the wall clock with an accumulator: each tick
+     * takes as many steps as have come due, then sleeps until the next
+     * one is due. A tick takes at most {@link #MAX_CATCH_UP} steps;
+     * if the simulation has fallen further behind than that, the
+     * remaining steps are skipped and counted rather than run back to
+     * back. Each snapshot is stamped with the time it came due so that
+     * renderers can interpolate between steps.
+     * @param rate  steps per second
+     */
+    protected final void schedule(final int rate) {
+        fps = rate;
+        period = NANOS / rate;
+    }
+
+    /**
+     * Take the steps that have come due and schedule the next tick,
+     * or stop ticking if the simulation was stopped.
+     */
+    private void tick() {
+        long now = System.nanoTime();
+        if (!running) {
+            due = 0;
+            ticking.set(false);
+            /* Restarted before the flag was cleared? */
+            if (running && ticking.compareAndSet(false, true)) {
+                EXEC.execute(tick);
+            }
+            return;
+        }
+        if (due == 0) {
+            due = now;
+        }
+        stats.setBehind(Math.max(0, (now - due) / period));
+        int steps = 0;
+        while (running && due <= now && steps < MAX_CATCH_UP) {
+            advance();
+            due += period;
+            steps++;
+        }
+        if (running && due <= now) {
+            long skipped = (now - due) / period + 1;
+            due += skipped * period;
+            stats.skipped(skipped);
+        }
+        EXEC.schedule(tick, Math.max(0, due - System.nanoTime()),
+                      TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Take one step on the calling thread and publish it to
+     * subscribers, as fast as the step can be computed. Used to drive a
+     * simulation offline; it must not be running on its schedule at the
+     * same time.
+     * @return the published snapshot, or null if nothing changed
+     */
+    public final Snapshot advance() {
+        long start = System.nanoTime();
+        Snapshot snapshot = step();
+        stats.since(FrameStats.Stage.STEP, start);
+        if (snapshot != null) {
+            bus.publish(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Subscribe to the snapshot of every step, delivered off the
+     * stepping thread.
+     * @param listener  called with each snapshot
+     * @param capacity  snapshots that may wait for delivery
+     * @param overflow  what to do when that many are waiting
+     * @return the subscription, to be closed when done
+     */
+    public final StepBus.Subscription subscribe(
+        final StepBus.Listener listener, final int capacity,
+        final StepBus.Overflow overflow) {
+        return bus.subscribe(listener, capacity, overflow);
+    }
+
+    /**
+     * Claim a snapshot for writing. Stepping thread only.
+     * @return a snapshot no reader can see until published
+     */
+    protected final Snapshot claim() {
+        return snapshots.claim();
+    }
+
+    /**
+     * Publish a filled snapshot as the latest. Stepping thread only.
+     * @param s  the claimed and filled snapshot
+     */
+    protected final void publish(final Snapshot s) {
+        s.follow(snapshots.peek(), due);
+        snapshots.publish(s);
+    }
+
+    /**
+     * Run the simulation.
+     */
+    public final void start() {
+        running = true;
+        if (ticking.compareAndSet(false, true)) {
+            EXEC.execute(tick);
+        }
+    }
+
+    /**
+     * Stop the simulation, which can be restarted again.
+     */
+    public final void stop() {
+        running = false;
+    }
+
+    /**
+     * Return true if the simulation is running.
+     * @return true if the simulation is running
+     */
+    public final boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Return the number of steps per second of world time, which is
+     * also the rate of steps per second of wall time when running.
+     * @return the step rate
+     */
+    public final int getFps() {
+        return fps;
+    }
+
+    /**
+     * Return the frame statistics of this simulation.
+     * @return the statistics everything rendering it reports to
+     */
+    public final FrameStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Take a reference to the state after the latest step. The
+     * caller must release the snapshot when done with it.
+     * @return the latest snapshot
+     */
+    public final Snapshot acquireSnapshot() {
+        return snapshots.acquire();
+    }
+}
@@ -0,0 +1,26 @@
+package liquid;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A destination for recorded frames.
+ */
+public interface Sink extends Closeable {
+
+    /**
+     * Write one frame. The image may be reused once this returns.
+     * @param index  the frame number, counting from zero
+     * @param image  the frame, backed by a DataBufferInt
+     * @throws IOException if the frame could not be written
+     */
+    void write(long index, BufferedImage image) throws IOException;
+
+    /**
+     * Return true if frames must be written one at a time in order.
+     * Otherwise frames may be written concurrently and out of order.
+     * @return true for sequential sinks such as streams
+     */
+    boolean isSequential();
+}
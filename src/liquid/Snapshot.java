@@ -0,0 +1,278 @@
+package liquid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.Getter;
+
+/**
+ * The state of every body in a world after one step, packed into
+ * primitive arrays so that consumers never touch JBox2D objects.
+ *
+ * Snapshots are recycled. A consumer that obtains one from {@link
+ * Buffer#acquire()} holds a reference and must {@link #release()} it
+ * when done; until then the snapshot will not be overwritten. The
+ * arrays must not be modified by consumers.
+ */
+public final class Snapshot {
+
+    /** Body type of fixed bodies, as BodyType.STATIC.ordinal(). */
+    public static final byte STATIC = 0;
+    /** Body type of scripted bodies, as BodyType.KINEMATIC.ordinal(). */
+    public static final byte KINEMATIC = 1;
+    /** Body type of simulated bodies, as BodyType.DYNAMIC.ordinal(). */
+    public static final byte DYNAMIC = 2;
+
+    private static final int WRITING = -1;
+    private static final float TURN = (float) (2 * Math.PI);
+    private static final double NANOS = 1e9;
+
+    @Getter private final int count;
+    @Getter private final float[] x;
+    @Getter private final float[] y;
+    @Getter private final float[] angle;
+    /** Radius of each circle body, or 0 for polygons. */
+    @Getter private final float[] radius;
+    @Getter private final byte[] type;
+    /** Index of the {@link Liquid} of each dynamic body, otherwise 0. */
+    @Getter private final byte[] liquid;
+    /** Local polygon vertices (x0, y0, x1, y1, ...), or null for circles. */
+    @Getter private final float[][] shape;
+
+    /* Positions and angles as of the previous step. */
+    @Getter private final float[] prevX;
+    @Getter private final float[] prevY;
+    @Getter private final float[] prevAngle;
+
+    @Getter private long step;
+    @Getter private double time;
+    /** Solver quality level of this step, or -1 if not governed. */
+    @Getter private int quality = -1;
+    /** System.nanoTime() when this step came due, or 0 if unscheduled. */
+    @Getter private long due;
+
+    /* Number of readers, or WRITING while being filled. */
+    private final AtomicInteger refs = new AtomicInteger(WRITING);
+
+    /**
+     * Create a new snapshot in the writing state.
+     * @param count  the number of bodies
+     * @param shape  polygon vertices for each body, shared between
+     *               snapshots since shapes do not change
+     */
+    Snapshot(final int count, final float[][] shape) {
+        this.count = count;
+        this.shape = shape;
+        x = new float[count];
+        y = new float[count];
+        angle = new float[count];
+        radius = new float[count];
+        type = new byte[count];
+        liquid = new byte[count];
+        prevX = new float[count];
+        prevY = new float[count];
+        prevAngle = new float[count];
+    }
+
+    /**
+     * Set the step counter and world time of this snapshot.
+     * @param step  number of steps taken
+     * @param time  world time in seconds
+     */
+    void stamp(final long step, final double time) {
+        stamp(step, time, -1);
+    }
+
+    /**
+     * Set the step counter, world time and solver quality level of
+     * this snapshot.
+     * @param step     number of steps taken
+     * @param time     world time in seconds
+     * @param quality  the solver quality level of the step
+     */
+    void stamp(final long step, final double time, final int quality) {
+        this.step = step;
+        this.time = time;
+        this.quality = quality;
+    }
+
+    /**
+     * Remember the poses of the previous step for interpolation and set
+     * when this step came due. Call once the current poses are filled.
+     * @param previous  the previously published snapshot, or null
+     * @param when      System.nanoTime() when this step came due
+     */
+    void follow(final Snapshot previous, final long when) {
+        Snapshot from = previous;
+        if (from == null) {
+            from = this;
+        }
+        System.arraycopy(from.x, 0, prevX, 0, count);
+        System.arraycopy(from.y, 0, prevY, 0, count);
+        System.arraycopy(from.angle, 0, prevAngle, 0, count);
+        due = when;
+    }
+
+    /**
+     * Compute how far between the previous step and this one a frame
+     * shown at the given time should be. Rendering lags the simulation
+     * by one step so that it can always interpolate.
+     * @param now  System.nanoTime() of the frame
+     * @param fps  steps per second of the simulation
+     * @return the interpolation factor, 0 to 1
+     */
+    public float alpha(final long now, final int fps) {
+        if (due == 0) {
+            return 1f;
+        }
+        double a = (now - due) * fps / NANOS;
+        return (float) Math.max(0, Math.min(1, a));
+    }
+
+    /**
+     * Interpolate the x position of a body.
+     * @param i      the body index
+     * @param alpha  0 for the previous step, 1 for this one
+     * @return the x position
+     */
+    public float x(final int i, final float alpha) {
+        return prevX[i] + (x[i] - prevX[i]) * alpha;
+    }
+
+    /**
+     * Interpolate the y position of a body.
+     * @param i      the body index
+     * @param alpha  0 for the previous step, 1 for this one
+     * @return the y position
+     */
+    public float y(final int i, final float alpha) {
+        return prevY[i] + (y[i] - prevY[i]) * alpha;
+    }
+
+    /**
+     * Interpolate the angle of a body the short way around.
+     * @param i      the body index
+     * @param alpha  0 for the previous step, 1 for this one
+     * @return the angle in radians
+     */
+    public float angle(final int i, final float alpha) {
+        float d = angle[i] - prevAngle[i];
+        d -= TURN * Math.round(d / TURN);
+        return prevAngle[i] + d * alpha;
+    }
+
+    /**
+     * Count the liquids of the dynamic bodies, as one more than the
+     * highest index among them.
+     * @return the number of liquids, at least 1
+     */
+    public int liquids() {
+        int max = 0;
+        for (int i = 0; i < count; i++) {
+            if (type[i] == DYNAMIC) {
+                max = Math.max(max, liquid[i]);
+            }
+        }
+        return max + 1;
+    }
+
+    /**
+     * Add a reference, unless the snapshot is being rewritten. An
+     * subscriber handed a snapshot by a {@link StepBus} may call this
+     * to keep it past the delivery.
+     * @return true if the reference was taken
+     */
+    public boolean retain() {
+        while (true) {
+            int r = refs.get();
+            if (r == WRITING) {
+                return false;
+            } else if (refs.compareAndSet(r, r + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop a reference taken by acquire or retain.
+     */
+    public void release() {
+        refs.decrementAndGet();
+    }
+
+    /**
+     * Publishes snapshots from one writer thread to any number of
+     * readers without locks. The writer fills a snapshot that no
+     * reader holds, then swaps it in as the latest. Readers take a
+     * reference to the latest complete snapshot and never see one
+     * that is half written. The writer never waits: if every pooled
+     * snapshot is held, it allocates another.
+     */
+    public static final class Buffer {
+        private final AtomicReference<Snapshot> latest =
+            new AtomicReference<Snapshot>();
+        private final List<Snapshot> pool = new ArrayList<Snapshot>();
+        private final int count;
+        private final float[][] shape;
+
+        /**
+         * Create a buffer of snapshots of a fixed layout.
+         * @param count  the number of bodies
+         * @param shape  polygon vertices for each body
+         */
+        public Buffer(final int count, final float[][] shape) {
+            this.count = count;
+            this.shape = shape;
+        }
+
+        /**
+         * Claim a snapshot for writing. Writer thread only.
+         * @return a snapshot no reader can see until published
+         */
+        public Snapshot claim() {
+            Snapshot current = latest.get();
+            for (int i = 0; i < pool.size(); i++) {
+                Snapshot s = pool.get(i);
+                if (s != current && s.refs.compareAndSet(0, WRITING)) {
+                    return s;
+                }
+            }
+            Snapshot s = new Snapshot(count, shape);
+            pool.add(s);
+            return s;
+        }
+
+        /**
+         * Publish a claimed snapshot as the latest. Writer thread only.
+         * @param s  the filled snapshot
+         */
+        public void publish(final Snapshot s) {
+            s.refs.set(0);
+            latest.set(s);
+        }
+
+        /**
+         * Return the latest snapshot without taking a reference. Only
+         * safe on the writer thread, which alone can recycle it.
+         * @return the latest snapshot, or null if none is published
+         */
+        Snapshot peek() {
+            return latest.get();
+        }
+
+        /**
+         * Take a reference to the latest snapshot. The caller must
+         * release it when done.
+         * @return the latest snapshot, or null if none is published
+         */
+        public Snapshot acquire() {
+            while (true) {
+                Snapshot s = latest.get();
+                if (s == null || s.retain()) {
+                    return s;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package liquid;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+/**
+ * Hands each snapshot a simulation publishes to its subscribers
+ * without running them on the stepping thread. Every subscriber has
+ * its own bounded, lock-free ring of snapshots and is called on a
+ * shared pool of delivery threads, one snapshot at a time and in step
+ * order. Publishing takes a reference to the snapshot for each
+ * subscriber, puts it in the ring and, if the subscriber is idle,
+ * schedules its delivery; a slow subscriber only fills its own ring,
+ * and then its {@link Overflow} policy decides what happens.
+ *
+ * There is one publisher per bus: the simulation's stepping thread.
+ */
+@Log
+public final class StepBus {
+
+    /** What to do with a snapshot when a subscriber's ring is full. */
+    public enum Overflow {
+        /** Keep only the newest snapshot, replacing any undelivered. */
+        LATEST,
+        /** Skip the new snapshot. */
+        DROP,
+        /** Make the stepping thread wait for room. */
+        BLOCK
+    }
+
+    /** Receives snapshots on a delivery thread. */
+    public interface Listener {
+        /**
+         * Handle one step. The snapshot is released after this returns;
+         * call {@link Snapshot#retain()} to keep it longer.
+         * @param snapshot  the state after the step
+         */
+        void step(Snapshot snapshot);
+    }
+
+    /* Waits between checks of a full ring or an unfinished delivery. */
+    private static final long PAUSE = 100000L;
+
+    /* Delivers to subscribers of every bus. */
+    private static final ExecutorService DELIVERY =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "liquid-events");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final List<Subscription> subscriptions =
+        new CopyOnWriteArrayList<Subscription>();
+
+    /**
+     * Subscribe to every published snapshot.
+     * @param listener  called with each snapshot
+     * @param capacity  snapshots that may wait for delivery, ignored
+     *                  for LATEST, which keeps one
+     * @param overflow  what to do when that many are waiting
+     * @return the subscription, to be closed when done
+     */
+    public Subscription subscribe(final Listener listener, final int capacity,
+                                  final Overflow overflow) {
+        Subscription s = new Subscription(listener, capacity, overflow);
+        subscriptions.add(s);
+        return s;
+    }
+
+    /**
+     * Hand a published snapshot to every subscriber. Stepping thread
+     * only.
+     * @param snapshot  the published snapshot
+     */
+    void publish(final Snapshot snapshot) {
+        for (Subscription s : subscriptions) {
+            s.offer(snapshot);
+        }
+    }
+
+    /**
+     * One subscriber's ring of undelivered snapshots.
+     */
+    public final class Subscription implements Closeable {
+
+        private final Listener listener;
+        private final Overflow overflow;
+        private final int capacity;
+        private final AtomicReferenceArray<Snapshot> ring;
+        /* Next slot to deliver and next slot to fill. */
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+        /* The one waiting snapshot under LATEST. */
+        private final AtomicReference<Snapshot> latest =
+            new AtomicReference<Snapshot>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean closed = false;
+        /* The thread delivering right now, if any. */
+        private volatile Thread delivering;
+        private final Runnable drain = new Runnable() {
+                public void run() {
+                    drain();
+                }
+            };
+
+        /** Snapshots skipped or replaced before delivery. */
+        @Getter private final AtomicLong dropped = new AtomicLong();
+
+        /**
+         * Create a subscription.
+         * @param listener  called with each snapshot
+         * @param capacity  size of the ring
+         * @param overflow  what to do when the ring is full
+         */
+        private Subscription(final Listener listener, final int capacity,
+                             final Overflow overflow) {
+            this.listener = listener;
+            this.overflow = overflow;
+            this.capacity = Math.max(1, capacity);
+            ring = new AtomicReferenceArray<Snapshot>(this.capacity);
+        }
+
+        /**
+         * Queue a snapshot for delivery according to the policy.
+         * @param snapshot  the published snapshot
+         */
+        private void offer(final Snapshot snapshot) {
+            if (closed || !snapshot.retain()) {
+                return;
+            }
+            if (overflow == Overflow.LATEST) {
+                Snapshot old = latest.getAndSet(snapshot);
+                if (old != null) {
+                    old.release();
+                    dropped.incrementAndGet();
+                }
+            } else {
+                long t = tail.get();
+                while (t - head.get() >= capacity) {
+                    if (overflow == Overflow.DROP || closed) {
+                        snapshot.release();
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    LockSupport.parkNanos(PAUSE);
+                }
+                ring.set((int) (t % capacity), snapshot);
+                tail.lazySet(t + 1);
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                DELIVERY.execute(drain);
+            }
+        }
+
+        /**
+         * Take the next undelivered snapshot.
+         * @return the snapshot, or null if none is waiting
+         */
+        private Snapshot poll() {
+            if (overflow == Overflow.LATEST) {
+                return latest.getAndSet(null);
+            }
+            long h = head.get();
+            if (h == tail.get()) {
+                return null;
+            }
+            int i = (int) (h % capacity);
+            Snapshot s = ring.get(i);
+            ring.set(i, null);
+            head.lazySet(h + 1);
+            return s;
+        }
+
+        /**
+         * Return true if a snapshot is waiting.
+         * @return true unless the ring is empty
+         */
+        private boolean pending() {
+            if (overflow == Overflow.LATEST) {
+                return latest.get() != null;
+            }
+            return head.get() != tail.get();
+        }
+
+        /**
+         * Deliver waiting snapshots until none are left. Runs on a
+         * delivery thread, never on two at once.
+         */
+        private void drain() {
+            while (true) {
+                delivering = Thread.currentThread();
+                for (Snapshot s = poll(); s != null; s = poll()) {
+                    try {
+                        listener.step(s);
+                    } catch (RuntimeException e) {
+                        log.warning("subscriber failed: " + e);
+                    } finally {
+                        s.release();
+                    }
+                }
+                delivering = null;
+                scheduled.set(false);
+                /* Published after the last poll but before the flag? */
+                if (!pending() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Stop receiving snapshots without waiting for those already
+         * waiting to be delivered.
+         */
+        public void cancel() {
+            closed = true;
+            subscriptions.remove(this);
+        }
+
+        /**
+         * Stop receiving snapshots, after those already waiting are
+         * delivered. Returns once they have been, unless called from
+         * the listener itself. Safe to call more than once.
+         */
+        @Override
+        public void close() {
+            cancel();
+            if (delivering == Thread.currentThread()) {
+                return;
+            }
+            while (pending() || scheduled.get()) {
+                LockSupport.parkNanos(PAUSE);
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package liquid;
+
+import java.awt.image.BufferedImage;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Streams uncompressed frames into a single file or standard output,
+ * ready to be piped into an external encoder. Pixels are converted
+ * from the image's backing array into one reusable direct buffer, so
+ * nothing is allocated per frame.
+ *
+ * Two formats are supported: YUV4MPEG2 with full 4:4:4 chroma, which
+ * carries its own size and frame rate, and headerless packed rgb24,
+ * which needs the size and rate given to the encoder, e.g.
+ * <code>ffmpeg -f rawvideo -pix_fmt rgb24 -s WxH -r 30 -i -</code>.
+ */
+public final class StreamSink implements Sink {
+
+    /** Stream layout. */
+    public enum Format {
+        /** YUV4MPEG2, 4:4:4, BT.601 limited range. */
+        Y4M,
+        /** Packed 8-bit R, G, B with no header. */
+        RGB
+    }
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] FRAME = "FRAME\n".getBytes(ASCII);
+    private static final int CHANNELS = 3;
+    private static final int MASK = 0xff;
+    private static final int RED = 16;
+    private static final int GREEN = 8;
+    private static final int ROUND = 128;
+    private static final int SHIFT = 8;
+    private static final int LUMA = 16;
+    private static final int CHROMA = 128;
+    /* BT.601 limited range coefficients, scaled by 256. */
+    private static final int YR = 66;
+    private static final int YG = 129;
+    private static final int YB = 25;
+    private static final int UR = -38;
+    private static final int UG = -74;
+    private static final int UB = 112;
+    private static final int VR = 112;
+    private static final int VG = -94;
+    private static final int VB = -18;
+    /* Frames of space reserved ahead when writing to a file. */
+    private static final int RESERVE = 64;
+
+    private final Format format;
+    private final int fps;
+    private final WritableByteChannel channel;
+    private final RandomAccessFile file;
+    private ByteBuffer buffer;
+    private long position = 0;
+
+    /**
+     * Stream to a file, which is truncated first. Space is reserved
+     * in large chunks ahead of the writes and trimmed on close.
+     * @param path    the output file
+     * @param format  the stream layout
+     * @param fps     frame rate recorded in the stream header
+     * @throws IOException if the file cannot be opened
+     */
+    public StreamSink(final String path, final Format format, final int fps)
+        throws IOException {
+        this.format = format;
+        this.fps = fps;
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+    }
+
+    /**
+     * Stream to standard output.
+     * @param format  the stream layout
+     * @param fps     frame rate recorded in the stream header
+     */
+    public StreamSink(final Format format, final int fps) {
+        this.format = format;
+        this.fps = fps;
+        file = null;
+        channel = new FileOutputStream(FileDescriptor.out).getChannel();
+    }
+
+    @Override
+    public void write(final long index, final BufferedImage image)
+        throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int size = width * height * CHANNELS;
+        if (format == Format.Y4M) {
+            size += FRAME.length;
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(size);
+            if (format == Format.Y4M) {
+                String header = String.format(
+                    "YUV4MPEG2 W%d H%d F%d:1 Ip A1:1 C444\n",
+                    width, height, fps);
+                drain(ByteBuffer.wrap(header.getBytes(ASCII)));
+            }
+        } else if (buffer.capacity() != size) {
+            throw new IOException("frame size changed mid-stream");
+        }
+        buffer.clear();
+        int[] pixels = Threshold.pixels(image);
+        int stride = Threshold.stride(image);
+        int offset = image.getRaster().getDataBuffer().getOffset();
+        if (format == Format.Y4M) {
+            buffer.put(FRAME);
+            yuv(pixels, offset, stride, width, height);
+        } else {
+            rgb(pixels, offset, stride, width, height);
+        }
+        buffer.flip();
+        reserve(buffer.remaining());
+        drain(buffer);
+    }
+
+    @Override
+    public boolean isSequential() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.setLength(position);
+            file.close();
+        } else {
+            channel.close();
+        }
+    }
+
+    /**
+     * Pack pixels as rgb24.
+     * @param pixels  packed RGB pixels
+     * @param offset  index of the first pixel
+     * @param stride  distance between rows
+     * @param width   frame width
+     * @param height  frame height
+     */
+    private void rgb(final int[] pixels, final int offset, final int stride,
+                     final int width, final int height) {
+        for (int y = 0; y < height; y++) {
+            int row = offset + y * stride;
+            for (int x = 0; x < width; x++) {
+                int p = pixels[row + x];
+                buffer.put((byte) (p >> RED));
+                buffer.put((byte) (p >> GREEN));
+                buffer.put((byte) p);
+            }
+        }
+    }
+
+    /**
+     * Convert pixels to planar Y'CbCr 4:4:4.
+     * @param pixels  packed RGB pixels
+     * @param offset  index of the first pixel
+     * @param stride  distance between rows
+     * @param width   frame width
+     * @param height  frame height
+     */
+    private void yuv(final int[] pixels, final int offset, final int stride,
+                     final int width, final int height) {
+        int plane = width * height;
+        int base = buffer.position();
+        for (int y = 0; y < height; y++) {
+            int row = offset + y * stride;
+            for (int x = 0; x < width; x++) {
+                int p = pixels[row + x];
+                int r = (p >> RED) & MASK;
+                int g = (p >> GREEN) & MASK;
+                int b = p & MASK;
+                int i = base + y * width + x;
+                buffer.put(i, (byte) (((YR * r + YG * g + YB * b + ROUND)
+                                       >> SHIFT) + LUMA));
+                buffer.put(i + plane,
+                           (byte) (((UR * r + UG * g + UB * b + ROUND)
+                                    >> SHIFT) + CHROMA));
+                buffer.put(i + plane * 2,
+                           (byte) (((VR * r + VG * g + VB * b + ROUND)
+                                    >> SHIFT) + CHROMA));
+            }
+        }
+        buffer.position(base + plane * CHANNELS);
+    }
+
+    /**
+     * Grow the output file ahead of the write position if needed.
+     * @param bytes  number of bytes about to be written
+     * @throws IOException if the file cannot be extended
+     */
+    private void reserve(final int bytes) throws IOException {
+        if (file != null && position + bytes > file.length()) {
+            file.setLength(position + (long) bytes * RESERVE);
+        }
+    }
+
+    /**
+     * Write a buffer out completely.
+     * @param buf  the bytes to write
+     * @throws IOException if writing fails
+     */
+    private void drain(final ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf);
+        }
+    }
+}
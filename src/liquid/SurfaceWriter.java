@@ -0,0 +1,161 @@
+package liquid;
+
+import java.awt.Dimension;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+/**
+ * Writes the traced outline of the liquid after every step of a
+ * simulation to its own numbered SVG file, on a delivery thread.
+ * Unlike a rendered frame, an outline can be scaled to any size and
+ * stays smooth. Several liquids each get a path in their own color.
+ */
+@Log
+public final class SurfaceWriter implements StepBus.Listener, Closeable {
+
+    private static final int COORDS = 6;
+    private static final int RGB = 0xffffff;
+    /* Steps that may wait to be written before stepping waits. */
+    private static final int QUEUE = 16;
+
+    private final StepBus.Subscription subscription;
+    private final String prefix;
+    private final Renderer renderer;
+    private final Frame frame;
+    private final float[] coords = new float[COORDS];
+    private boolean closed = false;
+
+    /** Number of outlines written so far. */
+    @Getter private volatile long written = 0;
+
+    /**
+     * Start writing outlines of a simulation.
+     * @param simulation  the simulation to trace
+     * @param prefix      file names are this plus the step number
+     * @param lod         level of detail of the traced field
+     */
+    public SurfaceWriter(final Simulation simulation, final String prefix,
+                         final Renderer.Lod lod) {
+        this.prefix = prefix;
+        Renderer.Options options = new Renderer.Options();
+        options.setContour(true);
+        options.setLod(lod);
+        renderer = new Renderer(options);
+        Dimension size = Renderer.size(simulation.getView());
+        frame = new Frame(size.width, size.height, false);
+        subscription = simulation.subscribe(this, QUEUE,
+                                            StepBus.Overflow.BLOCK);
+    }
+
+    @Override
+    public synchronized void step(final Snapshot snapshot) {
+        if (closed) {
+            return;
+        }
+        renderer.render(frame, snapshot);
+        String name = String.format("%s%08d.svg", prefix,
+                                    snapshot.getStep());
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(name), "UTF-8"));
+            try {
+                write(out);
+            } finally {
+                out.close();
+            }
+            written++;
+        } catch (IOException e) {
+            log.warning("failed to write surface: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Stop writing outlines. Safe to call more than once.
+     */
+    @Override
+    public void close() {
+        subscription.close();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            frame.dispose();
+        }
+        log.info("surface: " + written + " outlines");
+    }
+
+    /**
+     * Write the outlines of the last frame as an SVG document the size
+     * of a frame: white for a single liquid, or a path in each liquid's
+     * color, in the order they are filled on screen.
+     * @param out  where to write
+     * @throws IOException if writing fails
+     */
+    private void write(final Writer out) throws IOException {
+        int w = frame.getWidth();
+        int h = frame.getHeight();
+        out.write(String.format("<svg xmlns=\"http://www.w3.org/2000/svg\" "
+                                + "width=\"%d\" height=\"%d\" "
+                                + "viewBox=\"0 0 %d %d\">\n", w, h, w, h));
+        out.write(String.format("<rect width=\"%d\" height=\"%d\"/>\n", w, h));
+        int n = renderer.getSurfaces();
+        for (int i = 0; i < n; i++) {
+            String fill = "#fff";
+            if (n > 1) {
+                fill = String.format("#%06x",
+                                     Liquid.ALL[i].getColor().getRGB() & RGB);
+            }
+            out.write("<path fill=\"" + fill + "\" fill-rule=\"evenodd\" d=\"");
+            write(out, renderer.getSurface(i));
+            out.write("\"/>\n");
+        }
+        out.write("</svg>\n");
+    }
+
+    /**
+     * Write an outline as SVG path data.
+     * @param out      where to write
+     * @param surface  the outline
+     * @throws IOException if writing fails
+     */
+    private void write(final Writer out, final Path2D surface)
+        throws IOException {
+        String last = null;
+        for (PathIterator i = surface.getPathIterator(null); !i.isDone();
+             i.next()) {
+            String point;
+            switch (i.currentSegment(coords)) {
+            case PathIterator.SEG_MOVETO:
+                last = String.format(Locale.ROOT, "%.1f %.1f",
+                                     coords[0], coords[1]);
+                out.write("M" + last);
+                break;
+            case PathIterator.SEG_LINETO:
+                /* Skip points that round to the one before. */
+                point = String.format(Locale.ROOT, "%.1f %.1f",
+                                      coords[0], coords[1]);
+                if (!point.equals(last)) {
+                    out.write("L" + point);
+                    last = point;
+                }
+                break;
+            case PathIterator.SEG_CLOSE:
+                out.write("Z");
+                break;
+            default:
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package liquid;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+/**
+ * Runs one headless simulation for every combination in a grid of
+ * parameters, all at once on a {@link Scheduler}, and prints a CSV
+ * line of metrics for each run.
+ *
+ * A grid is written as <code>name=value,value;name=value,...</code>,
+ * for example <code>balls=100,400;gravity=30,60</code> for four runs.
+ * The names are balls, hz, gravity, restitution, flip and seed; those
+ * not named keep their base values.
+ */
+@Log
+public final class Sweep {
+
+    private static final String HEADER = "balls,hz,gravity,restitution,"
+        + "flip,seed,steps,step_median_ms,step_p99_ms,mean_speed,max_speed";
+    private static final double MILLIS = 1e6;
+    private static final double SECONDS = 1e9;
+    private static final double MEDIAN = 0.5;
+    private static final double P99 = 0.99;
+
+    /** Every combination of parameters, one per run. */
+    @Getter private final List<Parameters> runs;
+    private final boolean fluid;
+
+    /**
+     * Expand a grid of parameters.
+     * @param base   values of the parameters not in the grid
+     * @param grid   the grid, as described above
+     * @param fluid  simulate particles instead of JBox2D balls
+     * @throws IllegalArgumentException if the grid cannot be parsed
+     */
+    public Sweep(final Parameters base, final String grid,
+                 final boolean fluid) {
+        this.fluid = fluid;
+        List<Parameters> all = new ArrayList<Parameters>();
+        all.add(base.copy());
+        for (String axis : grid.split(";")) {
+            if (axis.trim().length() == 0) {
+                continue;
+            }
+            int eq = axis.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("bad sweep axis: " + axis);
+            }
+            String name = axis.substring(0, eq).trim().toLowerCase(
+                Locale.ROOT);
+            List<Parameters> next = new ArrayList<Parameters>();
+            for (Parameters p : all) {
+                for (String value : axis.substring(eq + 1).split(",")) {
+                    Parameters q = p.copy();
+                    set(q, name, value.trim());
+                    next.add(q);
+                }
+            }
+            all = next;
+        }
+        runs = all;
+    }
+
+    /**
+     * Set one named parameter.
+     * @param p      the parameters to change
+     * @param name   the parameter name
+     * @param value  its new value
+     * @throws IllegalArgumentException for an unknown name or bad value
+     */
+    private static void set(final Parameters p, final String name,
+                            final String value) {
+        if ("balls".equals(name)) {
+            p.setBalls(Integer.parseInt(value));
+        } else if ("hz".equals(name)) {
+            p.setHz(Integer.parseInt(value));
+        } else if ("gravity".equals(name)) {
+            p.setGravity(Float.parseFloat(value));
+        } else if ("restitution".equals(name)) {
+            p.setRestitution(Float.parseFloat(value));
+        } else if ("flip".equals(name)) {
+            p.setFlipRate(Double.parseDouble(value));
+        } else if ("seed".equals(name)) {
+            p.setSeed(Long.parseLong(value));
+        } else {
+            throw new IllegalArgumentException("unknown parameter: " + name);
+        }
+        if (p.getBalls() <= 0 || p.getHz() <= 0 || p.getFlipRate() <= 0) {
+            throw new IllegalArgumentException("bad value: " + name + "="
+                                               + value);
+        }
+    }
+
+    /**
+     * Run every combination for the same number of steps and print
+     * one CSV line per run.
+     * @param steps  steps each run takes
+     * @param out    where to print the CSV
+     */
+    public void run(final long steps, final PrintStream out) {
+        List<Simulation> sims = new ArrayList<Simulation>();
+        for (Parameters p : runs) {
+            if (fluid) {
+                sims.add(new ParticleFluid(p));
+            } else {
+                sims.add(new Bottle(p));
+            }
+        }
+        long start = System.nanoTime();
+        new Scheduler(sims, Scheduler.BATCH).run(steps);
+        double secs = (System.nanoTime() - start) / SECONDS;
+        log.info(String.format("sweep: %d runs of %d steps in %.1f s "
+                               + "(%.0f steps/s)", sims.size(), steps, secs,
+                               sims.size() * steps / secs));
+        out.println(HEADER);
+        for (int i = 0; i < sims.size(); i++) {
+            out.println(line(runs.get(i), sims.get(i), steps));
+        }
+        out.flush();
+    }
+
+    /**
+     * Describe a finished run.
+     * @param p      its parameters
+     * @param sim    the simulation
+     * @param steps  steps it took
+     * @return a CSV line
+     */
+    private static String line(final Parameters p, final Simulation sim,
+                               final long steps) {
+        Histogram h = sim.getStats().get(FrameStats.Stage.STEP);
+        Snapshot s = sim.acquireSnapshot();
+        double sum = 0;
+        double max = 0;
+        int n = 0;
+        try {
+            for (int i = 0; i < s.getCount(); i++) {
+                if (s.getType()[i] != Snapshot.DYNAMIC) {
+                    continue;
+                }
+                double speed = Math.hypot(s.getX()[i] - s.getPrevX()[i],
+                                          s.getY()[i] - s.getPrevY()[i])
+                    * sim.getFps();
+                sum += speed;
+                max = Math.max(max, speed);
+                n++;
+            }
+        } finally {
+            s.release();
+        }
+        String seed = "";
+        if (p.getSeed() != null) {
+            seed = p.getSeed().toString();
+        }
+        return String.format(Locale.ROOT,
+                             "%d,%d,%s,%s,%s,%s,%d,%.3f,%.3f,%.2f,%.2f",
+                             p.getBalls(), p.getHz(), p.getGravity(),
+                             p.getRestitution(), p.getFlipRate(),
+                             seed, steps,
+                             h.percentile(MEDIAN) / MILLIS,
+                             h.percentile(P99) / MILLIS,
+                             sum / Math.max(1, n), max);
+    }
+}
@@ -0,0 +1,191 @@
+package liquid;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import lombok.val;
+
+/**
+ * Thresholds packed RGB pixels in place. Works directly on the
+ * backing array of an image so that no objects are created per
+ * pixel or per frame.
+ *
+ * A threshold either compares the sum of the channels against one
+ * limit, for a gray field, or compares each channel against its own,
+ * for a field holding one {@link Liquid} per channel.
+ */
+public final class Threshold {
+
+    private static final int MASK = 0xff;
+    private static final int RGB = 0xffffff;
+    private static final int RED = 16;
+    private static final int GREEN = 8;
+
+    private final int limit;
+    private final int on;
+    private final int off;
+    /* Limit and color of each channel, or null to sum the channels. */
+    private final int[] limits;
+    private final int[] colors;
+
+    /**
+     * Create a new threshold stage.
+     * @param limit  summed RGB value that must be exceeded to be "on"
+     * @param on     color of pixels above the limit
+     * @param off    color of pixels at or below the limit
+     */
+    public Threshold(final int limit, final Color on, final Color off) {
+        this.limit = limit;
+        this.on = on.getRGB() & RGB;
+        this.off = off.getRGB() & RGB;
+        limits = null;
+        colors = null;
+    }
+
+    /**
+     * Create a threshold stage for one liquid per channel, red first.
+     * Where several channels are above their limits, their colors are
+     * mixed in proportion to the channel values.
+     * @param limits  value of each channel that must be exceeded
+     * @param colors  color of each channel's liquid
+     * @param off     color of pixels with no channel above its limit
+     */
+    public Threshold(final int[] limits, final Color[] colors,
+                     final Color off) {
+        this.limits = limits.clone();
+        this.colors = new int[limits.length];
+        for (int i = 0; i < limits.length; i++) {
+            this.colors[i] = colors[i].getRGB() & RGB;
+        }
+        this.limit = 0;
+        this.on = this.colors[0];
+        this.off = off.getRGB() & RGB;
+    }
+
+    /**
+     * Return the summed RGB value that must be exceeded, unless mixed.
+     * @return the limit
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Return the color of pixels above the limit.
+     * @return packed RGB
+     */
+    int getOn() {
+        return on;
+    }
+
+    /**
+     * Return the color of pixels at or below the limit.
+     * @return packed RGB
+     */
+    int getOff() {
+        return off;
+    }
+
+    /**
+     * Threshold a single packed RGB value.
+     * @param rgb  the input pixel
+     * @return the thresholded pixel
+     */
+    public int apply(final int rgb) {
+        return apply((rgb >> RED) & MASK, (rgb >> GREEN) & MASK, rgb & MASK);
+    }
+
+    /**
+     * Threshold a pixel given as separate channels.
+     * @param r  red channel
+     * @param g  green channel
+     * @param b  blue channel
+     * @return the thresholded pixel
+     */
+    public int apply(final int r, final int g, final int b) {
+        if (limits != null) {
+            return mix((r << RED) | (g << GREEN) | b);
+        } else if (r + g + b > limit) {
+            return on;
+        } else {
+            return off;
+        }
+    }
+
+    /**
+     * Color a pixel of several liquids by the channels above their
+     * limits, mixing the colors where more than one is.
+     * @param rgb  the input pixel
+     * @return the colored pixel
+     */
+    private int mix(final int rgb) {
+        int lit = 0;
+        int total = 0;
+        int color = off;
+        int r = 0;
+        int g = 0;
+        int b = 0;
+        for (int i = 0; i < limits.length; i++) {
+            int v = (rgb >> Liquid.shift(i)) & MASK;
+            if (v > limits[i]) {
+                int c = colors[i];
+                lit++;
+                total += v;
+                color = c;
+                r += v * ((c >> RED) & MASK);
+                g += v * ((c >> GREEN) & MASK);
+                b += v * (c & MASK);
+            }
+        }
+        if (lit < 2) {
+            return color;
+        }
+        return ((r / total) << RED) | ((g / total) << GREEN) | (b / total);
+    }
+
+    /**
+     * Threshold a run of packed RGB pixels in place.
+     * @param pixels  the pixel array
+     * @param from    first index (inclusive)
+     * @param to      last index (exclusive)
+     */
+    public void apply(final int[] pixels, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            pixels[i] = apply(pixels[i]);
+        }
+    }
+
+    /**
+     * Threshold an integer-packed image in place, row by row.
+     * @param im  the image to be thresholded
+     */
+    public void apply(final BufferedImage im) {
+        int[] data = pixels(im);
+        int stride = stride(im);
+        int offset = im.getRaster().getDataBuffer().getOffset();
+        for (int y = 0; y < im.getHeight(); y++) {
+            int start = offset + y * stride;
+            apply(data, start, start + im.getWidth());
+        }
+    }
+
+    /**
+     * Return the backing pixel array of an integer-packed image.
+     * @param im  an image backed by a DataBufferInt
+     * @return the backing array, shared with the image
+     */
+    public static int[] pixels(final BufferedImage im) {
+        return ((DataBufferInt) im.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Return the distance between rows in an integer-packed image.
+     * @param im  an image backed by a DataBufferInt
+     * @return the scanline stride in pixels
+     */
+    public static int stride(final BufferedImage im) {
+        val model = im.getSampleModel();
+        return ((SinglePixelPackedSampleModel) model).getScanlineStride();
+    }
+}
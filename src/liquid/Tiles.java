@@ -0,0 +1,206 @@
+package liquid;
+
+import java.util.Arrays;
+
+/**
+ * A grid of square tiles over a pixel buffer, each either dirty or
+ * clean, for redoing only the parts of a frame that changed. Regions
+ * are marked in pixels and every tile they touch becomes dirty. Tiles
+ * along the right and bottom edges may be cut short by the buffer.
+ */
+final class Tiles {
+
+    /** Width and height of a tile in pixels. */
+    static final int SIZE = 32;
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+    private final boolean[] dirty;
+    private int count;
+
+    /**
+     * Create a grid over a buffer with every tile dirty.
+     * @param width   width of the buffer in pixels
+     * @param height  height of the buffer in pixels
+     */
+    Tiles(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+        columns = (width + SIZE - 1) / SIZE;
+        rows = (height + SIZE - 1) / SIZE;
+        dirty = new boolean[columns * rows];
+        fill();
+    }
+
+    /**
+     * Return true if this grid is over a buffer of the given size.
+     * @param w  the width to check
+     * @param h  the height to check
+     * @return true if the buffer is exactly w by h
+     */
+    boolean fits(final int w, final int h) {
+        return width == w && height == h;
+    }
+
+    /**
+     * Mark every tile clean.
+     */
+    void clear() {
+        Arrays.fill(dirty, false);
+        count = 0;
+    }
+
+    /**
+     * Mark every tile dirty.
+     */
+    void fill() {
+        Arrays.fill(dirty, true);
+        count = dirty.length;
+    }
+
+    /**
+     * Mark the tiles touched by a rectangle of pixels dirty. Parts
+     * outside the buffer are ignored.
+     * @param x0  left edge (inclusive)
+     * @param y0  top edge (inclusive)
+     * @param x1  right edge (exclusive)
+     * @param y1  bottom edge (exclusive)
+     */
+    void mark(final int x0, final int y0, final int x1, final int y1) {
+        int c0 = Math.max(0, x0) / SIZE;
+        int r0 = Math.max(0, y0) / SIZE;
+        int c1 = (Math.min(width, x1) + SIZE - 1) / SIZE;
+        int r1 = (Math.min(height, y1) + SIZE - 1) / SIZE;
+        for (int r = r0; r < r1; r++) {
+            for (int c = c0; c < c1; c++) {
+                if (!dirty[r * columns + c]) {
+                    dirty[r * columns + c] = true;
+                    count++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return true if any tile touched by a rectangle of pixels is dirty.
+     * @param x0  left edge (inclusive)
+     * @param y0  top edge (inclusive)
+     * @param x1  right edge (exclusive)
+     * @param y1  bottom edge (exclusive)
+     * @return true if the rectangle needs redoing
+     */
+    boolean touches(final int x0, final int y0, final int x1, final int y1) {
+        int c0 = Math.max(0, x0) / SIZE;
+        int r0 = Math.max(0, y0) / SIZE;
+        int c1 = (Math.min(width, x1) + SIZE - 1) / SIZE;
+        int r1 = (Math.min(height, y1) + SIZE - 1) / SIZE;
+        for (int r = r0; r < r1; r++) {
+            for (int c = c0; c < c1; c++) {
+                if (dirty[r * columns + c]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return true if a tile is dirty.
+     * @param column  column of the tile
+     * @param row     row of the tile
+     * @return true if the tile needs redoing
+     */
+    boolean isDirty(final int column, final int row) {
+        return dirty[row * columns + column];
+    }
+
+    /**
+     * Return true if any tile in a column of tiles is dirty.
+     * @param column  the tile column
+     * @return true if part of the column needs redoing
+     */
+    boolean isColumnDirty(final int column) {
+        for (int r = 0; r < rows; r++) {
+            if (dirty[r * columns + column]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return true if any tile in a row of tiles is dirty.
+     * @param row  the tile row
+     * @return true if part of the row needs redoing
+     */
+    boolean isRowDirty(final int row) {
+        for (int c = 0; c < columns; c++) {
+            if (dirty[row * columns + c]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return true if the tile holding a pixel is dirty.
+     * @param x  column of the pixel
+     * @param y  row of the pixel
+     * @return true if the pixel needs redoing
+     */
+    boolean isDirtyAt(final int x, final int y) {
+        return dirty[(y / SIZE) * columns + x / SIZE];
+    }
+
+    /**
+     * Return the number of dirty tiles.
+     * @return the count
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Return the number of tiles.
+     * @return columns times rows
+     */
+    int getSize() {
+        return dirty.length;
+    }
+
+    /**
+     * Return the number of tile columns.
+     * @return the columns
+     */
+    int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Return the number of tile rows.
+     * @return the rows
+     */
+    int getRows() {
+        return rows;
+    }
+
+    /**
+     * Return the first pixel column of a tile column.
+     * @param column  the tile column, up to the number of columns
+     * @return the pixel column, clipped to the buffer
+     */
+    int left(final int column) {
+        return Math.min(width, column * SIZE);
+    }
+
+    /**
+     * Return the first pixel row of a tile row.
+     * @param row  the tile row, up to the number of rows
+     * @return the pixel row, clipped to the buffer
+     */
+    int top(final int row) {
+        return Math.min(height, row * SIZE);
+    }
+}
@@ -0,0 +1,292 @@
+package liquid;
+
+import java.awt.geom.Rectangle2D;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+/**
+ * Records every step of a simulation into a compact trace file that
+ * {@link Replay} can play back without the physics engine.
+ *
+ * The file starts with a header describing every body: its type,
+ * liquid, initial pose, radius and polygon vertices. Bodies that are not
+ * static are then recorded each step as fixed-point positions (1/4096
+ * of a meter) and angles (1/65536 of a turn). Steps are grouped into
+ * chunks of up to {@link #CHUNK} steps, fewer when that many would
+ * not fit in {@link #CHUNK_BYTES} with many bodies. Each chunk begins
+ * with a length header and a keyframe of absolute values; following
+ * steps are deltas from the previous quantized state, stored as bytes
+ * or shorts depending on how far the bodies moved, or as another
+ * keyframe if some body moved further than a short can hold. Since
+ * deltas are taken between quantized values, replay does not drift.
+ */
+@Log
+public final class TraceWriter implements StepBus.Listener, Closeable {
+
+    /** File signature, "LQTR". */
+    static final int MAGIC = 0x4c515452;
+    /** Format version. Version 1 had no liquid per body. */
+    static final int VERSION = 2;
+    /** Fixed-point units per meter. */
+    static final float POSITION = 4096f;
+    /** Fixed-point units per turn, wrapping at 16 bits. */
+    static final int TURN = 65536;
+    /** Maximum steps per chunk. */
+    static final int CHUNK = 256;
+    /** Bytes a chunk is kept within, unless a single step is larger. */
+    static final int CHUNK_BYTES = 1 << 20;
+    /** Bytes of chunk header: steps, payload length, first step. */
+    static final int CHUNK_HEADER = 16;
+    /** Offset of the payload length within a chunk header. */
+    static final int LENGTH_OFFSET = 4;
+    /** Offset of the first step number within a chunk header. */
+    static final int FIRST_OFFSET = 8;
+    /** Step tag: byte deltas. */
+    static final byte BYTE = 1;
+    /** Step tag: short deltas. */
+    static final byte WORD = 2;
+    /** Step tag: absolute values. */
+    static final byte KEY = 4;
+
+    private static final int KEY_SIZE = 10;
+    private static final int FLOAT = 4;
+    private static final int BODY_HEADER = 22;
+    private static final int FILE_HEADER = 32;
+    private static final int ANGLE_MASK = 0xffff;
+    /* Steps that may wait to be written before stepping waits. */
+    private static final int QUEUE = 64;
+
+    private final Simulation simulation;
+    private final StepBus.Subscription subscription;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int[] bodies;
+    private final int[] qx;
+    private final int[] qy;
+    private final int[] qa;
+    private final int[] nx;
+    private final int[] ny;
+    private final int[] na;
+    private final ByteBuffer chunk;
+    /* Bytes of the largest step, one of absolute values. */
+    private final int keyStep;
+    private int steps = 0;
+    private boolean closed = false;
+
+    /** Number of steps written so far. */
+    @Getter private volatile long written = 0;
+
+    /**
+     * Start recording a simulation into a file, which is truncated.
+     * @param simulation  the simulation to record
+     * @param path        the trace file
+     * @throws IOException if the file cannot be written
+     */
+    public TraceWriter(final Simulation simulation, final String path)
+        throws IOException {
+        this.simulation = simulation;
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        Snapshot s = simulation.acquireSnapshot();
+        try {
+            int moving = 0;
+            for (int i = 0; i < s.getCount(); i++) {
+                if (s.getType()[i] != Snapshot.STATIC) {
+                    moving++;
+                }
+            }
+            bodies = new int[moving];
+            for (int i = 0, j = 0; i < s.getCount(); i++) {
+                if (s.getType()[i] != Snapshot.STATIC) {
+                    bodies[j++] = i;
+                }
+            }
+            writeHeader(s);
+        } finally {
+            s.release();
+        }
+        qx = new int[bodies.length];
+        qy = new int[bodies.length];
+        qa = new int[bodies.length];
+        nx = new int[bodies.length];
+        ny = new int[bodies.length];
+        na = new int[bodies.length];
+        keyStep = 1 + bodies.length * KEY_SIZE;
+        chunk = ByteBuffer.allocate(CHUNK_HEADER
+                                    + Math.max(CHUNK_BYTES, keyStep));
+        subscription = simulation.subscribe(this, QUEUE,
+                                            StepBus.Overflow.BLOCK);
+    }
+
+    @Override
+    public synchronized void step(final Snapshot snapshot) {
+        if (closed) {
+            return;
+        }
+        try {
+            record(snapshot);
+        } catch (IOException e) {
+            log.warning("failed to write trace: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Stop recording and flush the last partial chunk. Safe to call
+     * more than once.
+     */
+    @Override
+    public void close() {
+        subscription.close();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                flush();
+                file.close();
+            } catch (IOException e) {
+                log.warning("failed to close trace: " + e.getMessage());
+            }
+        }
+        log.info("trace: " + written + " steps");
+    }
+
+    /**
+     * Quantize one snapshot and append it to the current chunk.
+     * @param s  the snapshot to record
+     * @throws IOException if a full chunk cannot be written
+     */
+    private void record(final Snapshot s) throws IOException {
+        float[] x = s.getX();
+        float[] y = s.getY();
+        float[] angle = s.getAngle();
+        int span = 0;
+        for (int i = 0; i < bodies.length; i++) {
+            int b = bodies[i];
+            nx[i] = Math.round(x[b] * POSITION);
+            ny[i] = Math.round(y[b] * POSITION);
+            na[i] = turns(angle[b]);
+            span = Math.max(span, Math.abs(nx[i] - qx[i]));
+            span = Math.max(span, Math.abs(ny[i] - qy[i]));
+            span = Math.max(span, Math.abs((short) (na[i] - qa[i])));
+        }
+        byte tag = KEY;
+        if (steps == 0) {
+            chunk.clear();
+            chunk.position(CHUNK_HEADER);
+            chunk.putLong(FIRST_OFFSET, s.getStep());
+        } else if (span <= Byte.MAX_VALUE) {
+            tag = BYTE;
+        } else if (span <= Short.MAX_VALUE) {
+            tag = WORD;
+        }
+        chunk.put(tag);
+        for (int i = 0; i < bodies.length; i++) {
+            switch (tag) {
+            case BYTE:
+                chunk.put((byte) (nx[i] - qx[i]));
+                chunk.put((byte) (ny[i] - qy[i]));
+                chunk.put((byte) (na[i] - qa[i]));
+                break;
+            case WORD:
+                chunk.putShort((short) (nx[i] - qx[i]));
+                chunk.putShort((short) (ny[i] - qy[i]));
+                chunk.putShort((short) (na[i] - qa[i]));
+                break;
+            default:
+                chunk.putInt(nx[i]);
+                chunk.putInt(ny[i]);
+                chunk.putShort((short) na[i]);
+                break;
+            }
+            qx[i] = nx[i];
+            qy[i] = ny[i];
+            qa[i] = na[i];
+        }
+        steps++;
+        written++;
+        if (steps == CHUNK || chunk.remaining() < keyStep) {
+            flush();
+        }
+    }
+
+    /**
+     * Write out the current chunk, if it holds any steps.
+     * @throws IOException if writing fails
+     */
+    private void flush() throws IOException {
+        if (steps == 0) {
+            return;
+        }
+        chunk.putInt(0, steps);
+        chunk.putInt(LENGTH_OFFSET, chunk.position() - CHUNK_HEADER);
+        chunk.flip();
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+        steps = 0;
+    }
+
+    /**
+     * Write the file header: rate, view and the layout of every body.
+     * @param s  a snapshot giving the layout and initial poses
+     * @throws IOException if writing fails
+     */
+    private void writeHeader(final Snapshot s) throws IOException {
+        int size = FILE_HEADER;
+        for (int i = 0; i < s.getCount(); i++) {
+            size += BODY_HEADER;
+            if (s.getShape()[i] != null) {
+                size += s.getShape()[i].length * FLOAT;
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(size);
+        Rectangle2D view = simulation.getView();
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(simulation.getFps());
+        header.putInt(s.getCount());
+        header.putFloat((float) view.getX());
+        header.putFloat((float) view.getY());
+        header.putFloat((float) view.getWidth());
+        header.putFloat((float) view.getHeight());
+        for (int i = 0; i < s.getCount(); i++) {
+            float[] shape = s.getShape()[i];
+            header.put(s.getType()[i]);
+            header.put(s.getLiquid()[i]);
+            header.putFloat(s.getX()[i]);
+            header.putFloat(s.getY()[i]);
+            header.putFloat(s.getAngle()[i]);
+            header.putFloat(s.getRadius()[i]);
+            if (shape == null) {
+                header.putInt(-1);
+            } else {
+                header.putInt(shape.length);
+                for (float v : shape) {
+                    header.putFloat(v);
+                }
+            }
+        }
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     * Quantize an angle to 16-bit fractions of a turn.
+     * @param angle  angle in radians
+     * @return the angle in turn units, wrapped to 16 bits
+     */
+    private static int turns(final float angle) {
+        return (int) Math.round(angle / (2 * Math.PI) * TURN) & ANGLE_MASK;
+    }
+}
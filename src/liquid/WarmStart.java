@@ -0,0 +1,204 @@
+package liquid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import lombok.extern.java.Log;
+
+/**
+ * Starts simulations from an already settled state. The first time a
+ * set of parameters is used, a throwaway simulation is stepped
+ * headless until the balls have come to rest and its state is saved
+ * to a small file named after the parameters. Later starts with the
+ * same parameters load that file, so they begin immediately, at rest,
+ * and from exactly the same state every time.
+ *
+ * Only seeded parameters are cached, since an unseeded layout would
+ * not be reproducible anyway; a default seed is used if none is set.
+ *
+ * A file holds the signature "LQWS", a format version, the parameter
+ * key, the number of floats of state and then the floats, all big
+ * endian. A file that does not match is replaced.
+ */
+@Log
+public final class WarmStart {
+
+    /** File signature, "LQWS". */
+    static final int MAGIC = 0x4c515753;
+    /** Format version, also bumped when initial layouts change. */
+    static final int VERSION = 2;
+    /** Seed used when none is given. */
+    static final long SEED = 0;
+    /** Default directory of cached states. */
+    public static final File DIR =
+        new File(System.getProperty("user.home"), ".fun-liquid");
+
+    /* Settle for this fraction of the time before gravity flips. */
+    private static final double SETTLE = 0.8;
+    private static final double SECONDS = 1e9;
+
+    private final File dir;
+
+    /**
+     * A simulation whose state can be saved and restored.
+     */
+    interface State {
+        /**
+         * Copy out everything needed to continue from this state.
+         * @return the state as floats
+         */
+        float[] save();
+
+        /**
+         * Continue from a saved state, publishing it as a snapshot. The
+         * simulation must have been built with the same parameters.
+         * @param state  floats returned by save()
+         */
+        void restore(float[] state);
+    }
+
+    /**
+     * Use a directory of cached states, created if needed.
+     * @param dir  the directory
+     */
+    public WarmStart(final File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Create a settled simulation, settling and caching its state
+     * first if this is the first start with these parameters. A cache
+     * that cannot be written is only logged.
+     * @param parameters  the parameters, seeded with {@link #SEED} if
+     *                    they have no seed
+     * @param fluid       simulate particles instead of JBox2D balls
+     * @return a simulation at rest, not yet running
+     */
+    public Simulation create(final Parameters parameters,
+                             final boolean fluid) {
+        Parameters p = parameters.copy();
+        if (p.getSeed() == null) {
+            p.setSeed(SEED);
+        }
+        String kind = "bottle";
+        if (fluid) {
+            kind = "fluid";
+        }
+        File file = new File(dir, String.format("%s-%016x.warm", kind,
+                                                p.key()));
+        Simulation sim = build(p, fluid);
+        int size = ((State) sim).save().length;
+        float[] state = read(file, p.key(), size);
+        if (state == null) {
+            long start = System.nanoTime();
+            Parameters fixed = p.copy();
+            fixed.setBudget(0);
+            Simulation settling = build(fixed, fluid);
+            long steps = (long) (p.getHz() * p.getFlipRate() * SETTLE);
+            for (long i = 0; i < steps; i++) {
+                settling.advance();
+            }
+            state = ((State) settling).save();
+            log.info(String.format("settled %s in %.1f s", p,
+                                   (System.nanoTime() - start) / SECONDS));
+            write(file, p.key(), state);
+        }
+        ((State) sim).restore(state);
+        return sim;
+    }
+
+    /**
+     * Build a fresh simulation.
+     * @param p      the parameters
+     * @param fluid  simulate particles instead of JBox2D balls
+     * @return the simulation
+     */
+    private static Simulation build(final Parameters p, final boolean fluid) {
+        if (fluid) {
+            return new ParticleFluid(p);
+        }
+        return new Bottle(p);
+    }
+
+    /**
+     * Load a cached state.
+     * @param file  the cache file
+     * @param key   the expected parameter key
+     * @param size  the expected number of floats
+     * @return the state, or null if missing or not matching
+     */
+    private static float[] read(final File file, final long key,
+                                final int size) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != key || in.readInt() != size) {
+                    log.warning("ignoring stale " + file);
+                    return null;
+                }
+                float[] state = new float[size];
+                for (int i = 0; i < size; i++) {
+                    state[i] = in.readFloat();
+                }
+                return state;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warning("could not read " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Save a state, replacing the cache file at once so that readers
+     * never see it half written.
+     * @param file   the cache file
+     * @param key    the parameter key
+     * @param state  the state
+     */
+    private static void write(final File file, final long key,
+                              final float[] state) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            if (!file.getParentFile().isDirectory()
+                && !file.getParentFile().mkdirs()) {
+                throw new IOException("cannot create " + file.getParent());
+            }
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(key);
+                out.writeInt(state.length);
+                for (float f : state) {
+                    out.writeFloat(f);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("cannot replace " + file);
+                }
+            }
+        } catch (IOException e) {
+            log.warning("could not cache settled state: " + e);
+            tmp.delete();
+        } catch (java.security.AccessControlException e) {
+            log.info("could not cache settled state");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package liquid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Frame times missed while a frame is produced are counted as dropped
+ * and skipped, never made up. The viewer is never shown, so its
+ * present thread does not run and pacing does not wait.
+ */
+public final class ActiveViewerTest {
+
+    private static final int BALLS = 20;
+    private static final long RATE = 1000000000L / Viewer.FRAME_RATE;
+
+    private ActiveViewer viewer;
+    private FrameStats stats;
+
+    /**
+     * Create a viewer of a small bottle.
+     */
+    @Before
+    public void create() {
+        Bottle bottle = new Bottle(BALLS);
+        stats = bottle.getStats();
+        viewer = new ActiveViewer(bottle);
+    }
+
+    /**
+     * A frame due in the future is on schedule.
+     */
+    @Test
+    public void early() {
+        long next = System.nanoTime() + RATE;
+        assertEquals(next + RATE, viewer.pace(next, RATE));
+        assertEquals(0, stats.getDroppedRepaints());
+    }
+
+    /**
+     * A frame less than a frame time late keeps the schedule, so the
+     * next one is shown early to catch up.
+     */
+    @Test
+    public void late() {
+        long next = System.nanoTime() - RATE / 2;
+        assertEquals(next + RATE, viewer.pace(next, RATE));
+        assertEquals(0, stats.getDroppedRepaints());
+    }
+
+    /**
+     * Whole frame times missed are dropped and the schedule restarts
+     * from now.
+     */
+    @Test
+    public void missed() {
+        long before = System.nanoTime();
+        long next = viewer.pace(before - RATE * 7 / 2, RATE);
+        long after = System.nanoTime();
+        assertEquals(3, stats.getDroppedRepaints());
+        assertTrue(next >= before + RATE);
+        assertTrue(next <= after + RATE);
+        assertEquals(next + RATE, viewer.pace(next, RATE));
+        assertEquals(3, stats.getDroppedRepaints());
+    }
+}
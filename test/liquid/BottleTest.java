@@ -0,0 +1,123 @@
+package liquid;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.jbox2d.collision.shapes.CircleShape;
+import org.jbox2d.dynamics.Body;
+import org.jbox2d.dynamics.BodyType;
+import org.junit.Test;
+
+/**
+ * Resting balls are woken by what lands on them. Gravity never flips
+ * here, so only the dropped ball can wake the pile.
+ */
+public final class BottleTest {
+
+    private static final int BALLS = 100;
+    private static final long SEED = 7;
+    private static final double NEVER = 1e6;
+    /* Seconds for the pile to come to rest, and to land and react. */
+    private static final int SETTLE = 10;
+    private static final int LAND = 3;
+    /* Where the dropped ball is let go, below the top of the bottle. */
+    private static final float DROP = Bottle.HEIGHT / 2 - 5;
+    /* Height above the pile below which the ball counts as landing. */
+    private static final float ABOVE = 3;
+    private static final int SAVED = 6;
+    /* Most balls that can touch one ball at once. */
+    private static final int AROUND = 6;
+
+    /**
+     * A ball dropped onto a rested pile wakes more of it than just the
+     * balls it lands on.
+     */
+    @Test
+    public void dropped() {
+        Parameters p = Bottle.parameters(BALLS, Bottle.FPS);
+        p.setSeed(SEED);
+        p.setFlipRate(NEVER);
+        p.setSleep(true);
+        Bottle bottle = new Bottle(p);
+        run(bottle, SETTLE);
+        assertTrue(resting(bottle) > BALLS / 2);
+
+        /* Lift the topmost ball to near the top and let it go. */
+        float[] state = bottle.save();
+        int top = 0;
+        for (int i = 0; i < state.length; i += SAVED) {
+            if (state[i + 1] > state[top + 1]) {
+                top = i;
+            }
+        }
+        float pile = state[top + 1];
+        state[top + 1] = DROP;
+        for (int i = 3; i < SAVED; i++) {
+            state[top + i] = 0;
+        }
+        bottle.restore(state);
+        Body ball = find(bottle, state[top], DROP);
+        assertNotNull(ball);
+
+        /* Restoring wakes everything: the pile rests again mid-fall. */
+        int before = 0;
+        while (ball.getPosition().y > pile + ABOVE) {
+            bottle.advance();
+            before = resting(bottle);
+        }
+        assertTrue(before > BALLS / 2);
+        int after = before;
+        for (int i = 0; i < LAND * bottle.getFps(); i++) {
+            bottle.advance();
+            after = Math.min(after, resting(bottle));
+        }
+        assertTrue("resting " + before + " -> " + after,
+                   before - after > AROUND);
+    }
+
+    /**
+     * Step a bottle for some world time.
+     * @param bottle   the bottle
+     * @param seconds  how long
+     */
+    private static void run(final Bottle bottle, final int seconds) {
+        for (int i = 0; i < seconds * bottle.getFps(); i++) {
+            bottle.advance();
+        }
+    }
+
+    /**
+     * Count the resting balls, which are the static circles.
+     * @param bottle  the bottle
+     * @return how many balls rest
+     */
+    private static int resting(final Bottle bottle) {
+        int n = 0;
+        for (Body b = bottle.getWorld().getBodyList(); b != null;
+             b = b.getNext()) {
+            if (b.getType() == BodyType.STATIC
+                && b.getFixtureList().getShape() instanceof CircleShape) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Find the ball at a position.
+     * @param bottle  the bottle
+     * @param x       where it is
+     * @param y       where it is
+     * @return its body, or null
+     */
+    private static Body find(final Bottle bottle, final float x,
+                             final float y) {
+        for (Body b = bottle.getWorld().getBodyList(); b != null;
+             b = b.getNext()) {
+            if (b.getPosition().x == x && b.getPosition().y == y) {
+                return b;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,112 @@
+package liquid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The governor keeps steps within the budget without flickering
+ * between levels. Steps here take exactly their level's cost times a
+ * base step time.
+ */
+public final class GovernorTest {
+
+    private static final double[] COSTS = {1, 2, 4};
+    private static final long MS = 1000000L;
+    private static final long BUDGET = 10 * MS;
+    private static final int STEPS = 200;
+
+    /**
+     * Without a budget the starting level is kept whatever steps cost.
+     */
+    @Test
+    public void unbudgeted() {
+        Governor g = new Governor(COSTS, 0, 2, 1, 0);
+        for (int i = 0; i < STEPS; i++) {
+            assertEquals(1, g.update(BUDGET * (i + 1)));
+        }
+    }
+
+    /**
+     * The starting level is clamped to the bounds.
+     */
+    @Test
+    public void clamped() {
+        assertEquals(1, new Governor(COSTS, 1, 2, 0, BUDGET).getLevel());
+        assertEquals(1, new Governor(COSTS, 0, 1, 2, BUDGET).getLevel());
+    }
+
+    /**
+     * Slow steps lower the level one at a time, down to the minimum.
+     */
+    @Test
+    public void lowers() {
+        Governor g = new Governor(COSTS, 1, 2, 2, BUDGET);
+        int last = g.getLevel();
+        for (int i = 0; i < STEPS; i++) {
+            int level = g.update(BUDGET * 2);
+            assertTrue(last - level <= 1);
+            last = level;
+        }
+        assertEquals(1, last);
+    }
+
+    /**
+     * Cheap steps raise the level as far as the bounds allow.
+     */
+    @Test
+    public void raises() {
+        assertEquals(2, run(new Governor(COSTS, 0, 2, 0, BUDGET), MS));
+        assertEquals(1, run(new Governor(COSTS, 0, 1, 0, BUDGET), MS));
+    }
+
+    /**
+     * The level is not raised when the next one is estimated to go
+     * over budget, nor lowered while steps fit.
+     */
+    @Test
+    public void settles() {
+        Governor g = new Governor(COSTS, 0, 2, 0, BUDGET);
+        assertEquals(1, run(g, 3 * MS));
+        assertEquals(1, run(g, 3 * MS));
+        assertEquals(1, run(new Governor(COSTS, 0, 2, 2, BUDGET), 3 * MS));
+    }
+
+    /**
+     * After a change the level is held for a while, even if steps keep
+     * going over budget.
+     */
+    @Test
+    public void holds() {
+        Governor g = new Governor(COSTS, 0, 2, 2, BUDGET);
+        assertEquals(1, g.update(BUDGET * 2));
+        assertEquals(1, g.update(BUDGET * 2));
+        assertEquals(0, run(g, BUDGET));
+    }
+
+    /**
+     * A single slow step is smoothed away.
+     */
+    @Test
+    public void smooths() {
+        Governor g = new Governor(COSTS, 0, 2, 0, BUDGET);
+        assertEquals(1, run(g, 3 * MS));
+        assertEquals(1, g.update(BUDGET + BUDGET / 2));
+        assertEquals(1, run(g, 3 * MS));
+    }
+
+    /**
+     * Run steps whose time follows the level the governor picks.
+     * @param g     the governor
+     * @param base  nanoseconds a step takes at a cost of 1
+     * @return the level after the last step
+     */
+    private static int run(final Governor g, final long base) {
+        int level = g.getLevel();
+        for (int i = 0; i < STEPS; i++) {
+            level = g.update((long) (base * COSTS[level]));
+        }
+        return level;
+    }
+}
@@ -0,0 +1,157 @@
+package liquid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * A frame rendered incrementally must be exactly the full render of
+ * the same positions. Every ball either stays put or moves by more
+ * than the distance below which incremental frames leave it be, so
+ * the positions drawn are the positions given.
+ */
+public final class IncrementalTest {
+
+    private static final int WIDTH = 250;
+    private static final int HEIGHT = 350;
+    private static final int BALLS = 300;
+    private static final int FRAMES = 60;
+    /* Every so many balls is one too small to rasterize as a disc. */
+    private static final int TINY = 50;
+    private static final float TINY_RADIUS = 0.05f;
+    /* Smallest move, in world units: over a quarter pixel. */
+    private static final float MOVE = 0.06f;
+    /* Fraction of balls moving per frame, busy and then calm. */
+    private static final double BUSY = 0.2;
+    private static final double CALM = 0.02;
+    private static final float HALF = 0.5f;
+    private static final float[] WEDGE = {0, 0, 5, 0, 0, 5};
+
+    /**
+     * Gaussian blur, one liquid.
+     */
+    @Test
+    public void gaussian() {
+        check(Blur.Mode.GAUSSIAN, 1);
+    }
+
+    /**
+     * Gaussian blur, a liquid per channel.
+     */
+    @Test
+    public void gaussianLiquids() {
+        check(Blur.Mode.GAUSSIAN, Liquid.MAX);
+    }
+
+    /**
+     * Box blur, whose lines cross tiles.
+     */
+    @Test
+    public void box() {
+        check(Blur.Mode.BOX, 1);
+        check(Blur.Mode.BOX, Liquid.MAX);
+    }
+
+    /**
+     * Single-channel passes, vectorized when the Vector API is present.
+     */
+    @Test
+    public void luma() {
+        check(Blur.Mode.LUMA, 1);
+    }
+
+    /**
+     * Render a moving scene both ways, thresholded and not, and compare
+     * every frame.
+     * @param mode     the blur mode
+     * @param liquids  the number of liquids
+     */
+    private static void check(final Blur.Mode mode, final int liquids) {
+        for (boolean threshold : new boolean[] {false, true}) {
+            Random random = new Random(mode.ordinal() * liquids);
+            Snapshot s = scene(random, liquids);
+            Renderer.Options full = new Renderer.Options();
+            Renderer.Options incremental = new Renderer.Options();
+            for (Renderer.Options o : new Renderer.Options[] {
+                    full, incremental}) {
+                o.setBlurMode(mode);
+                o.setThreshold(threshold);
+            }
+            incremental.setIncremental(true);
+            Renderer a = new Renderer(full);
+            Renderer b = new Renderer(incremental);
+            Frame fa = new Frame(WIDTH, HEIGHT, false);
+            Frame fb = new Frame(WIDTH, HEIGHT, false);
+            float redone = 0;
+            for (int f = 0; f < FRAMES; f++) {
+                double p = BUSY;
+                if (f > FRAMES / 3 && f < FRAMES * 2 / 3) {
+                    p = CALM;
+                }
+                move(s, random, p);
+                a.render(fa, s);
+                b.render(fb, s);
+                assertArrayEquals(mode + " frame " + f, fa.getPixels(),
+                                  fb.getPixels());
+                redone += b.getRedone();
+            }
+            assertTrue("nothing was reused", redone < FRAMES);
+        }
+    }
+
+    /**
+     * Scatter balls over the view, plus one static wedge.
+     * @param random   source of positions
+     * @param liquids  the number of liquids
+     * @return the scene
+     */
+    private static Snapshot scene(final Random random, final int liquids) {
+        float[][] shapes = new float[BALLS + 1][];
+        shapes[BALLS] = WEDGE;
+        Snapshot s = new Snapshot(BALLS + 1, shapes);
+        for (int i = 0; i < BALLS; i++) {
+            s.getX()[i] = (random.nextFloat() - HALF)
+                * (Bottle.WIDTH + Bottle.BALL_RADIUS * 2);
+            s.getY()[i] = (random.nextFloat() - HALF)
+                * (Bottle.HEIGHT + Bottle.BALL_RADIUS * 2);
+            s.getType()[i] = Snapshot.DYNAMIC;
+            s.getRadius()[i] = Bottle.BALL_RADIUS;
+            if (i % TINY == 0) {
+                s.getRadius()[i] = TINY_RADIUS;
+            }
+            s.getLiquid()[i] = (byte) (i % liquids);
+        }
+        s.getType()[BALLS] = Snapshot.STATIC;
+        return s;
+    }
+
+    /**
+     * Move some of the balls, each by at least MOVE on both axes.
+     * @param s       the scene
+     * @param random  source of moves
+     * @param p       chance of each ball moving
+     */
+    private static void move(final Snapshot s, final Random random,
+                             final double p) {
+        for (int i = 0; i < BALLS; i++) {
+            if (random.nextDouble() < p) {
+                s.getX()[i] += sign(random) * (MOVE + random.nextFloat());
+                s.getY()[i] += sign(random) * (MOVE + random.nextFloat());
+            }
+        }
+    }
+
+    /**
+     * Pick a direction.
+     * @param random  source of the choice
+     * @return 1 or -1
+     */
+    private static int sign(final Random random) {
+        if (random.nextBoolean()) {
+            return 1;
+        }
+        return -1;
+    }
+}
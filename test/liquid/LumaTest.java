@@ -0,0 +1,33 @@
+package liquid;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
+
+import org.junit.Test;
+
+/**
+ * The vector passes must agree with the scalar ones, whole and over
+ * tiles. At startup a disagreement only falls back to scalar quietly.
+ */
+public final class LumaTest {
+
+    /**
+     * The self-check passes for the vector implementation, when the
+     * Vector API is present.
+     */
+    @Test
+    public void vectorAgrees() {
+        /* Loading the subclass first would run select() half-made. */
+        assertTrue(Luma.INSTANCE.name() != null);
+        Luma vector = null;
+        try {
+            vector = (Luma) Class.forName("liquid.VectorLuma")
+                .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            assumeNoException(e);
+        } catch (LinkageError e) {
+            assumeNoException(e);
+        }
+        assertTrue(Luma.agree(new Luma.Scalar(), vector));
+    }
+}
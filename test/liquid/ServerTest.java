@@ -0,0 +1,340 @@
+package liquid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The server speaks enough HTTP and WebSocket to a client on the
+ * loopback interface. The bottle is stepped by hand.
+ */
+public final class ServerTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int BALLS = 20;
+    private static final int FPS = 30;
+    private static final int TIMEOUT = 10000;
+
+    /* The sample handshake of RFC 6455, section 1.3. */
+    private static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+    private static final String ACCEPT = "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=";
+
+    private static final int FIN = 0x80;
+    private static final int BINARY = 0x2;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xa;
+    private static final int MASKED = 0x80;
+    private static final int LENGTH = 0x7f;
+    private static final int LENGTH16 = 126;
+    private static final int LENGTH64 = 127;
+    private static final int BYTE = 0xff;
+    private static final int SHORT = 0xffff;
+    private static final byte[] MASK = {0x37, (byte) 0xfa, 0x21, 0x3d};
+
+    private static final int STEP_HEADER = 24;
+    private static final int POSE = 12;
+
+    private Bottle bottle;
+    private Server server;
+
+    /**
+     * Serve a small bottle on an ephemeral port.
+     * @throws IOException if the server cannot start
+     */
+    @Before
+    public void serve() throws IOException {
+        bottle = new Bottle(BALLS);
+        server = new Server(bottle, new InetSocketAddress(
+                                InetAddress.getLoopbackAddress(), 0),
+                            new Renderer.Options(), FPS);
+    }
+
+    /**
+     * Stop serving.
+     */
+    @After
+    public void close() {
+        server.close();
+    }
+
+    /**
+     * Frames use the shortest length encoding for their payload.
+     */
+    @Test
+    public void framing() {
+        int[] sizes = {0, LENGTH16 - 1, LENGTH16, SHORT, SHORT + 1};
+        int[] headers = {2, 2, 4, 4, 10};
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] payload = new byte[sizes[i]];
+            for (int j = 0; j < payload.length; j++) {
+                payload[j] = (byte) j;
+            }
+            ByteBuffer b = Server.websocket(BINARY, ByteBuffer.wrap(payload));
+            assertEquals(headers[i] + sizes[i], b.remaining());
+            assertEquals(FIN | BINARY, b.get() & BYTE);
+            int length = b.get() & BYTE;
+            assertEquals(0, length & MASKED);
+            if (headers[i] == 2) {
+                assertEquals(sizes[i], length);
+            } else if (headers[i] == 4) {
+                assertEquals(LENGTH16, length);
+                assertEquals(sizes[i], b.getShort() & SHORT);
+            } else {
+                assertEquals(LENGTH64, length);
+                assertEquals(sizes[i], b.getLong());
+            }
+            byte[] rest = new byte[b.remaining()];
+            b.get(rest);
+            assertArrayEquals(payload, rest);
+        }
+    }
+
+    /**
+     * Each resource answers with its status, and anything else is
+     * refused.
+     * @throws IOException if the connection fails
+     */
+    @Test
+    public void statuses() throws IOException {
+        assertTrue(status("GET / HTTP/1.1").contains(" 200 "));
+        assertTrue(status("GET /nothing HTTP/1.1").contains(" 404 "));
+        assertTrue(status("POST / HTTP/1.1").contains(" 405 "));
+        assertTrue(status("GET " + Server.FEED + " HTTP/1.1")
+                   .contains(" 426 "));
+    }
+
+    /**
+     * The stream starts as a multipart response and sends a JPEG part
+     * after a step.
+     * @throws IOException if the connection fails
+     */
+    @Test
+    public void stream() throws IOException {
+        Socket s = connect();
+        try {
+            send(s, "GET " + Server.STREAM + " HTTP/1.1\r\n\r\n");
+            InputStream in = s.getInputStream();
+            String head = head(in);
+            assertTrue(head.startsWith("HTTP/1.1 200 "));
+            assertTrue(head.contains("multipart/x-mixed-replace"));
+            bottle.advance();
+            String part = head(in);
+            assertTrue(part.contains("Content-Type: image/jpeg"));
+            DataInputStream data = new DataInputStream(in);
+            assertEquals(BYTE, data.readUnsignedByte());
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * A handshake is accepted with the key the RFC gives, and the feed
+     * sends the layout and then steps.
+     * @throws IOException if the connection fails
+     */
+    @Test
+    public void feed() throws IOException {
+        Socket s = follow();
+        try {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            bottle.advance();
+            ByteBuffer layout = frame(in, BINARY);
+            assertEquals(Server.LAYOUT, layout.getInt());
+            int count = layout.getInt();
+            assertTrue(count > BALLS);
+            ByteBuffer step = frame(in, BINARY);
+            assertEquals(Server.STEP, step.getInt());
+            assertEquals(STEP_HEADER + count * POSE, step.limit());
+            bottle.advance();
+            step = frame(in, BINARY);
+            assertEquals(Server.STEP, step.getInt());
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * A ping, even one arriving in pieces, is answered with its
+     * payload, and a close is echoed before the connection ends.
+     * @throws IOException if the connection fails
+     */
+    @Test
+    public void control() throws IOException {
+        Socket s = follow();
+        try {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            byte[] ping = masked(PING, "are you there".getBytes(ASCII));
+            OutputStream out = s.getOutputStream();
+            out.write(ping, 0, 2 + 1);
+            out.flush();
+            sleep();
+            out.write(ping, 2 + 1, ping.length - 2 - 1);
+            out.flush();
+            ByteBuffer pong = frame(in, PONG);
+            assertEquals("are you there", text(pong));
+            byte[] code = {0x03, (byte) 0xe8};
+            out.write(masked(CLOSE, code));
+            out.flush();
+            ByteBuffer echo = frame(in, CLOSE);
+            assertEquals(code.length, echo.remaining());
+            assertEquals(-1, in.read());
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Connect to the server.
+     * @return the connection
+     * @throws IOException if the connection fails
+     */
+    private Socket connect() throws IOException {
+        Socket s = new Socket(InetAddress.getLoopbackAddress(),
+                              server.getPort());
+        s.setSoTimeout(TIMEOUT);
+        return s;
+    }
+
+    /**
+     * Connect and complete a WebSocket handshake on the feed.
+     * @return the connection
+     * @throws IOException if the connection fails
+     */
+    private Socket follow() throws IOException {
+        Socket s = connect();
+        send(s, "GET " + Server.FEED + " HTTP/1.1\r\nHost: localhost\r\n"
+             + "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+             + "Sec-WebSocket-Key: " + KEY + "\r\n"
+             + "Sec-WebSocket-Version: 13\r\n\r\n");
+        String head = head(s.getInputStream());
+        assertTrue(head.startsWith("HTTP/1.1 101 "));
+        assertTrue(head.contains("Sec-WebSocket-Accept: " + ACCEPT + "\r\n"));
+        return s;
+    }
+
+    /**
+     * Make a request and return the head of the response.
+     * @param line  the request line
+     * @return the status line and headers
+     * @throws IOException if the connection fails
+     */
+    private String status(final String line) throws IOException {
+        Socket s = connect();
+        try {
+            send(s, line + "\r\nHost: localhost\r\n\r\n");
+            return head(s.getInputStream());
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Send text to the server.
+     * @param s     the connection
+     * @param text  what to send
+     * @throws IOException if the connection fails
+     */
+    private static void send(final Socket s, final String text)
+        throws IOException {
+        s.getOutputStream().write(text.getBytes(ASCII));
+        s.getOutputStream().flush();
+    }
+
+    /**
+     * Read up to and including the blank line ending a head.
+     * @param in  the stream
+     * @return the head
+     * @throws IOException if the stream ends first
+     */
+    private static String head(final InputStream in) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        while (!b.toString("US-ASCII").endsWith("\r\n\r\n")) {
+            int c = in.read();
+            if (c < 0) {
+                throw new IOException("end of stream in " + b);
+            }
+            b.write(c);
+        }
+        return b.toString("US-ASCII");
+    }
+
+    /**
+     * Read one unmasked, final frame of an expected type.
+     * @param in      the stream
+     * @param opcode  the expected type
+     * @return the payload, little-endian
+     * @throws IOException if the stream ends first
+     */
+    private static ByteBuffer frame(final DataInputStream in,
+                                    final int opcode) throws IOException {
+        int first = in.readUnsignedByte();
+        assertEquals(FIN | opcode, first);
+        int second = in.readUnsignedByte();
+        assertEquals(0, second & MASKED);
+        long length = second & LENGTH;
+        if (length == LENGTH16) {
+            length = in.readUnsignedShort();
+        } else if (length == LENGTH64) {
+            length = in.readLong();
+        }
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        return ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Frame a short message as a client must, masked.
+     * @param opcode   the frame type
+     * @param payload  the message, under 126 bytes
+     * @return the frame
+     */
+    private static byte[] masked(final int opcode, final byte[] payload) {
+        byte[] b = new byte[2 + MASK.length + payload.length];
+        b[0] = (byte) (FIN | opcode);
+        b[1] = (byte) (MASKED | payload.length);
+        System.arraycopy(MASK, 0, b, 2, MASK.length);
+        int start = 2 + MASK.length;
+        for (int i = 0; i < payload.length; i++) {
+            b[start + i] = (byte) (payload[i] ^ MASK[i % MASK.length]);
+        }
+        return b;
+    }
+
+    /**
+     * Decode a payload as text.
+     * @param b  the payload
+     * @return the text
+     */
+    private static String text(final ByteBuffer b) {
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        return new String(bytes, ASCII);
+    }
+
+    /**
+     * Give the server time to read what has been sent so far.
+     */
+    private static void sleep() {
+        try {
+            Thread.sleep(TIMEOUT / 100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
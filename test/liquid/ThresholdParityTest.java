@@ -0,0 +1,132 @@
+package liquid;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.util.Random;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The thresholded blur must give exactly what it gave before the
+ * threshold moved onto the raw raster: a pair of ConvolveOps, then a
+ * threshold of each pixel through getRGB, Color and setRGB.
+ */
+public final class ThresholdParityTest {
+
+    private static final Color ON = Color.WHITE;
+    private static final Color OFF = Color.BLACK;
+    /* A view of the bottle, padded by the kernel on every side. */
+    private static final int WIDTH = 250 + Renderer.KERNEL_SIZE * 2;
+    private static final int HEIGHT = 350 + Renderer.KERNEL_SIZE * 2;
+    private static final int BALLS = 400;
+    private static final int DIAMETER = 5;
+    private static final long SEED = 1L;
+
+    private static BufferedImage raster;
+
+    /**
+     * Rasterize a scatter of ball-sized discs once for every test.
+     */
+    @BeforeClass
+    public static void scatter() {
+        raster = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = raster.createGraphics();
+        g.setColor(OFF);
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.setColor(ON);
+        Random random = new Random(SEED);
+        for (int i = 0; i < BALLS; i++) {
+            g.fillOval(random.nextInt(WIDTH), random.nextInt(HEIGHT),
+                       DIAMETER, DIAMETER);
+        }
+        g.dispose();
+    }
+
+    /**
+     * The threshold stage alone matches the per-pixel loop.
+     */
+    @Test
+    public void threshold() {
+        BufferedImage expected = horizontal(vertical(raster));
+        BufferedImage actual = horizontal(vertical(raster));
+        loop(expected);
+        new Threshold(Renderer.THRESHOLD, ON, OFF).apply(actual);
+        assertArrayEquals(Threshold.pixels(expected),
+                          Threshold.pixels(actual));
+    }
+
+    /**
+     * The Gaussian blur with the threshold fused into its horizontal
+     * pass matches both ConvolveOps followed by the loop.
+     */
+    @Test
+    public void fused() {
+        fused(Blur.Mode.GAUSSIAN);
+    }
+
+    /**
+     * The single-channel passes match too, the raster being gray.
+     */
+    @Test
+    public void luma() {
+        fused(Blur.Mode.LUMA);
+    }
+
+    /**
+     * Compare one blur mode, thresholded as it blurs, against the old
+     * path.
+     * @param mode  the blur mode
+     */
+    private static void fused(final Blur.Mode mode) {
+        BufferedImage expected = horizontal(vertical(raster));
+        loop(expected);
+        int[] actual = new int[WIDTH * HEIGHT];
+        new Blur(Renderer.KERNEL_SIZE, mode)
+            .filter(Threshold.pixels(raster), actual, WIDTH, HEIGHT,
+                    new Threshold(Renderer.THRESHOLD, ON, OFF));
+        assertArrayEquals(Threshold.pixels(expected), actual);
+    }
+
+    /**
+     * Blur an image vertically the old way.
+     * @param im  the image to blur
+     * @return a new, blurred image
+     */
+    private static BufferedImage vertical(final BufferedImage im) {
+        float[] k = Blur.kernel(Renderer.KERNEL_SIZE);
+        return new ConvolveOp(new Kernel(1, k.length, k)).filter(im, null);
+    }
+
+    /**
+     * Blur an image horizontally the old way.
+     * @param im  the image to blur
+     * @return a new, blurred image
+     */
+    private static BufferedImage horizontal(final BufferedImage im) {
+        float[] k = Blur.kernel(Renderer.KERNEL_SIZE);
+        return new ConvolveOp(new Kernel(k.length, 1, k)).filter(im, null);
+    }
+
+    /**
+     * Threshold an image the old way, one Color per pixel.
+     * @param im  the image to threshold in place
+     */
+    private static void loop(final BufferedImage im) {
+        for (int i = 0; i < im.getWidth(); i++) {
+            for (int j = 0; j < im.getHeight(); j++) {
+                Color c = new Color(im.getRGB(i, j));
+                if (c.getRed() + c.getGreen() + c.getBlue()
+                    > Renderer.THRESHOLD) {
+                    im.setRGB(i, j, ON.getRGB());
+                } else {
+                    im.setRGB(i, j, OFF.getRGB());
+                }
+            }
+        }
+    }
+}
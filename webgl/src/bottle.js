@@ -7,6 +7,9 @@ function Bottle(canvas) {
     this.doBlur = true;
     this.doThreshold = true;
 
+    /* When set, bodies come from a remote simulation instead. */
+    this.feed = null;
+
     this.world = new B.World(Bottle.GRAVITY, false);
     this.polys = [];
     this.buildOuter();
@@ -186,12 +189,28 @@ Bottle.prototype.render = function() {
     var w = this.gl.canvas.width, h = this.gl.canvas.height;
     var sx = w / this.width * 2, sy = h / this.height * 2;
 
+    var radius = Bottle.BALL_RADIUS, count = this.balls.length,
+        spikes = this.polys.length * 3, pos;
+
     /* Update balls vertex attribute. */
-    var pos = new Float32Array(this.balls.length * 2);
-    for (var i = 0; i < this.balls.length; i++) {
-        var p = this.balls[i].GetBody().GetPosition();
-        pos[i * 2 + 0] = p.get_x() / w * sx;
-        pos[i * 2 + 1] = p.get_y() / h * sy;
+    if (this.feed != null) {
+        if (!this.feed.ready()) {
+            return;
+        }
+        sx = w / this.feed.view.width * 2;
+        radius = this.feed.ballRadius();
+        pos = this.feed.balls();
+        count = pos.length / 2;
+        var polygons = this.feed.polygons();
+        this.buffers.spikes.update(polygons);
+        spikes = polygons.length / 2;
+    } else {
+        pos = new Float32Array(this.balls.length * 2);
+        for (var i = 0; i < this.balls.length; i++) {
+            var p = this.balls[i].GetBody().GetPosition();
+            pos[i * 2 + 0] = p.get_x() / w * sx;
+            pos[i * 2 + 1] = p.get_y() / h * sy;
+        }
     }
     this.buffers.balls.update(pos);
 
@@ -199,8 +218,8 @@ Bottle.prototype.render = function() {
     gl.bindTexture(gl.TEXTURE_2D, this.textures.front);
     this.programs.balls.use()
         .attrib('ball', this.buffers.balls, 2)
-        .uniform('size', Bottle.BALL_RADIUS * sx)
-        .draw(gl.POINTS, this.balls.length);
+        .uniform('size', radius * sx)
+        .draw(gl.POINTS, count);
     this.swap();
 
     if (this.doBlur) {
@@ -230,7 +249,7 @@ Bottle.prototype.render = function() {
     this.programs.spikes.use()
         .attrib('position', this.buffers.spikes, 2)
         .uniform('color', vec4(0.5, 0.5, 0.5, 1.0))
-        .draw(gl.TRIANGLES, this.polys.length * 3);
+        .draw(gl.TRIANGLES, spikes);
 };
 
 Bottle.prototype.step = function() {
@@ -0,0 +1,153 @@
+/**
+ * Bodies stepped by a remote simulation, received over a WebSocket
+ * from the Java server's /snapshots feed. Messages are little-endian:
+ * a layout of the bodies first, then the pose of every body per step.
+ * @param {string} url The feed, e.g. ws://localhost:8080/snapshots
+ */
+function Feed(url) {
+    this.count = 0;
+    this.view = null;
+    this.types = null;
+    this.radius = null;
+    this.shapes = null;
+    this.poses = null;
+    this.step = 0;
+    this.time = 0;
+
+    var feed = this;
+    this.socket = new WebSocket(url);
+    this.socket.binaryType = 'arraybuffer';
+    this.socket.onmessage = function(event) {
+        feed.receive(new DataView(event.data));
+    };
+}
+
+Feed.LAYOUT = 0;
+Feed.STEP = 1;
+Feed.DYNAMIC = 2;
+
+/**
+ * @param {DataView} data One message from the feed
+ */
+Feed.prototype.receive = function(data) {
+    var kind = data.getUint32(0, true);
+    if (kind === Feed.LAYOUT) {
+        this.layout(data);
+    } else if (kind === Feed.STEP && this.view != null) {
+        this.step = data.getUint32(4, true);
+        this.time = data.getFloat64(8, true);
+        var count = data.getUint32(16, true);
+        if (count === this.count) {
+            this.poses = new Float32Array(data.buffer, 24, count * 3);
+        }
+    }
+};
+
+/**
+ * @param {DataView} data A layout message
+ */
+Feed.prototype.layout = function(data) {
+    var n = this.count = data.getUint32(4, true);
+    this.view = {
+        x: data.getFloat32(8, true),
+        y: data.getFloat32(12, true),
+        width: data.getFloat32(16, true),
+        height: data.getFloat32(20, true)
+    };
+    this.types = new Uint8Array(n);
+    this.radius = new Float32Array(n);
+    this.shapes = new Array(n);
+    var offset = 24;
+    for (var i = 0; i < n; i++) {
+        this.types[i] = data.getUint8(offset);
+        var floats = data.getUint16(offset + 2, true);
+        this.radius[i] = data.getFloat32(offset + 4, true);
+        offset += 8;
+        this.shapes[i] = null;
+        if (floats > 0) {
+            this.shapes[i] = new Float32Array(floats);
+            for (var j = 0; j < floats; j++, offset += 4) {
+                this.shapes[i][j] = data.getFloat32(offset, true);
+            }
+        }
+    }
+    this.poses = null;
+};
+
+/**
+ * @returns {boolean} True once the layout and a step have arrived
+ */
+Feed.prototype.ready = function() {
+    return this.poses != null;
+};
+
+/**
+ * @returns {number} Radius of the balls in world units
+ */
+Feed.prototype.ballRadius = function() {
+    for (var i = 0; i < this.count; i++) {
+        if (this.types[i] === Feed.DYNAMIC && this.shapes[i] == null) {
+            return this.radius[i];
+        }
+    }
+    return 0;
+};
+
+/**
+ * @param {number} x World x coordinate
+ * @param {number} y World y coordinate
+ * @param {Float32Array} out Where to put the clip-space coordinates
+ * @param {number} i Index of the x coordinate in out
+ */
+Feed.prototype.clip = function(x, y, out, i) {
+    var v = this.view;
+    out[i + 0] = (x - v.x) / v.width * 2 - 1;
+    out[i + 1] = (y - v.y) / v.height * 2 - 1;
+};
+
+/**
+ * @returns {Float32Array} Clip-space centers of the balls
+ */
+Feed.prototype.balls = function() {
+    var n = 0, i;
+    for (i = 0; i < this.count; i++) {
+        if (this.types[i] === Feed.DYNAMIC && this.shapes[i] == null) {
+            n++;
+        }
+    }
+    var out = new Float32Array(n * 2), k = 0;
+    for (i = 0; i < this.count; i++) {
+        if (this.types[i] === Feed.DYNAMIC && this.shapes[i] == null) {
+            this.clip(this.poses[i * 3], this.poses[i * 3 + 1], out, k);
+            k += 2;
+        }
+    }
+    return out;
+};
+
+/**
+ * @returns {Float32Array} Clip-space triangles of the polygon bodies
+ */
+Feed.prototype.polygons = function() {
+    var triangles = [], p = new Float32Array(2);
+    for (var i = 0; i < this.count; i++) {
+        var shape = this.shapes[i];
+        if (shape == null) {
+            continue;
+        }
+        var x = this.poses[i * 3], y = this.poses[i * 3 + 1],
+            a = this.poses[i * 3 + 2],
+            cos = Math.cos(a), sin = Math.sin(a);
+        var verts = [];
+        for (var j = 0; j < shape.length; j += 2) {
+            this.clip(x + shape[j] * cos - shape[j + 1] * sin,
+                      y + shape[j] * sin + shape[j + 1] * cos, p, 0);
+            verts.push(p[0], p[1]);
+        }
+        for (j = 2; j + 3 < verts.length; j += 2) {
+            triangles.push(verts[0], verts[1], verts[j], verts[j + 1],
+                           verts[j + 2], verts[j + 3]);
+        }
+    }
+    return new Float32Array(triangles);
+};
@@ -1,7 +1,15 @@
 var bottle = null;
 window.addEventListener('load', function() {
     bottle = new Bottle(document.getElementById('display'));
+    /* index.html#ws://host:port/snapshots follows a Java simulation. */
+    var hash = window.location.hash.substring(1);
+    if (/^wss?:\/\//.test(hash)) {
+        bottle.feed = new Feed(hash);
+    }
     function step() {
+        if (bottle.feed != null) {
+            return;
+        }
         bottle.step();
     }
     function render() {